@@ -79,6 +79,65 @@ public class DigestUtil
     return src.get(0);
   }
 
+  /**
+   * Returns the hashes the first entry of tx_list gets paired with on the way up
+   * to the merkle root.  With those, the root can be found again with getMerkleRootFromBranch()
+   * when only the first entry (the coinbase) changes.  The first entry itself isn't used.
+   */
+  public static List<ChainHash> getMerkleBranchForFirst(List<ChainHash> tx_list)
+  {
+    ArrayList<ChainHash> src = new ArrayList<>();
+    src.addAll(tx_list);
+
+    ArrayList<ChainHash> sink = new ArrayList<>();
+    ArrayList<ChainHash> branch = new ArrayList<>();
+    MessageDigest md = getMD();
+
+    if (src.size() ==0)
+    {
+      throw new RuntimeException("Can't merkle empty list");
+    }
+
+    while(src.size() > 1)
+    {
+      // The first node always has a partner when there is more than one.
+      // Its own hash is wrong from here up, but nothing else depends on it.
+      branch.add(src.get(1));
+
+      for(int i=0; i<src.size(); i=i+2)
+      {
+        if (i+1 == src.size())
+        {
+          sink.add(src.get(i)); 
+        }
+        else
+        {
+          md.update(src.get(i).toByteArray());
+          md.update(src.get(i+1).toByteArray());
+
+          sink.add(new ChainHash(md.digest()));
+        }
+      }
+      src = sink;
+      sink = new ArrayList<>();
+    }
+
+    return branch;
+  }
+
+  public static ChainHash getMerkleRootFromBranch(ChainHash first, List<ChainHash> branch)
+  {
+    MessageDigest md = getMD();
+    ChainHash h = first;
+    for(ChainHash sibling : branch)
+    {
+      md.update(h.toByteArray());
+      md.update(sibling.toByteArray());
+      h = new ChainHash(md.digest());
+    }
+    return h;
+  }
+
 
 
 }
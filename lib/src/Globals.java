@@ -44,11 +44,31 @@ public class Globals
   public static final long CLOCK_SKEW_WARN_MS = 5000;
 
   public static final int BLOCK_CHUNK_HEADER_DOWNLOAD_SIZE = 500;
+  /** Most headers in one BlockHeaderList, at about 4k each */
+  public static final int HEADER_RANGE_MAX = 200;
+  /** Most hashes in a header range locator.  Ours are 10 plus log2 of the height. */
+  public static final int LOCATOR_MAX = 64;
+  public static final String PEER_FEATURE_HEADER_RANGE = "header_range";
+  public static final String PEER_FEATURE_COMPACT_BLOCK = "compact_block";
+  public static final String PEER_FEATURE_TX_INV = "tx_inv";
+  public static final int TX_INV_MAX = 1000;
 
   public static final int ADDRESS_HISTORY_MAX_REPLY = 100000;
+  public static final int ADDRESS_HISTORY_PAGE_SIZE = 1000;
+  public static final int ADDRESS_HISTORY_MAX_PAGE_SIZE = 10000;
+
+  /**
+   * The compact indexes keep only this much of the block hash.  It is checked against
+   * the main chain block at that height, so it only has to tell apart blocks at the same height.
+   */
+  public static final int INDEX_BLOCK_HASH_PREFIX_LEN = 8;
 
   public static final long MINE_CHUNK_SIZE = 1024L*1024L*1024L;
 
+  /** Number of verified signatures to remember so a tx seen in the mempool isn't checked again in a block */
+  public static final int SIGNATURE_CACHE_SIZE = 250000;
+  public static final int PUBLIC_KEY_CACHE_SIZE = 25000;
+
   // In flakes per byte
   public static final double BASIC_FEE = 2.5;
   public static final double LOW_FEE = 2.2;
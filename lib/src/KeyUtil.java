@@ -50,14 +50,23 @@ public class KeyUtil
     return new KeyPair( decodeKey( wkp.getPublicKey(), algo), decodePrivateKey(wkp.getPrivateKey(), algo));
   }
 
+  // algo + ":" + encoded key -> decoded key
+  private static final StripedLRUCache<ByteString, PublicKey> public_key_cache = new StripedLRUCache<>(Globals.PUBLIC_KEY_CACHE_SIZE);
+
   public static PublicKey decodeKey(ByteString encoded, String algo)
     throws ValidationException
   {
+    ByteString cache_key = ByteString.copyFromUtf8(algo + ":").concat(encoded);
+    PublicKey cached = public_key_cache.get(cache_key);
+    if (cached != null) return cached;
+
     try
     {
       X509EncodedKeySpec spec = new X509EncodedKeySpec(encoded.toByteArray());
       KeyFactory fact = KeyFactory.getInstance(algo, Globals.getCryptoProviderName());
-      return fact.generatePublic(spec);
+      PublicKey pub = fact.generatePublic(spec);
+      public_key_cache.put(cache_key, pub);
+      return pub;
     }
     catch(java.security.GeneralSecurityException e)
     {
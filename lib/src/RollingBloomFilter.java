@@ -0,0 +1,53 @@
+package snowblossom.lib;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.protobuf.ByteString;
+
+/**
+ * A bloom filter that forgets old entries instead of filling up.
+ * Entries go into the current generation.  Once it has 'cap' entries, it becomes
+ * the previous generation and the one before that is dropped.  So at least the
+ * last 'cap' entries are always remembered, and false positives stay around 'fpp'.
+ */
+public class RollingBloomFilter
+{
+  private final int cap;
+  private final double fpp;
+
+  private BloomFilter<byte[]> current;
+  private BloomFilter<byte[]> previous;
+  private int current_count;
+
+  public RollingBloomFilter(int cap, double fpp)
+  {
+    this.cap = cap;
+    this.fpp = fpp;
+
+    current = newFilter();
+    previous = newFilter();
+  }
+
+  private BloomFilter<byte[]> newFilter()
+  {
+    return BloomFilter.create(Funnels.byteArrayFunnel(), cap, fpp);
+  }
+
+  public synchronized void add(ByteString key)
+  {
+    if (current_count >= cap)
+    {
+      previous = current;
+      current = newFilter();
+      current_count = 0;
+    }
+    if (current.put(key.toByteArray())) current_count++;
+  }
+
+  public synchronized boolean mightContain(ByteString key)
+  {
+    byte[] b = key.toByteArray();
+    return current.mightContain(b) || previous.mightContain(b);
+  }
+
+}
@@ -0,0 +1,176 @@
+package snowblossom.lib;
+
+import com.google.protobuf.ByteString;
+import duckutil.TimeRecord;
+import duckutil.TimeRecordAuto;
+import snowblossom.proto.SigSpec;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Collects signature checks so that they can all be verified at once.
+ * Signature checks are by far the most expensive part of the stateless
+ * transaction checks, so for a block (or a multisig transaction) they
+ * are spread over a shared fork join pool.
+ *
+ * The pool is bounded to the number of processors and shared by everyone
+ * so a flood of transactions can't spin up more threads.
+ */
+public class SignatureBatch
+{
+  /** Below this many checks, just do them on the calling thread */
+  public static final int PARALLEL_MIN = 2;
+
+  private static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+  private final ArrayList<SignatureCheck> checks = new ArrayList<>();
+  private final boolean use_cache;
+
+  public SignatureBatch()
+  {
+    this(true);
+  }
+
+  /**
+   * @param use_cache if false, every check does the full verification and
+   * nothing is added to the verified signature cache
+   */
+  public SignatureBatch(boolean use_cache)
+  {
+    this.use_cache = use_cache;
+  }
+
+  public void add(SigSpec sig_spec, ByteString signed_data, ByteString signature)
+  {
+    checks.add(new SignatureCheck(sig_spec, signed_data, signature, use_cache));
+  }
+
+  public int size()
+  {
+    return checks.size();
+  }
+
+  /**
+   * Verify all the signatures in this batch.
+   * Throws on the first one found to be bad.
+   */
+  public void verify()
+    throws ValidationException
+  {
+    if (checks.size() < PARALLEL_MIN)
+    {
+      verifySequential();
+      return;
+    }
+
+    try(TimeRecordAuto tra = TimeRecord.openAuto("SignatureBatch.verify"))
+    {
+      AtomicReference<ValidationException> failure = new AtomicReference<>();
+      pool.invoke(new VerifyTask(0, checks.size(), failure));
+
+      if (failure.get() != null) throw failure.get();
+    }
+  }
+
+  /**
+   * Verify all the signatures in this batch on the calling thread
+   */
+  public void verifySequential()
+    throws ValidationException
+  {
+    try(TimeRecordAuto tra = TimeRecord.openAuto("SignatureBatch.verifySequential"))
+    {
+      for(SignatureCheck sc : checks)
+      {
+        sc.check();
+      }
+    }
+  }
+
+  public static class SignatureCheck
+  {
+    private final SigSpec sig_spec;
+    private final ByteString signed_data;
+    private final ByteString signature;
+    private final boolean use_cache;
+
+    public SignatureCheck(SigSpec sig_spec, ByteString signed_data, ByteString signature)
+    {
+      this(sig_spec, signed_data, signature, true);
+    }
+
+    public SignatureCheck(SigSpec sig_spec, ByteString signed_data, ByteString signature, boolean use_cache)
+    {
+      this.sig_spec = sig_spec;
+      this.signed_data = signed_data;
+      this.signature = signature;
+      this.use_cache = use_cache;
+    }
+
+    public void check()
+      throws ValidationException
+    {
+      boolean valid;
+      if (use_cache)
+      {
+        valid = SignatureUtil.checkSignature(sig_spec, signed_data, signature);
+      }
+      else
+      {
+        valid = SignatureUtil.verifySignature(sig_spec, signed_data, signature);
+      }
+      if (!valid)
+      {
+        throw new ValidationException("signature failed");
+      }
+    }
+  }
+
+  /**
+   * Splits the range in half until it is down to a single check.
+   * Once any check fails, the rest are skipped.
+   */
+  private class VerifyTask extends RecursiveAction
+  {
+    private final int start;
+    private final int end;
+    private final AtomicReference<ValidationException> failure;
+
+    public VerifyTask(int start, int end, AtomicReference<ValidationException> failure)
+    {
+      this.start = start;
+      this.end = end;
+      this.failure = failure;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if (failure.get() != null) return;
+
+      if (end - start <= 1)
+      {
+        try
+        {
+          checks.get(start).check();
+        }
+        catch(ValidationException e)
+        {
+          failure.compareAndSet(null, e);
+        }
+        catch(RuntimeException e)
+        {
+          failure.compareAndSet(null, new ValidationException(e));
+        }
+        return;
+      }
+
+      int mid = (start + end) / 2;
+      invokeAll(new VerifyTask(start, mid, failure), new VerifyTask(mid, end, failure));
+    }
+  }
+
+}
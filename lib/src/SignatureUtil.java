@@ -5,12 +5,15 @@ import com.google.protobuf.ByteString;
 import snowblossom.proto.SigSpec;
 import snowblossom.proto.WalletKeyPair;
 
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SignatureUtil
 {
@@ -30,8 +33,70 @@ public class SignatureUtil
   public static final int SIG_TYPE_RSA=4;
   public static final int SIG_TYPE_DSTU4145=5;
 
+  // Only good signatures are saved, so a hit means it has been verified before
+  private static final StripedLRUCache<ChainHash, Boolean> sig_cache = new StripedLRUCache<>(Globals.SIGNATURE_CACHE_SIZE);
+  private static final AtomicLong sig_cache_hits = new AtomicLong(0L);
+  private static final AtomicLong sig_cache_misses = new AtomicLong(0L);
+
+  public static long getSignatureCacheHits(){ return sig_cache_hits.get(); }
+  public static long getSignatureCacheMisses(){ return sig_cache_misses.get(); }
+  public static int getSignatureCacheSize(){ return sig_cache.size(); }
+
+  /**
+   * @return true if this exact signature check has passed before and is still remembered
+   */
+  public static boolean isSignatureCached(SigSpec sig_spec, ByteString signed_data, ByteString signature)
+  {
+    return sig_cache.get(getSignatureCacheKey(sig_spec, signed_data, signature)) != null;
+  }
+
   public static boolean checkSignature(SigSpec sig_spec, ByteString signed_data, ByteString signature)
     throws ValidationException
+  {
+    ChainHash cache_key = getSignatureCacheKey(sig_spec, signed_data, signature);
+    if (sig_cache.get(cache_key) != null)
+    {
+      sig_cache_hits.incrementAndGet();
+      return true;
+    }
+    sig_cache_misses.incrementAndGet();
+
+    boolean valid = verifySignature(sig_spec, signed_data, signature);
+    if (valid)
+    {
+      sig_cache.put(cache_key, Boolean.TRUE);
+    }
+    return valid;
+  }
+
+  /**
+   * Hash of everything that goes into a signature check.  Each part is
+   * length prefixed so there is no ambiguity about where one ends.
+   */
+  private static ChainHash getSignatureCacheKey(SigSpec sig_spec, ByteString signed_data, ByteString signature)
+  {
+    MessageDigest md = DigestUtil.getMD();
+    ByteBuffer len_buff = ByteBuffer.allocate(12);
+    ByteString spec_data = sig_spec.toByteString();
+
+    len_buff.putInt(spec_data.size());
+    len_buff.putInt(signed_data.size());
+    len_buff.putInt(signature.size());
+
+    md.update(len_buff.array());
+    md.update(spec_data.toByteArray());
+    md.update(signed_data.toByteArray());
+    md.update(signature.toByteArray());
+
+    return new ChainHash(md.digest());
+  }
+
+  /**
+   * Checks the signature without looking in or adding to the verified signature cache.
+   * For benchmarks and tests that need to measure or exercise the real check.
+   */
+  public static boolean verifySignature(SigSpec sig_spec, ByteString signed_data, ByteString signature)
+    throws ValidationException
   {
     int sig_type = sig_spec.getSignatureType();
     ByteString encoded = sig_spec.getPublicKey();
@@ -0,0 +1,63 @@
+package snowblossom.lib;
+
+/**
+ * A bounded LRU cache that can be used from many threads at once.
+ * Keys are spread across a number of LRUCache stripes, each with its own lock,
+ * so the total size is held to about the given capacity.
+ */
+public class StripedLRUCache<K,V>
+{
+  private static final int STRIPES = 16;
+
+  private final LRUCache<K,V>[] stripes;
+
+  @SuppressWarnings("unchecked")
+  public StripedLRUCache(int cap)
+  {
+    stripes = new LRUCache[STRIPES];
+    int stripe_cap = Math.max(1, cap / STRIPES);
+    for(int i=0; i<STRIPES; i++)
+    {
+      stripes[i] = new LRUCache<K,V>(stripe_cap);
+    }
+  }
+
+  private LRUCache<K,V> getStripe(Object key)
+  {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return stripes[(h & 0x7fffffff) % STRIPES];
+  }
+
+  public V get(K key)
+  {
+    LRUCache<K,V> stripe = getStripe(key);
+    synchronized(stripe)
+    {
+      return stripe.get(key);
+    }
+  }
+
+  public void put(K key, V value)
+  {
+    LRUCache<K,V> stripe = getStripe(key);
+    synchronized(stripe)
+    {
+      stripe.put(key, value);
+    }
+  }
+
+  public int size()
+  {
+    int sz = 0;
+    for(LRUCache<K,V> stripe : stripes)
+    {
+      synchronized(stripe)
+      {
+        sz += stripe.size();
+      }
+    }
+    return sz;
+  }
+
+}
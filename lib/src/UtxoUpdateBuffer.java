@@ -8,7 +8,10 @@ import snowblossom.lib.trie.HashUtils;
 import snowblossom.lib.trie.HashedTrie;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 public class UtxoUpdateBuffer
@@ -18,6 +21,11 @@ public class UtxoUpdateBuffer
 
   private HashMap<ByteString, ByteString> updates;
 
+  // Data looked up ahead of time from utxo_root.  Keys that were looked up
+  // and not found are in prefetched_keys but not prefetched.
+  private HashSet<ByteString> prefetched_keys;
+  private HashMap<ByteString, ByteString> prefetched;
+
   public static final ChainHash EMPTY = new ChainHash(HashUtils.hashOfEmpty());
 
   public UtxoUpdateBuffer(HashedTrie trie, ChainHash utxo_root)
@@ -25,12 +33,16 @@ public class UtxoUpdateBuffer
     this.trie = trie;
     this.utxo_root = utxo_root;
     this.updates = new HashMap<>(512, 0.5f);
+    this.prefetched_keys = new HashSet<>();
+    this.prefetched = new HashMap<>();
   }
 
   public UtxoUpdateBuffer deepCopy()
   {
     UtxoUpdateBuffer n = new UtxoUpdateBuffer(trie, utxo_root);
     n.updates.putAll(this.updates);
+    n.prefetched_keys.addAll(this.prefetched_keys);
+    n.prefetched.putAll(this.prefetched);
 
     return n;
   }
@@ -54,19 +66,62 @@ public class UtxoUpdateBuffer
     return new ChainHash(trie.mergeBatch(utxo_root.getBytes(), updates));
   }
 
-  public TransactionOutput getOutputMatching(TransactionInput in)
+  /**
+   * Look up these keys from the utxo root in one pass over the trie,
+   * so later getOutputMatching() calls for them don't have to.
+   */
+  public void prefetch(Collection<ByteString> keys)
   {
-    ByteString key = getKey(in);
+    ArrayList<ByteString> needed = new ArrayList<>();
+    for(ByteString key : keys)
+    {
+      if (updates.containsKey(key)) continue;
+      if (prefetched_keys.contains(key)) continue;
+      needed.add(key);
+    }
+    if (needed.size() == 0) return;
 
-    ByteString data;
+    prefetched.putAll(trie.getLeafDataBatch(utxo_root.getBytes(), needed));
+    prefetched_keys.addAll(needed);
+  }
+
+  /**
+   * Prefetch the outputs spent by the inputs of these transactions
+   */
+  public void prefetchInputs(Collection<Transaction> txs)
+  {
+    ArrayList<ByteString> keys = new ArrayList<>();
+    for(Transaction tx : txs)
+    {
+      for(TransactionInput in : TransactionUtil.getInner(tx).getInputsList())
+      {
+        keys.add(getKey(in));
+      }
+    }
+    prefetch(keys);
+  }
+
+  /**
+   * @return the raw output data for the key, with updates in this buffer applied, or null
+   */
+  public ByteString getData(ByteString key)
+  {
     if (updates.containsKey(key))
     {
-      data = updates.get(key);
+      return updates.get(key);
     }
-    else
+    if (prefetched_keys.contains(key))
     {
-      data = trie.getLeafData(utxo_root.getBytes(), key);
+      return prefetched.get(key);
     }
+    return trie.getLeafData(utxo_root.getBytes(), key);
+  }
+
+  public TransactionOutput getOutputMatching(TransactionInput in)
+  {
+    ByteString key = getKey(in);
+
+    ByteString data = getData(key);
 
     if (data == null) return null;
 
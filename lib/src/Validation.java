@@ -116,13 +116,16 @@ public class Validation
           throw new ValidationException("Must be at least one transaction in a block");
         }
 
+        // Signatures for the whole block are saved up and checked together at the end
+        SignatureBatch sig_batch = new SignatureBatch();
+
         ArrayList<ChainHash> tx_list = new ArrayList<>();
         for(int i=0; i<blk.getTransactionsCount(); i++)
         {
           Transaction tx = blk.getTransactions(i);
           boolean coinbase = false;
           if (i == 0) coinbase = true;
-          checkTransactionBasics(tx, coinbase);
+          checkTransactionBasics(tx, coinbase, sig_batch);
 
           tx_list.add(new ChainHash(tx.getTxHash()));
         }
@@ -135,6 +138,8 @@ public class Validation
             new ChainHash(header.getMerkleRootHash()).toString()));
         }
 
+        sig_batch.verify();
+
       }
     }
 
@@ -290,6 +295,13 @@ public class Validation
 
       UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer(utxo_hashed_trie, 
         new ChainHash(prev_summary.getHeader().getUtxoRootHash()));
+
+      // Look up all the inputs in one walk of the trie rather than one per input
+      try(TimeRecordAuto tra_pre = TimeRecord.openAuto("Validation.deepBlockValidation.prefetch"))
+      {
+        utxo_buffer.prefetchInputs(blk.getTransactionsList());
+      }
+
       long fee_sum = 0L;
 
       for(Transaction tx : blk.getTransactionsList())
@@ -482,6 +494,19 @@ public class Validation
    */
   public static void checkTransactionBasics(Transaction tx, boolean must_be_coinbase)
     throws ValidationException
+  {
+    SignatureBatch sig_batch = new SignatureBatch();
+    checkTransactionBasics(tx, must_be_coinbase, sig_batch);
+    sig_batch.verify();
+  }
+
+  /**
+   * Check the things about a transaction that can be checked without the database,
+   * except that the signatures are only added to sig_batch.  The caller must
+   * call sig_batch.verify() before trusting the transaction.
+   */
+  public static void checkTransactionBasics(Transaction tx, boolean must_be_coinbase, SignatureBatch sig_batch)
+    throws ValidationException
   {
     try(TimeRecordAuto tra_blk = TimeRecord.openAuto("Validation.checkTransactionBasics"))
     {
@@ -630,11 +655,8 @@ public class Validation
         if (spec.getSigSpecsCount() <= se.getKeyIdx()) throw new ValidationException("Signature entry for non-existant sig spec");
         SigSpec sig_spec = spec.getSigSpecs(se.getKeyIdx());
 
-        if (!SignatureUtil.checkSignature( sig_spec, tx.getTxHash(), se.getSignature()))
-        {
-          throw new ValidationException("signature failed");
-        }
-        //So we have a valid signature on a valid claim!  woot
+        sig_batch.add(sig_spec, tx.getTxHash(), se.getSignature());
+        //So we have a signature on a valid claim, which the batch will check
 
         if (!signed_claim_map.containsKey(se.getClaimIdx())) signed_claim_map.put(se.getClaimIdx(), new TreeSet<Integer>());
 
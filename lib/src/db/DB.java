@@ -9,6 +9,10 @@ import snowblossom.proto.BlockSummary;
 import snowblossom.proto.Transaction;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -31,10 +35,19 @@ public class DB implements DBFace
   protected DBMapMutationSet address_history_map;
   protected DBMapMutationSet special_map_set;
   protected DBMapMutationSet transaction_block_map;
+  protected DBMapMutationSet address_history_compact_map;
+  protected DBMapMutationSet transaction_block_compact_map;
+
+  // Compact indexes that have been fully filled in from the old ones
+  private final Set<String> compact_ready = ConcurrentHashMap.newKeySet();
+  private static final String COMPACT_READY_PREFIX = "compact_index_ready/";
 
   private Config config;
   private DBProvider prov;
 
+  // Things to do once the batch open on each thread is committed
+  private final ThreadLocal<ArrayList<Runnable>> after_commit = new ThreadLocal<>();
+
   public DB(Config config, DBProvider prov)
     throws Exception
   {
@@ -51,10 +64,61 @@ public class DB implements DBFace
     prov.close();
   }
 
+  /** See DBProvider.beginBatch() */
+  public boolean beginBatch()
+  {
+    boolean batching = prov.beginBatch();
+    if (batching) after_commit.set(new ArrayList<Runnable>());
+    return batching;
+  }
+
+  public void commitBatch()
+  {
+    ArrayList<Runnable> lst = after_commit.get();
+    after_commit.remove();
+
+    prov.commitBatch();
+
+    if (lst != null)
+    {
+      for(Runnable r : lst) r.run();
+    }
+  }
+
+  public void abortBatch()
+  {
+    after_commit.remove();
+    prov.abortBatch();
+  }
+
+  /** See DBProvider.bulkLoad() */
+  public void bulkLoad(DBMap map, SortedMap<ByteString, ByteString> entries)
+  {
+    prov.bulkLoad(map, entries);
+  }
+
+  /**
+   * For things kept in memory that have to match what is really in the db.
+   * If this thread has a batch open, r runs after that batch is committed
+   * and not at all if it is aborted.  Otherwise r runs now.
+   */
+  public void afterCommit(Runnable r)
+  {
+    ArrayList<Runnable> lst = after_commit.get();
+    if (lst == null)
+    {
+      r.run();
+    }
+    else
+    {
+      lst.add(r);
+    }
+  }
+
   public void open()
     throws Exception
   {
-    block_map = new ProtoDBMap(Block.newBuilder().build().getParserForType(), prov.openMap("block"));
+    block_map = new ProtoDBMap(Block.newBuilder().build().getParserForType(), prov.openBlockMap("block"));
     tx_map = new ProtoDBMap(Transaction.newBuilder().build().getParserForType(), prov.openMap("tx"));
     block_summary_map = new ProtoDBMap(BlockSummary.newBuilder().build().getParserForType(), prov.openMap("blocksummary"));
 
@@ -73,13 +137,37 @@ public class DB implements DBFace
     if (config.getBoolean("addr_index"))
     {
       address_history_map = prov.openMutationMapSet("addr_hist_2");
+      address_history_compact_map = prov.openMutationMapSet("addr_hist_3");
+      loadCompactReady("addr_hist_3");
     }
     if (config.getBoolean("tx_index"))
     {
       transaction_block_map = prov.openMutationMapSet("tx_blk_map");
+      transaction_block_compact_map = prov.openMutationMapSet("tx_blk_map_2");
+      loadCompactReady("tx_blk_map_2");
     }
   }
 
+  private void loadCompactReady(String name)
+  {
+    if (special_map.containsKey(COMPACT_READY_PREFIX + name)) compact_ready.add(name);
+  }
+
+  /**
+   * @return true once the compact index 'name' has everything the old index had.
+   * Until then, writes go to both and reads use the old one.
+   */
+  public boolean isCompactIndexReady(String name)
+  {
+    return compact_ready.contains(name);
+  }
+
+  public void setCompactIndexReady(String name)
+  {
+    special_map.put(COMPACT_READY_PREFIX + name, ByteString.copyFrom(new byte[]{1}));
+    compact_ready.add(name);
+  }
+
   @Override
   public ProtoDBMap<Block> getBlockMap(){return block_map; }
 
@@ -104,6 +192,12 @@ public class DB implements DBFace
   @Override
   public DBMapMutationSet getTransactionBlockMap() { return transaction_block_map; }
 
+  @Override
+  public DBMapMutationSet getAddressHistoryCompactMap() { return address_history_compact_map; }
+
+  @Override
+  public DBMapMutationSet getTransactionBlockCompactMap() { return transaction_block_compact_map; }
+
   @Override
   public ChainHash getBlockHashAtHeight(int height)
   {
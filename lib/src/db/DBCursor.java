@@ -0,0 +1,29 @@
+package snowblossom.lib.db;
+
+import com.google.protobuf.ByteString;
+
+import java.util.Iterator;
+
+/**
+ * Walks the entries under a prefix in key order, without loading them all first.
+ *
+ * The resume token marks the last entry returned.  Opening a new cursor with it
+ * carries on with the entry after that one, so a caller can page through any
+ * number of entries, close the cursor in between and pick up later.
+ * Tokens are only meaningful to the map that made them.
+ *
+ * Cursors may hold db resources, so always close them.
+ */
+public abstract class DBCursor<T> implements Iterator<T>, AutoCloseable
+{
+  /**
+   * @return token for resuming after the last entry returned by next(),
+   * or the token this cursor was opened with if nothing has been returned yet
+   */
+  public abstract ByteString getResumeToken();
+
+  @Override
+  public void close()
+  {
+  }
+}
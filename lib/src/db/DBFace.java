@@ -13,6 +13,10 @@ public interface DBFace
   public DBMapMutationSet getAddressHistoryMap();
   public DBMapMutationSet getTransactionBlockMap();
 
+  /** Same as the maps above but with compact fixed width entries */
+  public DBMapMutationSet getAddressHistoryCompactMap();
+  public DBMapMutationSet getTransactionBlockCompactMap();
+
   public DBMap getUtxoNodeMap();
 
   public ChainHash getBlockHashAtHeight(int height);
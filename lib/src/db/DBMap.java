@@ -3,9 +3,16 @@ package snowblossom.lib.db;
 import com.google.protobuf.ByteString;
 import duckutil.TimeRecord;
 
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.List;
+import snowblossom.lib.trie.ByteStringComparator;
 
 public abstract class DBMap
 {
@@ -27,6 +34,22 @@ public abstract class DBMap
     throw new RuntimeException("NOT IMPLEMENTED");
   }
 
+  /** 
+   * Get a number of keys at once.  Implementing class should override
+   * this if they have something better to do.
+   * @return map of key to value, keys not found are left out
+   */
+  public Map<ByteString, ByteString> getAll(Collection<ByteString> keys)
+  {
+    HashMap<ByteString, ByteString> map = new HashMap<>();
+    for(ByteString key : keys)
+    {
+      ByteString value = get(key);
+      if (value != null) map.put(key, value);
+    }
+    return map;
+  }
+
   public boolean containsKey(ByteString key)
   {
     return get(key) != null;
@@ -40,6 +63,43 @@ public abstract class DBMap
     throw new RuntimeException("NOT IMPLEMENTED");
   }
 
+  /**
+   * Walk the entries with keys starting with prefix, in key order.
+   * The entry keys have the prefix included, like getByPrefix.
+   * Implementing class should override this, as this one loads everything with getByPrefix.
+   * @param resume_token from a previous cursor on the same prefix, or null to start at the beginning
+   */
+  public DBCursor<Map.Entry<ByteString, ByteString>> openCursor(ByteString prefix, ByteString resume_token)
+  {
+    TreeMap<ByteString, ByteString> sorted = new TreeMap<>(new ByteStringComparator());
+    sorted.putAll(getByPrefix(prefix, Integer.MAX_VALUE - 1));
+
+    NavigableMap<ByteString, ByteString> rest = sorted;
+    if ((resume_token != null) && (resume_token.size() > 0))
+    {
+      rest = sorted.tailMap(prefix.concat(resume_token), false);
+    }
+    final Iterator<Map.Entry<ByteString, ByteString>> it = rest.entrySet().iterator();
+    final ByteString start_token = resume_token;
+    final int prefix_size = prefix.size();
+
+    return new DBCursor<Map.Entry<ByteString, ByteString>>()
+    {
+      ByteString token = start_token;
+
+      public boolean hasNext() { return it.hasNext(); }
+
+      public Map.Entry<ByteString, ByteString> next()
+      {
+        Map.Entry<ByteString, ByteString> e = it.next();
+        token = e.getKey().substring(prefix_size);
+        return new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue());
+      }
+
+      public ByteString getResumeToken() { return token; }
+    };
+  }
+
   /** Implementing class should override this if they have something better to do */
   public void putAll(SortedMap<ByteString, ByteString> m)
   {
@@ -4,8 +4,11 @@ import com.google.protobuf.ByteString;
 import duckutil.TimeRecord;
 
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.List;
 import com.google.common.collect.TreeMultimap;
 import snowblossom.lib.trie.ByteStringComparator;
@@ -38,6 +41,50 @@ public abstract class DBMapMutationSet
 
   public abstract List<ByteString> getSet(ByteString key, int max_reply);
 
+  /**
+   * Walk the values for key in order.  The resume token is the last value returned.
+   * Override this if the DB can do something better, as this one loads everything with getSet.
+   * @param resume_token from a previous cursor on the same key, or null to start at the beginning
+   */
+  public DBCursor<ByteString> openCursor(ByteString key, ByteString resume_token)
+  {
+    TreeSet<ByteString> sorted = new TreeSet<>(new ByteStringComparator());
+    sorted.addAll(getSet(key, Integer.MAX_VALUE - 1));
+
+    NavigableSet<ByteString> rest = sorted;
+    if ((resume_token != null) && (resume_token.size() > 0))
+    {
+      rest = sorted.tailSet(resume_token, false);
+    }
+    final Iterator<ByteString> it = rest.iterator();
+    final ByteString start_token = resume_token;
+
+    return new DBCursor<ByteString>()
+    {
+      ByteString token = start_token;
+
+      public boolean hasNext() { return it.hasNext(); }
+
+      public ByteString next()
+      {
+        token = it.next();
+        return token;
+      }
+
+      public ByteString getResumeToken() { return token; }
+    };
+  }
+
+  /**
+   * Walk every key and value in the set, in order.  For maintenance like
+   * migrations, so only needed where the keys are all key_len long.
+   * @param resume_token from a previous scan cursor, or null to start at the beginning
+   */
+  public DBCursor<Map.Entry<ByteString, ByteString>> openScanCursor(int key_len, ByteString resume_token)
+  {
+    throw new RuntimeException("NOT IMPLEMENTED");
+  }
+
   public abstract void remove(ByteString key, ByteString value);
 
   /** Override this if the DB can do something better */
@@ -4,11 +4,14 @@ import com.google.protobuf.ByteString;
 import duckutil.Config;
 import snowblossom.lib.ChainHash;
 import snowblossom.lib.DaemonThreadFactory;
+import snowblossom.lib.db.segment.SegmentDBMap;
 import snowblossom.proto.Block;
 import snowblossom.proto.BlockSummary;
 import snowblossom.proto.Transaction;
 
+import java.io.File;
 import java.nio.ByteBuffer;
+import java.util.SortedMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -22,16 +25,72 @@ public abstract class DBProvider
 
   protected Config config;
 
+  private SegmentDBMap block_segment_map;
+
   public DBProvider(Config config)
   {
+    this.config = config;
   }
 
 
   public void close()
+  {
+    if (block_segment_map != null) block_segment_map.close();
+  }
+
+  /**
+   * Start collecting writes made by this thread into a single batch.
+   * Until commitBatch() they are only visible to reads on this thread.
+   * @return false if this provider can't batch, in which case writes just go through as normal
+   */
+  public boolean beginBatch()
+  {
+    return false;
+  }
+
+  /** Write out the batch started on this thread, if any */
+  public void commitBatch()
+  {
+  }
+
+  /** Throw away the batch started on this thread, if any */
+  public void abortBatch()
   {
   }
 
+  /**
+   * Adds a large sorted run of entries to a map in one go, for filling a map from
+   * something like a snapshot.  Providers that can build files to hand straight to their
+   * store should override this.  This one is just putAll().
+   * Not part of any batch, the entries are in once this returns.
+   * @param entries sorted with ByteStringComparator
+   */
+  public void bulkLoad(DBMap map, SortedMap<ByteString, ByteString> entries)
+  {
+    map.putAll(entries);
+  }
+
   public abstract DBMap openMap(String name) throws Exception;
+
+  /**
+   * Opens the map for full blocks.  If block_segment_path is set, the blocks go
+   * in append only segment files there and only their index is kept in this provider.
+   */
+  public synchronized DBMap openBlockMap(String name) throws Exception
+  {
+    if ((config == null) || (!config.isSet("block_segment_path"))) return openMap(name);
+
+    if (block_segment_map == null)
+    {
+      long segment_mb = Math.min(1024, config.getIntWithDefault("block_segment_mb", 256));
+      block_segment_map = new SegmentDBMap(
+        new File(config.get("block_segment_path")),
+        openMap(name + "_idx"),
+        segment_mb * 1048576L);
+    }
+    return block_segment_map;
+  }
+
   public abstract DBMapMutationSet openMutationMapSet(String name) throws Exception;
 
 }
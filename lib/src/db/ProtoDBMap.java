@@ -2,6 +2,7 @@ package snowblossom.lib.db;
 
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.google.protobuf.Parser;
@@ -46,7 +47,7 @@ public class ProtoDBMap<M extends Message>
 
     try
     {
-      return parser.parseFrom(bs);
+      return parse(parser, bs);
     }
     catch(InvalidProtocolBufferException e)
     {
@@ -64,7 +65,7 @@ public class ProtoDBMap<M extends Message>
     {
       try
       {
-        m.put(me.getKey(), parser.parseFrom(me.getValue()));
+        m.put(me.getKey(), parse(parser, me.getValue()));
       }
       catch(InvalidProtocolBufferException e)
       {
@@ -85,7 +86,7 @@ public class ProtoDBMap<M extends Message>
       ByteString value = inner.get(bs);
       try
       {
-        list.add( parser.parseFrom(value) );
+        list.add( parse(parser, value) );
       }
       catch(InvalidProtocolBufferException e)
       {
@@ -109,4 +110,17 @@ public class ProtoDBMap<M extends Message>
     }
     inner.putAll(sorted);
   }
+
+  /**
+   * Parses a value read from a DBMap.  The bytes fields of the result point
+   * into the value rather than being copied out of it, which is safe since
+   * nothing ever changes the arrays behind those values.
+   */
+  public static <T> T parse(Parser<T> parser, ByteString bs)
+    throws InvalidProtocolBufferException
+  {
+    CodedInputStream in = bs.newCodedInput();
+    in.enableAliasing(true);
+    return parser.parseFrom(in);
+  }
 } 
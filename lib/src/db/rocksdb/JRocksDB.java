@@ -1,19 +1,44 @@
 package snowblossom.lib.db.rocksdb;
 
+import com.google.protobuf.ByteString;
 import duckutil.Config;
+import snowblossom.lib.Globals;
 import snowblossom.lib.db.DBProvider;
 import snowblossom.lib.db.DBMap;
 import snowblossom.lib.db.DBMapMutationSet;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.ColumnFamilyDescriptor;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.ColumnFamilyOptions;
+import org.rocksdb.CompressionType;
+import org.rocksdb.DBOptions;
+import org.rocksdb.EnvOptions;
 import org.rocksdb.FlushOptions;
+import org.rocksdb.IngestExternalFileOptions;
 import org.rocksdb.Options;
+import org.rocksdb.ReadOptions;
 import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.RocksObject;
+import org.rocksdb.SstFileWriter;
+import org.rocksdb.WriteBatchWithIndex;
 import org.rocksdb.WriteOptions;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
 public class JRocksDB extends DBProvider
 {
@@ -22,10 +47,34 @@ public class JRocksDB extends DBProvider
   private RocksDB shared_db;
   private Options options;
   private boolean use_separate_dbs;
+  private boolean use_column_families;
 
   private TreeMap<String, RocksDB> separate_db_map;
+  private TreeMap<String, ColumnFamilyHandle> column_family_map;
+
+  /** Maps that get their own tuned column family up front in db_column_families mode */
+  public static final ImmutableList<String> COLUMN_FAMILIES =
+    ImmutableList.of("block", "tx", "blocksummary", "u", "height", "addr_hist_2", "tx_blk_map",
+      "addr_hist_3", "tx_blk_map_2", "block_idx");
+
+  /**
+   * Mutation sets with fixed width keys and values.  In the shared and separate modes
+   * these get a short id on the front of their keys instead of their name.
+   * The ids start with a zero byte so they can't run into the name prefix of any other map.
+   */
+  public static final ImmutableMap<String, byte[]> COMPACT_SET_IDS = ImmutableMap.of(
+    "addr_hist_3", new byte[]{0x00, 0x01},
+    "tx_blk_map_2", new byte[]{0x00, 0x02});
 
   private WriteOptions sharedWriteOptions;
+  private ReadOptions sharedReadOptions;
+  private ReadOptions scanReadOptions;
+
+  // Native option objects, kept so close() can free them
+  private final ArrayList<RocksObject> native_options = new ArrayList<>();
+
+  // Batch being built up by each thread, see beginBatch()
+  private ThreadLocal<WriteBatchWithIndex> thread_batch = new ThreadLocal<>();
 
   private File base_path;
 
@@ -35,6 +84,12 @@ public class JRocksDB extends DBProvider
     super(config);
 
     use_separate_dbs=config.getBoolean("db_separate");
+    use_column_families=config.getBoolean("db_column_families");
+
+    if (use_separate_dbs && use_column_families)
+    {
+      throw new RuntimeException("db_separate and db_column_families can't both be set");
+    }
     
     config.require("db_path");
     
@@ -50,6 +105,10 @@ public class JRocksDB extends DBProvider
     sharedWriteOptions = new WriteOptions();
     sharedWriteOptions.setDisableWAL(false);
     sharedWriteOptions.setSync(false);
+    sharedReadOptions = new ReadOptions();
+    // Prefix extractors make plain iterators stop making sense past the end of the prefix
+    scanReadOptions = new ReadOptions();
+    scanReadOptions.setTotalOrderSeek(true);
 
 
     // Separate DBs should only be used when you don't care about syncing between
@@ -57,11 +116,20 @@ public class JRocksDB extends DBProvider
     // relative to each other it should be fine.
     // For example, in combined DBs if you write a to A then b to B, you will either get {}, {a}, or {a,b} 
     // on a bad shutdown.  If you use separate, you could very well get {b}.
+    //
+    // Column families keep the single db (and its atomic writes) but give each map
+    // its own keyspace and tuning.  The key layout is different from the other modes
+    // so an existing db can't be switched over.
 
     if (use_separate_dbs)
     {
       separate_db_map = new TreeMap<>();
     }
+    else if (use_column_families)
+    {
+      column_family_map = new TreeMap<>();
+      shared_db = openRocksDBColumnFamilies(path);
+    }
     else
     {
       shared_db = openRocksDB(path);
@@ -73,7 +141,7 @@ public class JRocksDB extends DBProvider
     throws Exception
   {
 
-    Options options = new Options();
+    Options options = keep(new Options());
 
     options.setIncreaseParallelism(16);
     options.setCreateIfMissing(true);
@@ -81,17 +149,312 @@ public class JRocksDB extends DBProvider
     options.setKeepLogFileNum(5);
     //options.setAllowMmapWrites(true);
 
+    // Bloom filters so that lookups of keys that aren't there (which is most
+    // of what peers ask about) can usually be answered without reading the disk
+    BlockBasedTableConfig table = new BlockBasedTableConfig();
+    table.setFilter(keep(new BloomFilter(10, false)));
+    options.setTableFormatConfig(table);
+
     return RocksDB.open(options, path);
   }
 
+  protected RocksDB openRocksDBColumnFamilies(String path)
+    throws Exception
+  {
+    DBOptions options = keep(new DBOptions());
+
+    options.setIncreaseParallelism(16);
+    options.setCreateIfMissing(true);
+    options.setCreateMissingColumnFamilies(true);
+    options.setAllowMmapReads(true);
+    options.setKeepLogFileNum(5);
+
+    // Have to open every family that is already there, not just the ones we know about
+    TreeSet<String> names = new TreeSet<>();
+    names.addAll(COLUMN_FAMILIES);
+    try(Options list_options = new Options())
+    {
+      for(byte[] b : RocksDB.listColumnFamilies(list_options, path))
+      {
+        names.add(new String(b));
+      }
+    }
+    catch(RocksDBException e)
+    {
+      // New db, nothing there yet
+    }
+    names.remove(new String(RocksDB.DEFAULT_COLUMN_FAMILY));
+
+    ArrayList<String> name_list = new ArrayList<>();
+    ArrayList<ColumnFamilyDescriptor> descriptors = new ArrayList<>();
+
+    name_list.add(new String(RocksDB.DEFAULT_COLUMN_FAMILY));
+    descriptors.add(new ColumnFamilyDescriptor(RocksDB.DEFAULT_COLUMN_FAMILY, getColumnFamilyOptions("default")));
+    for(String name : names)
+    {
+      name_list.add(name);
+      descriptors.add(new ColumnFamilyDescriptor(name.getBytes(), getColumnFamilyOptions(name)));
+    }
+
+    ArrayList<ColumnFamilyHandle> handles = new ArrayList<>();
+    RocksDB db = RocksDB.open(options, path, descriptors, handles);
+
+    for(int i=0; i<name_list.size(); i++)
+    {
+      column_family_map.put(name_list.get(i), handles.get(i));
+    }
+    logger.info(String.format("Opened RocksDB column families: %s", name_list));
+
+    return db;
+  }
+
+  /**
+   * Per map tuning for column family mode.
+   * - u and blocksummary are small values looked up by hash all the time,
+   *   so small blocks, bloom filters and a good sized cache
+   * - block is big values that are mostly written once and read rarely,
+   *   so big blocks, compression and not much cache
+   * - the mutation sets are read by scanning everything under one key,
+   *   so they get a prefix extractor on that key
+   */
+  protected ColumnFamilyOptions getColumnFamilyOptions(String name)
+  {
+    ColumnFamilyOptions cf_options = keep(new ColumnFamilyOptions());
+    BlockBasedTableConfig table = new BlockBasedTableConfig();
+
+    table.setCacheIndexAndFilterBlocks(true);
+    table.setPinL0FilterAndIndexBlocksInCache(true);
+
+    if (name.equals("u"))
+    {
+      // trie nodes are keyed by hash and mostly hashes inside, so they don't compress
+      table.setBlockSize(4096);
+      table.setFilter(keep(new BloomFilter(10, false)));
+      table.setBlockCacheSize(256L * 1048576L);
+      cf_options.setCompressionType(CompressionType.NO_COMPRESSION);
+      cf_options.setWriteBufferSize(64L * 1048576L);
+    }
+    else if (name.equals("blocksummary") || name.equals("height") || name.equals("block_idx"))
+    {
+      table.setBlockSize(4096);
+      table.setFilter(keep(new BloomFilter(10, false)));
+      table.setBlockCacheSize(32L * 1048576L);
+      cf_options.setCompressionType(CompressionType.LZ4_COMPRESSION);
+    }
+    else if (name.equals("block"))
+    {
+      table.setBlockSize(65536);
+      table.setFilter(keep(new BloomFilter(10, false)));
+      table.setBlockCacheSize(16L * 1048576L);
+      cf_options.setCompressionType(CompressionType.LZ4_COMPRESSION);
+      cf_options.setWriteBufferSize(64L * 1048576L);
+    }
+    else if (name.equals("tx"))
+    {
+      table.setBlockSize(16384);
+      table.setFilter(keep(new BloomFilter(10, false)));
+      table.setBlockCacheSize(64L * 1048576L);
+      cf_options.setCompressionType(CompressionType.LZ4_COMPRESSION);
+    }
+    else if (name.equals("addr_hist_2") || name.equals("addr_hist_3"))
+    {
+      table.setBlockSize(16384);
+      table.setFilter(keep(new BloomFilter(10, false)));
+      table.setWholeKeyFiltering(false);
+      table.setBlockCacheSize(32L * 1048576L);
+      cf_options.useFixedLengthPrefixExtractor(Globals.ADDRESS_SPEC_HASH_LEN);
+      cf_options.setCompressionType(CompressionType.LZ4_COMPRESSION);
+    }
+    else if (name.equals("tx_blk_map") || name.equals("tx_blk_map_2"))
+    {
+      table.setBlockSize(16384);
+      table.setFilter(keep(new BloomFilter(10, false)));
+      table.setWholeKeyFiltering(false);
+      table.setBlockCacheSize(32L * 1048576L);
+      cf_options.useFixedLengthPrefixExtractor(Globals.BLOCKCHAIN_HASH_LEN);
+      cf_options.setCompressionType(CompressionType.LZ4_COMPRESSION);
+    }
+    else
+    {
+      table.setBlockSize(16384);
+      table.setBlockCacheSize(8L * 1048576L);
+      cf_options.setCompressionType(CompressionType.LZ4_COMPRESSION);
+    }
+
+    cf_options.setTableFormatConfig(table);
+    return cf_options;
+  }
+
+  /**
+   * Options only need to last until the db or family is open, since rocks copies them,
+   * but the java objects hold native memory until closed
+   */
+  private <T extends RocksObject> T keep(T obj)
+  {
+    synchronized(native_options)
+    {
+      native_options.add(obj);
+    }
+    return obj;
+  }
+
+  private synchronized ColumnFamilyHandle getColumnFamily(String name)
+    throws RocksDBException
+  {
+    ColumnFamilyHandle cf = column_family_map.get(name);
+    if (cf == null)
+    {
+      cf = shared_db.createColumnFamily(new ColumnFamilyDescriptor(name.getBytes(), getColumnFamilyOptions(name)));
+      column_family_map.put(name, cf);
+    }
+    return cf;
+  }
+
   protected WriteOptions getWriteOption()
   {
     return sharedWriteOptions;
   }
 
+  protected ReadOptions getReadOption()
+  {
+    return sharedReadOptions;
+  }
+
+  /**
+   * The batch is indexed so that reads on the same thread see what it has written so far,
+   * which things like the trie and updateHeights rely on.
+   * With separate dbs a batch can't cover all the maps, so then there is no batching.
+   */
+  @Override
+  public boolean beginBatch()
+  {
+    if (use_separate_dbs) return false;
+    if (thread_batch.get() != null)
+    {
+      throw new IllegalStateException("Batch already open on this thread");
+    }
+
+    thread_batch.set(new WriteBatchWithIndex(true));
+    return true;
+  }
+
+  @Override
+  public void commitBatch()
+  {
+    WriteBatchWithIndex batch = thread_batch.get();
+    if (batch == null) return;
+    thread_batch.remove();
+
+    try
+    {
+      shared_db.write(sharedWriteOptions, batch);
+    }
+    catch(RocksDBException e)
+    {
+      throw new RuntimeException(e);
+    }
+    finally
+    {
+      batch.close();
+    }
+  }
+
+  @Override
+  public void abortBatch()
+  {
+    WriteBatchWithIndex batch = thread_batch.get();
+    if (batch == null) return;
+    thread_batch.remove();
+    batch.close();
+  }
+
+  /**
+   * @return the batch open on this thread or null
+   */
+  protected WriteBatchWithIndex getBatch()
+  {
+    return thread_batch.get();
+  }
+
+  /**
+   * An iterator over db that also sees this thread's open batch
+   */
+  protected RocksIterator newIterator(RocksDB db, ColumnFamilyHandle cf)
+  {
+    WriteBatchWithIndex batch = thread_batch.get();
+    if (batch != null)
+    {
+      return batch.newIteratorWithBase(cf, db.newIterator(cf));
+    }
+    return db.newIterator(cf);
+  }
+
+  /**
+   * An iterator for walking a whole map, across prefixes.
+   * Doesn't see any open batch.
+   */
+  protected RocksIterator newScanIterator(RocksDB db, ColumnFamilyHandle cf)
+  {
+    return db.newIterator(cf, scanReadOptions);
+  }
+
+  /**
+   * Writes the entries out as an sst file and has RocksDB take in the whole file,
+   * which skips the log, the memtable and most of the compaction normal writes go through.
+   */
+  @Override
+  public void bulkLoad(DBMap map, SortedMap<ByteString, ByteString> entries)
+  {
+    if ((!(map instanceof RocksDBMap)) || (entries.size() == 0) || (thread_batch.get() != null))
+    {
+      super.bulkLoad(map, entries);
+      return;
+    }
+    RocksDBMap rocks_map = (RocksDBMap) map;
+
+    File dir = new File(base_path, "ingest");
+    dir.mkdirs();
+    File sst = new File(dir, String.format("bulk-%d-%d.sst", Thread.currentThread().getId(), System.nanoTime()));
+
+    try
+    {
+      try(EnvOptions env_options = new EnvOptions();
+        Options sst_options = new Options();
+        SstFileWriter writer = new SstFileWriter(env_options, sst_options))
+      {
+        writer.open(sst.getPath());
+        for(Map.Entry<ByteString, ByteString> me : entries.entrySet())
+        {
+          writer.put(RocksUtil.concat(rocks_map.prefix, me.getKey()), RocksUtil.getArray(me.getValue()));
+        }
+        writer.finish();
+      }
+
+      try(IngestExternalFileOptions ingest_options = new IngestExternalFileOptions())
+      {
+        ingest_options.setMoveFiles(true);
+        rocks_map.db.ingestExternalFile(rocks_map.cf, Collections.singletonList(sst.getPath()), ingest_options);
+      }
+    }
+    catch(RocksDBException e)
+    {
+      throw new RuntimeException(e);
+    }
+    finally
+    {
+      // Already gone if it was moved in
+      sst.delete();
+    }
+  }
+
   @Override
   public synchronized DBMapMutationSet openMutationMapSet(String name) throws Exception
   {
+    if (use_column_families)
+    {
+      return new RocksDBMapMutationSet(this, shared_db, getColumnFamily(name), new byte[0], COMPACT_SET_IDS.containsKey(name));
+    }
+
     RocksDB db = null;
     if (use_separate_dbs)
     {
@@ -108,12 +471,21 @@ public class JRocksDB extends DBProvider
       db = shared_db;
     }
 
+    if (COMPACT_SET_IDS.containsKey(name))
+    {
+      return new RocksDBMapMutationSet(this, db, db.getDefaultColumnFamily(), COMPACT_SET_IDS.get(name), true);
+    }
     return new RocksDBMapMutationSet(this, db, name);
   }
 
   @Override
   public synchronized DBMap openMap(String name) throws Exception
   {
+    if (use_column_families)
+    {
+      return new RocksDBMap(this, shared_db, getColumnFamily(name), ByteString.EMPTY);
+    }
+
     RocksDB db = null;
     if (use_separate_dbs)
     {
@@ -139,11 +511,17 @@ public class JRocksDB extends DBProvider
     super.close();
 
     logger.info("RocksDB flush started");
-    try
+    try(FlushOptions fl = new FlushOptions())
     {
-      FlushOptions fl = new FlushOptions();
       fl.setWaitForFlush(true);
-      if (shared_db != null)
+      if (column_family_map != null)
+      {
+        for(ColumnFamilyHandle cf : column_family_map.values())
+        {
+          shared_db.flush(fl, cf);
+        }
+      }
+      else if (shared_db != null)
       {
         shared_db.flush(fl);
       }
@@ -162,6 +540,14 @@ public class JRocksDB extends DBProvider
 
     logger.info("RocksDB flush completed");
 
+    synchronized(native_options)
+    {
+      for(RocksObject obj : native_options)
+      {
+        obj.close();
+      }
+      native_options.clear();
+    }
   }
 
 }
@@ -0,0 +1,93 @@
+package snowblossom.lib.db.rocksdb;
+
+import com.google.protobuf.ByteString;
+import org.rocksdb.RocksIterator;
+import snowblossom.lib.db.DBCursor;
+
+import java.util.NoSuchElementException;
+
+/**
+ * DBCursor over a RocksIterator.  Only the current entry is held in memory.
+ * The resume token is the part of the db key after the scan prefix.
+ */
+public abstract class RocksDBCursor<T> extends DBCursor<T>
+{
+  private final RocksIterator it;
+  private final ByteString scan_prefix;
+  private ByteString resume_token;
+
+  // key the iterator is on, null once past the end of the prefix
+  private ByteString curr_key;
+
+  /**
+   * @param scan_prefix full db key prefix to walk
+   * @param resume_token where to carry on from, null or empty to start at the beginning
+   */
+  public RocksDBCursor(RocksIterator it, ByteString scan_prefix, ByteString resume_token)
+  {
+    this.it = it;
+    this.scan_prefix = scan_prefix;
+    this.resume_token = resume_token;
+
+    if ((resume_token == null) || (resume_token.size() == 0))
+    {
+      it.seek(RocksUtil.getArray(scan_prefix));
+    }
+    else
+    {
+      it.seek(RocksUtil.concat(scan_prefix, resume_token));
+      // Already returned that one
+      if (it.isValid() && RocksUtil.wrap(it.key()).equals(scan_prefix.concat(resume_token)))
+      {
+        it.next();
+      }
+    }
+    loadKey();
+  }
+
+  private void loadKey()
+  {
+    curr_key = null;
+    if (!it.isValid()) return;
+
+    ByteString k = RocksUtil.wrap(it.key());
+    if (k.startsWith(scan_prefix)) curr_key = k;
+  }
+
+  /**
+   * @param suffix the db key after the scan prefix
+   */
+  protected abstract T makeEntry(ByteString suffix, ByteString value);
+
+  @Override
+  public boolean hasNext()
+  {
+    return curr_key != null;
+  }
+
+  @Override
+  public T next()
+  {
+    if (!hasNext()) throw new NoSuchElementException();
+
+    ByteString suffix = curr_key.substring(scan_prefix.size());
+    T e = makeEntry(suffix, RocksUtil.wrap(it.value()));
+    resume_token = suffix;
+    it.next();
+    loadKey();
+    return e;
+  }
+
+  @Override
+  public ByteString getResumeToken()
+  {
+    return resume_token;
+  }
+
+  @Override
+  public void close()
+  {
+    it.close();
+  }
+
+}
@@ -1,12 +1,20 @@
 package snowblossom.lib.db.rocksdb;
 
 import com.google.protobuf.ByteString;
+import snowblossom.lib.db.DBCursor;
 import snowblossom.lib.db.DBMap;
+import org.rocksdb.ColumnFamilyHandle;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
 import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteBatchWithIndex;
 import org.rocksdb.RocksIterator;
+import org.rocksdb.WBWIRocksIterator;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.List;
@@ -17,29 +25,48 @@ import snowblossom.lib.db.DBTooManyResultsException;
 public class RocksDBMap extends DBMap
 {
   RocksDB db;
+  ColumnFamilyHandle cf;
   ByteString prefix;
   JRocksDB jdb;
 
+  private static final byte[] NO_VALUE = new byte[0];
+
+  /**
+   * A map sharing the default column family, told apart by a name prefix on the keys
+   */
   public RocksDBMap(JRocksDB jdb, RocksDB db, String name)
+  {
+    this(jdb, db, db.getDefaultColumnFamily(), ByteString.copyFrom((name + "/").getBytes()));
+  }
+
+  public RocksDBMap(JRocksDB jdb, RocksDB db, ColumnFamilyHandle cf, ByteString prefix)
   {
     this.db = db;
     this.jdb = jdb;
-    String prefix_str = name + "/";
-
-    this.prefix = ByteString.copyFrom(prefix_str.getBytes());
+    this.cf = cf;
+    this.prefix = prefix;
   }
 
   public ByteString get(ByteString key)
   {
-    ByteString key_str = prefix.concat(key);
+    byte[] key_bytes = RocksUtil.concat(prefix, key);
 
     try
     {
 
-      byte[] r = db.get(key_str.toByteArray());
-      if (r == null) return null;
+      byte[] r;
+      WriteBatchWithIndex batch = jdb.getBatch();
+      if (batch != null)
+      {
+        r = batch.getFromBatchAndDB(db, cf, jdb.getReadOption(), key_bytes);
+      }
+      else
+      {
+        r = db.get(cf, key_bytes);
+      }
 
-      return ByteString.copyFrom(r);
+      // The array is ours alone, so no need to copy it again
+      return RocksUtil.wrap(r);
 
     }
     catch(RocksDBException e)
@@ -48,12 +75,109 @@ public class RocksDBMap extends DBMap
     }
   }
 
+  @Override
+  public boolean containsKey(ByteString key)
+  {
+    // The open batch might have it when the db doesn't, so do the full read
+    if (jdb.getBatch() != null) return get(key) != null;
+
+    byte[] key_bytes = RocksUtil.concat(prefix, key);
+    try
+    {
+      // The bloom filters rule out nearly every missing key without reading any blocks
+      if (!db.keyMayExist(cf, key_bytes, new StringBuilder())) return false;
+
+      // Might be there, so check for real but don't bring the value back
+      return db.get(cf, jdb.getReadOption(), key_bytes, NO_VALUE) != RocksDB.NOT_FOUND;
+    }
+    catch(RocksDBException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public Map<ByteString, ByteString> getAll(Collection<ByteString> keys)
+  {
+    ArrayList<ByteString> key_list = new ArrayList<>(keys);
+    ArrayList<byte[]> db_keys = new ArrayList<>(key_list.size());
+    ArrayList<ColumnFamilyHandle> cf_list = new ArrayList<>(key_list.size());
+    for(ByteString key : key_list)
+    {
+      db_keys.add(RocksUtil.concat(prefix, key));
+      cf_list.add(cf);
+    }
+
+    try
+    {
+      // The result is keyed by the same array objects we pass in
+      Map<byte[], byte[]> r = db.multiGet(cf_list, db_keys);
+
+      // multiGet can't see an open batch, so put what it has over the top
+      WriteBatchWithIndex batch = jdb.getBatch();
+      WBWIRocksIterator batch_it = null;
+      if ((batch != null) && (batch.count() > 0)) batch_it = batch.newIterator(cf);
+
+      try
+      {
+        Map<ByteString, ByteString> map = new HashMap<>(key_list.size() * 2, 0.75f);
+        for(int i=0; i<key_list.size(); i++)
+        {
+          byte[] v = r.get(db_keys.get(i));
+          if (batch_it != null) v = overlayBatch(batch, batch_it, db_keys.get(i), v);
+          if (v != null)
+          {
+            map.put(key_list.get(i), RocksUtil.wrap(v));
+          }
+        }
+        return map;
+      }
+      finally
+      {
+        if (batch_it != null) batch_it.close();
+      }
+    }
+    catch(RocksDBException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @param db_value what the db has for key, or null
+   * @return the value for key once the batch is applied over the db
+   */
+  private byte[] overlayBatch(WriteBatchWithIndex batch, WBWIRocksIterator batch_it, byte[] key, byte[] db_value)
+    throws RocksDBException
+  {
+    batch_it.seek(key);
+    if (!batch_it.isValid()) return db_value;
+
+    WBWIRocksIterator.WriteEntry entry = batch_it.entry();
+    if (!Arrays.equals(entry.getKey().data(), key)) return db_value;
+
+    WBWIRocksIterator.WriteType type = entry.getType();
+    if (type == WBWIRocksIterator.WriteType.PUT) return entry.getValue().data();
+    if ((type == WBWIRocksIterator.WriteType.DELETE) || (type == WBWIRocksIterator.WriteType.SINGLE_DELETE)) return null;
+
+    // Anything else, let rocks work it out
+    return batch.getFromBatchAndDB(db, cf, jdb.getReadOption(), key);
+  }
+
   public void put(ByteString key, ByteString value)
   {
     try
     {
-      ByteString key_str = prefix.concat(key);
-      db.put(jdb.getWriteOption(), key_str.toByteArray(), value.toByteArray());
+      byte[] key_bytes = RocksUtil.concat(prefix, key);
+      WriteBatchWithIndex batch = jdb.getBatch();
+      if (batch != null)
+      {
+        batch.put(cf, key_bytes, RocksUtil.getArray(value));
+      }
+      else
+      {
+        db.put(cf, jdb.getWriteOption(), key_bytes, RocksUtil.getArray(value));
+      }
     }
     catch(RocksDBException e)
     {
@@ -66,8 +190,16 @@ public class RocksDBMap extends DBMap
   {
     try
     {
-      ByteString key_str = prefix.concat(key);
-      db.delete(jdb.getWriteOption(), key_str.toByteArray());
+      byte[] key_bytes = RocksUtil.concat(prefix, key);
+      WriteBatchWithIndex batch = jdb.getBatch();
+      if (batch != null)
+      {
+        batch.delete(cf, key_bytes);
+      }
+      else
+      {
+        db.delete(cf, jdb.getWriteOption(), key_bytes);
+      }
     }
     catch(RocksDBException e)
     {
@@ -78,18 +210,29 @@ public class RocksDBMap extends DBMap
   @Override
   public void putAll(SortedMap<ByteString, ByteString> m)
   {
-    try(WriteBatch batch = new WriteBatch())
+    try
     {
+      WriteBatchWithIndex open_batch = jdb.getBatch();
+      if (open_batch != null)
+      {
+        for(Map.Entry<ByteString, ByteString> e : m.entrySet())
+        {
+          open_batch.put(cf, RocksUtil.concat(prefix, e.getKey()), RocksUtil.getArray(e.getValue()));
+        }
+        return;
+      }
 
-      for(Map.Entry<ByteString, ByteString> e : m.entrySet())
+      try(WriteBatch batch = new WriteBatch())
       {
-        ByteString key_str = prefix.concat(e.getKey());
-        batch.put(key_str.toByteArray(), e.getValue().toByteArray());
 
-      }
+        for(Map.Entry<ByteString, ByteString> e : m.entrySet())
+        {
+          batch.put(cf, RocksUtil.concat(prefix, e.getKey()), RocksUtil.getArray(e.getValue()));
+        }
 
-      db.write(jdb.getWriteOption(), batch);
+        db.write(jdb.getWriteOption(), batch);
 
+      }
     }
     catch(RocksDBException e)
     {
@@ -104,7 +247,7 @@ public class RocksDBMap extends DBMap
     ByteString key_str = prefix.concat(key);
     LinkedList<ByteString> lst = new LinkedList<>();
 
-    try(RocksIterator it = db.newIterator())
+    try(RocksIterator it = jdb.newIterator(db, cf))
     {
       it.seek(key_str.toByteArray());
       
@@ -113,7 +256,7 @@ public class RocksDBMap extends DBMap
 
       for(int i=0; i<count; i++)
       {
-        lst.add(ByteString.copyFrom(it.key()).substring(prefix.size()));
+        lst.add(RocksUtil.wrap(it.key()).substring(prefix.size()));
         it.next();
         if (it.isValid()) it.seekToFirst(); //wrap around
       }
@@ -124,7 +267,7 @@ public class RocksDBMap extends DBMap
         // First element covered by section above, so move then add
         it.prev();
         if (!it.isValid()) it.seekToLast();
-        lst.add(ByteString.copyFrom(it.key()).substring(prefix.size()));
+        lst.add(RocksUtil.wrap(it.key()).substring(prefix.size()));
       }
 
       // This is really fun in the degenerate case where the map is shorter than count and we keep wraping.
@@ -144,7 +287,7 @@ public class RocksDBMap extends DBMap
 		Map<ByteString, ByteString> map = new HashMap<>(16,0.5f);
 
     int count = 0;
-    RocksIterator it = db.newIterator();
+    RocksIterator it = jdb.newIterator(db, cf);
 
     try
     {
@@ -152,12 +295,12 @@ public class RocksDBMap extends DBMap
 
       while(it.isValid())
       {
-        ByteString curr_key = ByteString.copyFrom(it.key());
+        ByteString curr_key = RocksUtil.wrap(it.key());
         if (!curr_key.startsWith(key_str)) break;
 
         ByteString k = curr_key.substring(prefix.size());
         
-       	map.put(k, ByteString.copyFrom(it.value()));
+       	map.put(k, RocksUtil.wrap(it.value()));
 				count++;
 
         if (count > max_reply) throw new DBTooManyResultsException();
@@ -174,4 +317,16 @@ public class RocksDBMap extends DBMap
 
   }
 
+  @Override
+  public DBCursor<Map.Entry<ByteString, ByteString>> openCursor(final ByteString key, ByteString resume_token)
+  {
+    return new RocksDBCursor<Map.Entry<ByteString, ByteString>>(jdb.newIterator(db, cf), prefix.concat(key), resume_token)
+    {
+      protected Map.Entry<ByteString, ByteString> makeEntry(ByteString suffix, ByteString value)
+      {
+        return new AbstractMap.SimpleImmutableEntry<>(key.concat(suffix), value);
+      }
+    };
+  }
+
 }
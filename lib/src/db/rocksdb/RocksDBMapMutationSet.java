@@ -2,13 +2,17 @@ package snowblossom.lib.db.rocksdb;
 
 import com.google.protobuf.ByteString;
 import com.google.common.collect.TreeMultimap;
+import snowblossom.lib.db.DBCursor;
 import snowblossom.lib.db.DBMapMutationSet;
 import snowblossom.lib.db.DBTooManyResultsException;
+import org.rocksdb.ColumnFamilyHandle;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
 import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteBatchWithIndex;
 import org.rocksdb.RocksIterator;
 
+import java.util.AbstractMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -19,49 +23,51 @@ public class RocksDBMapMutationSet extends DBMapMutationSet
 {
   JRocksDB jdb;
   RocksDB db;
-  String name;
+  ColumnFamilyHandle cf;
   byte[] name_bytes;
   byte sep = '/';
+  boolean fixed_width;
+
+  /**
+   * A set sharing the default column family, told apart by the name on the front of the keys
+   */
   public RocksDBMapMutationSet(JRocksDB jdb, RocksDB db, String name)
+  {
+    this(jdb, db, db.getDefaultColumnFamily(), name.getBytes());
+  }
+
+  public RocksDBMapMutationSet(JRocksDB jdb, RocksDB db, ColumnFamilyHandle cf, byte[] name_bytes)
+  {
+    this(jdb, db, cf, name_bytes, false);
+  }
+
+  /**
+   * @param fixed_width if every key is the same length, in which case the separator
+   * between key and value isn't needed and is left out
+   */
+  public RocksDBMapMutationSet(JRocksDB jdb, RocksDB db, ColumnFamilyHandle cf, byte[] name_bytes, boolean fixed_width)
   {
     this.db = db;
-    this.name = name;
     this.jdb = jdb;
-    name_bytes = name.getBytes();
+    this.cf = cf;
+    this.name_bytes = name_bytes;
+    this.fixed_width = fixed_width;
   }
 
-  private ByteString getDBKey(ByteString key, ByteString value)
+  private byte[] getDBKey(ByteString key, ByteString value)
   {
-		try
-		{
-      ByteString.Output out = ByteString.newOutput(100);
-      out.write(name_bytes);
-      out.write(key.toByteArray());
-      out.write(sep);	
-      out.write(value.toByteArray());
-      ByteString w = out.toByteString();
-      return w;
-    }
-    catch(java.io.IOException e)
-    {
-      throw new RuntimeException(e);
-    }
+    if (fixed_width) return RocksUtil.concat(name_bytes, key, value);
+    return RocksUtil.concat(name_bytes, key, sep, value);
   }
   private ByteString getDBKey(ByteString key)
   {
-    try
-    {
-      ByteString.Output out = ByteString.newOutput(100);
-      out.write(name_bytes);
-      out.write(key.toByteArray());
-      out.write(sep);
-      ByteString w = out.toByteString();
-      return w;
-    }
-    catch(java.io.IOException e)
-    {
-      throw new RuntimeException(e);
-    }
+    if (fixed_width) return RocksUtil.wrap(RocksUtil.concat(name_bytes, key, ByteString.EMPTY));
+
+    byte[] b = new byte[name_bytes.length + key.size() + 1];
+    System.arraycopy(name_bytes, 0, b, 0, name_bytes.length);
+    key.copyTo(b, name_bytes.length);
+    b[b.length - 1] = sep;
+    return RocksUtil.wrap(b);
   }
 
 
@@ -70,11 +76,19 @@ public class RocksDBMapMutationSet extends DBMapMutationSet
   {
     byte b[]=new byte[0];
 
-    ByteString w = getDBKey(key, value);
+    byte[] w = getDBKey(key, value);
   
     try
     {
-    	db.put(jdb.getWriteOption(), w.toByteArray(), b);
+      WriteBatchWithIndex batch = jdb.getBatch();
+      if (batch != null)
+      {
+        batch.put(cf, w, b);
+      }
+      else
+      {
+        db.put(cf, jdb.getWriteOption(), w, b);
+      }
 		}
     catch(RocksDBException e)
     {
@@ -86,17 +100,30 @@ public class RocksDBMapMutationSet extends DBMapMutationSet
   @Override
   public void addAll(TreeMultimap<ByteString, ByteString> map)
   {
-    try(WriteBatch batch = new WriteBatch())
+    byte b[]=new byte[0];
+    try
     {
-      byte b[]=new byte[0];
-
-      for(Map.Entry<ByteString, ByteString> me : map.entries())
+      WriteBatchWithIndex open_batch = jdb.getBatch();
+      if (open_batch != null)
       {
-        ByteString w = getDBKey(me.getKey(), me.getValue());
-        batch.put(w.toByteArray(), b);
+        for(Map.Entry<ByteString, ByteString> me : map.entries())
+        {
+          byte[] w = getDBKey(me.getKey(), me.getValue());
+          open_batch.put(cf, w, b);
+        }
+        return;
       }
 
-      db.write(jdb.getWriteOption(), batch);
+      try(WriteBatch batch = new WriteBatch())
+      {
+        for(Map.Entry<ByteString, ByteString> me : map.entries())
+        {
+          byte[] w = getDBKey(me.getKey(), me.getValue());
+          batch.put(cf, w, b);
+        }
+
+        db.write(jdb.getWriteOption(), batch);
+      }
     }
     catch(RocksDBException e)
     {
@@ -110,8 +137,16 @@ public class RocksDBMapMutationSet extends DBMapMutationSet
   {
 		try
 		{
-    	ByteString w = getDBKey(key, value);
-    	db.remove(jdb.getWriteOption(), w.toByteArray());
+    	byte[] w = getDBKey(key, value);
+      WriteBatchWithIndex batch = jdb.getBatch();
+      if (batch != null)
+      {
+        batch.delete(cf, w);
+      }
+      else
+      {
+        db.delete(cf, jdb.getWriteOption(), w);
+      }
 		}
     catch(RocksDBException e)
     {
@@ -126,13 +161,13 @@ public class RocksDBMapMutationSet extends DBMapMutationSet
 
     LinkedList<ByteString> set = new LinkedList<>();
     int count = 0;
-    try(RocksIterator it = db.newIterator())
+    try(RocksIterator it = jdb.newIterator(db, cf))
     {
-      it.seek(dbKey.toByteArray());
+      it.seek(RocksUtil.getArray(dbKey));
 
       while(it.isValid())
       {
-				ByteString curr_key = ByteString.copyFrom(it.key());
+				ByteString curr_key = RocksUtil.wrap(it.key());
         if (!curr_key.startsWith(dbKey)) break;
 
         ByteString v = curr_key.substring(dbKey.size());
@@ -149,5 +184,30 @@ public class RocksDBMapMutationSet extends DBMapMutationSet
 
   }
 
+  @Override
+  public DBCursor<ByteString> openCursor(ByteString key, ByteString resume_token)
+  {
+    return new RocksDBCursor<ByteString>(jdb.newIterator(db, cf), getDBKey(key), resume_token)
+    {
+      protected ByteString makeEntry(ByteString suffix, ByteString value)
+      {
+        return suffix;
+      }
+    };
+  }
+
+  @Override
+  public DBCursor<Map.Entry<ByteString, ByteString>> openScanCursor(final int key_len, ByteString resume_token)
+  {
+    final int skip = fixed_width ? 0 : 1;
+    return new RocksDBCursor<Map.Entry<ByteString, ByteString>>(jdb.newScanIterator(db, cf), ByteString.copyFrom(name_bytes), resume_token)
+    {
+      protected Map.Entry<ByteString, ByteString> makeEntry(ByteString suffix, ByteString value)
+      {
+        return new AbstractMap.SimpleImmutableEntry<>(suffix.substring(0, key_len), suffix.substring(key_len + skip));
+      }
+    };
+  }
+
 
 }
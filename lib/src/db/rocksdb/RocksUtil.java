@@ -0,0 +1,142 @@
+package snowblossom.lib.db.rocksdb;
+
+import com.google.protobuf.ByteOutput;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Byte handling for the RocksDB maps that avoids copies where it safely can.
+ *
+ * The JNI calls only take whole arrays, so every key has to be built into an
+ * array of exactly the right size.  These build that array in one copy and
+ * hand the arrays RocksDB returns straight to a ByteString without copying again.
+ *
+ * Arrays passed to wrap() must never be changed afterwards, and arrays from
+ * getArray() may be the backing store of a ByteString so must never be changed either.
+ */
+public class RocksUtil
+{
+  /**
+   * Returns a new array of prefix followed by key
+   */
+  public static byte[] concat(ByteString prefix, ByteString key)
+  {
+    if (prefix.size() == 0) return getArray(key);
+
+    byte[] b = new byte[prefix.size() + key.size()];
+    prefix.copyTo(b, 0);
+    key.copyTo(b, prefix.size());
+    return b;
+  }
+
+  /**
+   * Returns a new array of prefix, key, sep and value
+   */
+  public static byte[] concat(byte[] prefix, ByteString key, byte sep, ByteString value)
+  {
+    byte[] b = new byte[prefix.length + key.size() + 1 + value.size()];
+    int p = 0;
+    System.arraycopy(prefix, 0, b, p, prefix.length); p += prefix.length;
+    key.copyTo(b, p); p += key.size();
+    b[p] = sep; p++;
+    value.copyTo(b, p);
+    return b;
+  }
+
+  /**
+   * Returns a new array of prefix, key and value
+   */
+  public static byte[] concat(byte[] prefix, ByteString key, ByteString value)
+  {
+    byte[] b = new byte[prefix.length + key.size() + value.size()];
+    System.arraycopy(prefix, 0, b, 0, prefix.length);
+    key.copyTo(b, prefix.length);
+    value.copyTo(b, prefix.length + key.size());
+    return b;
+  }
+
+  /**
+   * Returns the contents of bs as an array.  When bs is just a whole array
+   * (like the result of toByteString() on a message or anything from wrap())
+   * that array is returned as is, without a copy.
+   */
+  public static byte[] getArray(ByteString bs)
+  {
+    if (bs.size() == 0) return EMPTY;
+
+    ArrayGrabber grabber = new ArrayGrabber();
+    try
+    {
+      UnsafeByteOperations.unsafeWriteTo(bs, grabber);
+    }
+    catch(IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+
+    byte[] b = grabber.getWholeArray();
+    if ((b != null) && (b.length == bs.size())) return b;
+
+    return bs.toByteArray();
+  }
+
+  /**
+   * Wraps an array we just got from RocksDB as a ByteString without copying it
+   */
+  public static ByteString wrap(byte[] b)
+  {
+    if (b == null) return null;
+    return UnsafeByteOperations.unsafeWrap(b);
+  }
+
+  private static final byte[] EMPTY = new byte[0];
+
+  /**
+   * Picks up the backing array if the ByteString is written out as a single
+   * whole array.  Anything else (ropes, substrings, direct buffers) gets copied
+   * by the caller instead.
+   */
+  private static class ArrayGrabber extends ByteOutput
+  {
+    private byte[] array;
+    private boolean whole = true;
+
+    public byte[] getWholeArray()
+    {
+      if (whole) return array;
+      return null;
+    }
+
+    private void other()
+    {
+      whole = false;
+    }
+
+    @Override
+    public void write(byte value) { other(); }
+
+    @Override
+    public void write(byte[] value, int offset, int length) { other(); }
+
+    @Override
+    public void writeLazy(byte[] value, int offset, int length)
+    {
+      if ((array != null) || (offset != 0) || (length != value.length))
+      {
+        other();
+        return;
+      }
+      array = value;
+    }
+
+    @Override
+    public void write(ByteBuffer value) { other(); }
+
+    @Override
+    public void writeLazy(ByteBuffer value) { other(); }
+  }
+
+}
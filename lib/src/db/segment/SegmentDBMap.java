@@ -0,0 +1,198 @@
+package snowblossom.lib.db.segment;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import snowblossom.lib.db.DBMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * A DBMap for big values that are written once and never changed, like blocks.
+ *
+ * Values are appended to segment files and read back through memory maps,
+ * so they never get rewritten by compactions.  The inner map only holds
+ * key -> (segment, offset, length).  Since the index entry is the only thing
+ * that makes a value visible, writes through an open batch stay atomic.
+ * A value whose batch is thrown away is just left as dead space in the segment.
+ *
+ * Values from get() point right into the mapped file, nothing is copied.
+ * That is safe since the bytes in a segment are never changed once written.
+ */
+public class SegmentDBMap extends DBMap
+{
+  private static final Logger logger = Logger.getLogger("snowblossom.db");
+
+  private static final int INDEX_SIZE = 4 + 8 + 4;
+
+  private final File dir;
+  private final DBMap index;
+  private final long max_segment_size;
+
+  // Current segment being appended to
+  private int write_segment;
+  private FileChannel write_channel;
+
+  private final ConcurrentHashMap<Integer, FileChannel> read_channels = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Integer, MappedByteBuffer> maps = new ConcurrentHashMap<>();
+
+  public SegmentDBMap(File dir, DBMap index, long max_segment_size)
+    throws IOException
+  {
+    this.dir = dir;
+    this.index = index;
+    this.max_segment_size = max_segment_size;
+
+    dir.mkdirs();
+
+    write_segment = 0;
+    while(getSegmentFile(write_segment + 1).exists())
+    {
+      write_segment++;
+    }
+    openWriteSegment();
+
+    logger.info(String.format("Block segments in %s, writing to segment %d", dir, write_segment));
+  }
+
+  private File getSegmentFile(int segment)
+  {
+    return new File(dir, String.format("seg_%06d.dat", segment));
+  }
+
+  private void openWriteSegment()
+    throws IOException
+  {
+    write_channel = new RandomAccessFile(getSegmentFile(write_segment), "rw").getChannel();
+    write_channel.position(write_channel.size());
+  }
+
+  @Override
+  public ByteString get(ByteString key)
+  {
+    ByteString loc = index.get(key);
+    if (loc == null) return null;
+
+    ByteBuffer loc_bb = loc.asReadOnlyByteBuffer();
+    int segment = loc_bb.getInt();
+    long offset = loc_bb.getLong();
+    int len = loc_bb.getInt();
+
+    try
+    {
+      ByteBuffer bb = getMap(segment, offset + len).duplicate();
+      bb.position((int)offset);
+      bb.limit((int)offset + len);
+      return UnsafeByteOperations.unsafeWrap(bb.slice());
+    }
+    catch(IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public boolean containsKey(ByteString key)
+  {
+    return index.containsKey(key);
+  }
+
+  @Override
+  public synchronized void put(ByteString key, ByteString value)
+  {
+    // Same key is always the same value, so no need to write it twice
+    if (index.containsKey(key)) return;
+
+    try
+    {
+      if ((write_channel.size() > 0) && (write_channel.size() + value.size() > max_segment_size))
+      {
+        write_channel.force(true);
+        write_channel.close();
+        write_segment++;
+        openWriteSegment();
+      }
+
+      long offset = write_channel.position();
+      ByteBuffer bb = value.asReadOnlyByteBuffer();
+      while(bb.hasRemaining())
+      {
+        write_channel.write(bb);
+      }
+      // The data has to be down before the index can point to it
+      write_channel.force(false);
+
+      ByteBuffer loc_bb = ByteBuffer.allocate(INDEX_SIZE);
+      loc_bb.putInt(write_segment);
+      loc_bb.putLong(offset);
+      loc_bb.putInt(value.size());
+      index.put(key, ByteString.copyFrom(loc_bb.array()));
+    }
+    catch(IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void remove(ByteString key)
+  {
+    // Leaves the data in the segment
+    index.remove(key);
+  }
+
+  /**
+   * Gets a map of the segment covering at least 'needed' bytes.
+   * Full segments are mapped once.  The segment being written to gets
+   * mapped again as it grows past what has been mapped so far.
+   */
+  private MappedByteBuffer getMap(int segment, long needed)
+    throws IOException
+  {
+    MappedByteBuffer map = maps.get(segment);
+    if ((map != null) && (map.capacity() >= needed)) return map;
+
+    synchronized(maps)
+    {
+      map = maps.get(segment);
+      if ((map != null) && (map.capacity() >= needed)) return map;
+
+      FileChannel channel = read_channels.get(segment);
+      if (channel == null)
+      {
+        channel = new RandomAccessFile(getSegmentFile(segment), "r").getChannel();
+        read_channels.put(segment, channel);
+      }
+      long size = channel.size();
+      if (size < needed) throw new IOException(String.format("Segment %d is %d bytes, needed %d", segment, size, needed));
+
+      map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      maps.put(segment, map);
+      return map;
+    }
+  }
+
+  public synchronized void close()
+  {
+    try
+    {
+      write_channel.force(true);
+      write_channel.close();
+      for(FileChannel c : read_channels.values())
+      {
+        c.close();
+      }
+    }
+    catch(IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+}
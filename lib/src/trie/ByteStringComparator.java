@@ -5,17 +5,27 @@ import com.google.protobuf.ByteString;
 import java.util.Comparator;
 
 
+/**
+ * Orders ByteStrings by unsigned bytes, with a shorter string before
+ * any longer string it is a prefix of.  This is the same order as comparing
+ * the hex strings, without making the hex strings.
+ */
 public class ByteStringComparator implements Comparator<ByteString>
 {
   public int compare(ByteString a, ByteString b)
   {
-    return HashUtils.getHexString(a).compareTo(HashUtils.getHexString(b)); 
-  
+    return compareStatic(a, b);
   }
 
   public static int compareStatic(ByteString a, ByteString b)
   {
-    return HashUtils.getHexString(a).compareTo(HashUtils.getHexString(b)); 
-  
+    int sz = Math.min(a.size(), b.size());
+    for(int i=0; i<sz; i++)
+    {
+      int x = a.byteAt(i) & 0xff;
+      int y = b.byteAt(i) & 0xff;
+      if (x != y) return Integer.compare(x, y);
+    }
+    return Integer.compare(a.size(), b.size());
   }
 }
@@ -20,6 +20,33 @@ public class HashUtils
     return hashConcat(ImmutableList.of());
   }
 
+  private static final ThreadLocal<MessageDigest> thread_md = new ThreadLocal<MessageDigest>()
+  {
+    @Override
+    protected MessageDigest initialValue()
+    {
+      try
+      {
+        return MessageDigest.getInstance("SHA-256");
+      }
+      catch (java.security.NoSuchAlgorithmException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+  };
+
+  /**
+   * A SHA-256 digest, same as hashConcat uses, for use by the calling thread only.
+   * digest() resets it so it is ready for the next use.
+   */
+  public static MessageDigest getMessageDigest()
+  {
+    MessageDigest md = thread_md.get();
+    md.reset();
+    return md;
+  }
+
 	public static ByteString hashConcat(List<ByteString> words)
 	{
     try
@@ -1,14 +1,16 @@
 package snowblossom.lib.trie;
 
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.MultimapBuilder;
-import com.google.common.collect.SetMultimap;
 import com.google.protobuf.ByteString;
 import org.junit.Assert;
 import snowblossom.trie.proto.ChildEntry;
 import snowblossom.trie.proto.TrieNode;
 
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * So this is a trie with the following properties:
@@ -22,6 +24,13 @@ import java.util.*;
  */
 public class HashedTrie
 {
+  /** Number of levels at the top of a merge where child groups are merged in parallel */
+  public static final int PARALLEL_LEVELS = 2;
+  /** Merges smaller than this aren't worth splitting up */
+  public static final int PARALLEL_MIN_UPDATES = 256;
+
+  private static final ForkJoinPool merge_pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
   private TrieDB basedb;
   private int keylen;
 
@@ -43,6 +52,12 @@ public class HashedTrie
     Assert.assertNotNull(root);
   }
 
+  private TrieNode mergeRoot(TrieDB db, TrieNode root, Map<ByteString, ByteString> updates)
+  {
+    MergeBatch batch = new MergeBatch(updates, keylen);
+    return mergeNode(db, root, batch, 0, batch.count, 0);
+  }
+
   /** 
    * Merge in the following updates.
    * A null value means remove that entry if it exists
@@ -53,7 +68,7 @@ public class HashedTrie
     TrieDBBuffered db = new TrieDBBuffered(basedb);
 
     TrieNode root = db.load(root_hash);
-    ByteString answer = mergeNode(db, root, updates).getHash();
+    ByteString answer = mergeRoot(db, root, updates).getHash();
     db.commit();
     return answer;
   }
@@ -63,7 +78,7 @@ public class HashedTrie
     TrieDBBuffered db = new TrieDBBuffered(basedb);
     TrieNode root = db.load(old_root);
     
-    ByteString answer = mergeNode(db, root, updates).getHash();
+    ByteString answer = mergeRoot(db, root, updates).getHash();
     if (answer.equals(expected_new_root))
     {
       System.out.println("Commiting new UTXO root: " + HashUtils.getHexString(answer));
@@ -82,10 +97,20 @@ public class HashedTrie
     TrieDBBuffered db = new TrieDBBuffered(basedb);
     TrieNode root = db.load(root_hash);
     Assert.assertNotNull("Simluating merge from " + HashUtils.getHexString(root_hash), root);
-    ByteString answer = mergeNode(db, root, updates).getHash();
+    ByteString answer = mergeRoot(db, root, updates).getHash();
     return answer;
   }
 
+  /**
+   * Returns a trie that reads through to this one but keeps anything merged into it
+   * in memory, so simulated changes can be stacked on top of each other.
+   * The returned trie is safe for concurrent reads once nothing is merging into it.
+   */
+  public HashedTrie getMemoryOverlay()
+  {
+    return new HashedTrie(new TrieDBBuffered(basedb), keylen, false);
+  }
+
   /**
    * get entry from the given root hash or null of it does not exist
    */
@@ -115,9 +140,150 @@ public class HashedTrie
     return null;
   }
 
+  /**
+   * Get the entries for a number of keys at once from the given root hash.
+   * The trie is walked one level at a time, so keys that share a path share the
+   * node loads and each level is a single TrieDB.loadAll().
+   * @return map of key to data for the keys that exist
+   */
+  public Map<ByteString, ByteString> getLeafDataBatch(ByteString root_hash, Collection<ByteString> keys)
+  {
+    ByteString[] sorted = keys.toArray(new ByteString[keys.size()]);
+    Arrays.sort(sorted, new ByteStringComparator());
+
+    HashMap<ByteString, ByteString> found = new HashMap<>();
+
+    // Node hashes for this level, and the range of sorted keys under each
+    ArrayList<ByteString> level_hashes = new ArrayList<>();
+    ArrayList<int[]> level_ranges = new ArrayList<>();
+    level_hashes.add(root_hash);
+    level_ranges.add(new int[]{0, sorted.length});
+
+    while(level_hashes.size() > 0)
+    {
+      Map<ByteString, TrieNode> nodes = basedb.loadAll(level_hashes);
+
+      ArrayList<ByteString> next_hashes = new ArrayList<>();
+      ArrayList<int[]> next_ranges = new ArrayList<>();
+
+      for(int n=0; n<level_hashes.size(); n++)
+      {
+        TrieNode node = nodes.get(level_hashes.get(n));
+        if (node == null)
+        {
+          throw new RuntimeException(String.format("Referenced node %s not in database", HashUtils.getHexString(level_hashes.get(n))));
+        }
+        int lo = level_ranges.get(n)[0];
+        int hi = level_ranges.get(n)[1];
+        int p = node.getPrefix().size();
+
+        if (node.getIsLeaf())
+        {
+          for(int i=lo; i<hi; i++)
+          {
+            if (sorted[i].equals(node.getPrefix())) found.put(sorted[i], node.getLeafData());
+          }
+          continue;
+        }
+
+        // Walk the children and the keys together by the byte after the prefix
+        ChildEntry[] kids = getChildrenInOrder(node);
+        int i = lo;
+        int k = 0;
+        while((i < hi) && (k < kids.length))
+        {
+          if (sorted[i].size() <= p)
+          {
+            i++;
+            continue;
+          }
+          int b = sorted[i].byteAt(p) & 0xff;
+          int kb = kids[k].getKey().byteAt(0) & 0xff;
+          if (kb < b) { k++; continue; }
+          if (b < kb) { i++; continue; }
+
+          // Keys under a child are a contiguous run, since they are sorted
+          ByteString child_prefix = node.getPrefix().concat(kids[k].getKey());
+          int m_lo = -1;
+          int m_hi = -1;
+          while((i < hi) && (sorted[i].size() > p) && ((sorted[i].byteAt(p) & 0xff) == b))
+          {
+            if (sorted[i].startsWith(child_prefix))
+            {
+              if (m_lo < 0) m_lo = i;
+              m_hi = i + 1;
+            }
+            i++;
+          }
+          if (m_lo >= 0)
+          {
+            next_hashes.add(kids[k].getHash());
+            next_ranges.add(new int[]{m_lo, m_hi});
+          }
+          k++;
+        }
+      }
+      level_hashes = next_hashes;
+      level_ranges = next_ranges;
+    }
+
+    return found;
+  }
+
   public void getNodeDetails(ByteString hash, ByteString target_key, LinkedList<TrieNode> proof, LinkedList<TrieNode> results, int max_results)
   {
-    TrieNode node = basedb.load(hash);
+    Map<ByteString, TrieNode> loaded = prefetchNodeDetails(hash, target_key, max_results);
+
+    getNodeDetails(loaded, hash, target_key, proof, results, max_results);
+  }
+
+  /**
+   * Load the nodes getNodeDetails will want, a level at a time,
+   * until there are about max_results of them under target_key
+   */
+  private Map<ByteString, TrieNode> prefetchNodeDetails(ByteString hash, ByteString target_key, int max_results)
+  {
+    HashMap<ByteString, TrieNode> loaded = new HashMap<>();
+    ArrayList<ByteString> level_hashes = new ArrayList<>();
+    level_hashes.add(hash);
+    int result_count = 0;
+
+    while((level_hashes.size() > 0) && (result_count < max_results))
+    {
+      Map<ByteString, TrieNode> nodes = basedb.loadAll(level_hashes);
+      loaded.putAll(nodes);
+
+      ArrayList<ByteString> next_hashes = new ArrayList<>();
+      for(ByteString h : level_hashes)
+      {
+        TrieNode node = nodes.get(h);
+        if (node == null) continue;
+        if (target_key.size() <= node.getPrefix().size()) result_count++;
+
+        for(ChildEntry ce : node.getChildrenList())
+        {
+          if (isOnDetailsPath(node, ce, target_key)) next_hashes.add(ce.getHash());
+        }
+      }
+      level_hashes = next_hashes;
+    }
+    return loaded;
+  }
+
+  private static boolean isOnDetailsPath(TrieNode node, ChildEntry ce, ByteString target_key)
+  {
+    ByteString p = node.getPrefix().concat(ce.getKey());
+    if (p.size() <= target_key.size())
+    {
+      return target_key.startsWith(p);
+    }
+    return p.startsWith(target_key);
+  }
+
+  private void getNodeDetails(Map<ByteString, TrieNode> loaded, ByteString hash, ByteString target_key, LinkedList<TrieNode> proof, LinkedList<TrieNode> results, int max_results)
+  {
+    TrieNode node = loaded.get(hash);
+    if (node == null) node = basedb.load(hash);
     if (node == null)
     {
       throw new RuntimeException(String.format("Referenced node %s not in database", HashUtils.getHexString(hash)));
@@ -136,174 +302,171 @@ public class HashedTrie
 
     for(ChildEntry ce : node.getChildrenList())
     {
-      ByteString p = node.getPrefix().concat(ce.getKey());
-      if (p.size() <= target_key.size())
+      if (isOnDetailsPath(node, ce, target_key))
       {
-        if (target_key.startsWith(p))
-        {
-          getNodeDetails(ce.getHash(), target_key, proof, results, max_results);
-        }
-      }
-      else
-      {
-        if(p.startsWith(target_key))
-        {
-          getNodeDetails(ce.getHash(), target_key, proof, results, max_results);
-        }
+        getNodeDetails(loaded, ce.getHash(), target_key, proof, results, max_results);
       }
     }
-
  
   }
 
-  private TrieNode mergeNode(TrieDB db, TrieNode node, Map<ByteString, ByteString> updates)
+  /**
+   * Merge the updates in batch[lo, hi) into node.  All of those keys start with
+   * the prefix of node.
+   *
+   * @param level how many nodes up from here to the root of this merge.  The first
+   * PARALLEL_LEVELS levels may split their child groups into fork join tasks.
+   * @return the new node, which might have a longer prefix than node if it has been
+   * shortened to its only child, or null if nothing is left under it
+   */
+  private TrieNode mergeNode(TrieDB db, TrieNode node, MergeBatch batch, int lo, int hi, int level)
   {
     Assert.assertNotNull(node);
-    //System.out.println("Doing merge on " + HashUtils.getHexString(node.getPrefix()) + " with " + updates.size());
-    for(ByteString key : updates.keySet())
-    {
-      Assert.assertTrue("Prefix: " 
-        + new String(node.getPrefix().toByteArray()) 
-        + " key: " 
-        + new String(key.toByteArray()) , 
-        key.startsWith(node.getPrefix()));
-    }
-    TrieNode.Builder builder = TrieNode.newBuilder();
-    builder.setPrefix(node.getPrefix());
+
+    ByteString prefix = node.getPrefix();
+    int p = prefix.size();
 
     // Base case - at keylen
-    if (node.getPrefix().size() == keylen)
+    if (p == keylen)
     {
-      Assert.assertEquals(1, updates.size());
+      Assert.assertEquals(1, hi - lo);
       
-      ByteString data = updates.values().iterator().next();
+      ByteString data = batch.values[lo];
       if (data == null)
       {
         //nothing ever removed
-        //db.remove(node.getPrefix());
         return null;
       }
 
-      builder.setIsLeaf(true);
-      builder.setLeafData(data);
-
-      builder.setHash(HashUtils.hashConcat(ImmutableList.of(node.getPrefix(), data)));
+      MessageDigest md = HashUtils.getMessageDigest();
+      md.update(batch.keys, batch.offset(lo), keylen);
+      md.update(data.asReadOnlyByteBuffer());
 
-      TrieNode newNode = builder.build();
+      TrieNode newNode = TrieNode.newBuilder()
+        .setPrefix(prefix)
+        .setIsLeaf(true)
+        .setLeafData(data)
+        .setHash(ByteString.copyFrom(md.digest()))
+        .build();
       db.save(newNode);
       return newNode;
     }
 
     //Intermediate node
-    SetMultimap<ByteString, ByteString> fings = MultimapBuilder.hashKeys().hashSetValues().build();
-    SetMultimap<ByteString, ByteString> changes_by_start = MultimapBuilder.hashKeys().hashSetValues().build();
-
-    HashMap<ByteString, ChildEntry> children_by_start = new HashMap<>();
-
-    TrieNode last_seen_child_node = null;
-
-    int prefix_len = node.getPrefix().size();
-    for(ByteString bs : updates.keySet())
+    ChildEntry[] kids = getChildrenInOrder(node);
+
+    // Walk the existing children and the sorted updates together, making
+    // one group for each first byte after the prefix.  Groups come out in byte order.
+    int max_groups = Math.min(256, kids.length + (hi - lo));
+    int[] group_lo = new int[max_groups];
+    int[] group_hi = new int[max_groups];
+    ChildEntry[] group_child = new ChildEntry[max_groups];
+    int group_count = 0;
+    int changed_groups = 0;
+
+    int k = 0;
+    int i = lo;
+    while((k < kids.length) || (i < hi))
     {
-      ByteString start = bs.substring(prefix_len, prefix_len + 1);
-      ByteString rest = bs.substring(prefix_len);
-      fings.put(start, rest);
-      changes_by_start.put(start, bs);
-    }
+      int kid_b = 256;
+      int upd_b = 256;
+      if (k < kids.length) kid_b = kids[k].getKey().byteAt(0) & 0xff;
+      if (i < hi) upd_b = batch.byteAt(i, p);
+      int b = Math.min(kid_b, upd_b);
 
-    Map<ByteString, ChildEntry> children = new HashMap<>();
-    for(ChildEntry c : node.getChildrenList())
-    {
-      ByteString bs = c.getKey();
-      children.put(bs, c);
+      if (kid_b == b)
+      {
+        group_child[group_count] = kids[k];
+        k++;
+      }
+      group_lo[group_count] = i;
+      while((i < hi) && (batch.byteAt(i, p) == b)) i++;
+      group_hi[group_count] = i;
 
-      ByteString start = bs.substring(0,1);
-      fings.put(start, bs);
-      children_by_start.put(start, c);
+      if (group_hi[group_count] > group_lo[group_count]) changed_groups++;
+      group_count++;
     }
 
-    for(ByteString start : fings.keySet())
+    TrieNode[] merged_children = new TrieNode[group_count];
+
+    if ((level < PARALLEL_LEVELS) && (changed_groups > 1) && (hi - lo >= PARALLEL_MIN_UPDATES))
     {
-      Set<ByteString> changes = changes_by_start.get(start);
+      // The groups share no nodes, so each task works against its own buffer
+      // on top of db.  The buffers are saved back into db in group order after.
+      ArrayList<ChildGroupTask> tasks = new ArrayList<>();
+      for(int g=0; g<group_count; g++)
+      {
+        if (group_hi[g] == group_lo[g]) continue;
 
-      Set<ByteString> rests = fings.get(start);
-      ByteString prefix_for_group = findLongestCommonStart(rests);
+        tasks.add(new ChildGroupTask(g, new TrieDBBuffered(db), node, batch, 
+          group_lo[g], group_hi[g], group_child[g], level + 1));
+      }
 
-      if ((changes.isEmpty()) && (children.containsKey(prefix_for_group)))
+      if (ForkJoinTask.inForkJoinPool())
       {
-        builder.addChildren( children.get(prefix_for_group));
-        continue; //woo ugly
+        ForkJoinTask.invokeAll(tasks);
       }
-
-      Assert.assertTrue(prefix_for_group.size() > 0);
-
-      TrieNode child_node = null;
-      if (!children.containsKey(prefix_for_group))
-      { 
-        // Make a new node, put children if any under it
-
-        TrieNode.Builder sub_builder = TrieNode.newBuilder();
-        Assert.assertTrue(prefix_for_group.size() > 0);
-        sub_builder.setPrefix(node.getPrefix().concat(prefix_for_group));
-        Assert.assertTrue(sub_builder.getPrefix().size() > 0);
-        if (children_by_start.get(start) != null)
+      else
+      {
+        merge_pool.invoke(new RecursiveAction()
         {
-          ChildEntry ce = children_by_start.get(start);
+          protected void compute()
           {
-            int cut_len= prefix_for_group.size();
-            ByteString new_prefix = ce.getKey().substring(cut_len);
-            sub_builder.addChildren(ChildEntry.newBuilder().setKey(new_prefix).setHash(ce.getHash()).build());
+            invokeAll(tasks);
           }
-          //sub_builder.addChildren(children_by_start.get(start));
-        }
-        child_node = sub_builder.build();
-        db.save(child_node);
-        Assert.assertTrue(child_node.getPrefix().size() > 0);
-
-        Assert.assertFalse(changes.isEmpty());
+        });
+      }
 
+      for(ChildGroupTask task : tasks)
+      {
+        merged_children[task.idx] = task.join();
+        task.task_db.commit();
       }
-      else
+    }
+    else
+    {
+      for(int g=0; g<group_count; g++)
       {
-        if (child_node == null)
-        {
-          child_node = db.load(children.get(prefix_for_group).getHash());
-          //child_node = db.load(node.getPrefix().concat(prefix_for_group));
-        }
+        if (group_hi[g] == group_lo[g]) continue;
+
+        merged_children[g] = mergeChildGroup(db, node, batch, group_lo[g], group_hi[g], group_child[g], level + 1);
       }
-      
-      Map<ByteString, ByteString> sub_updates = new HashMap<>();
-      for(ByteString bs : changes)
+    }
+
+    TrieNode.Builder builder = TrieNode.newBuilder();
+    builder.setPrefix(prefix);
+    TrieNode last_seen_child_node = null;
+
+    for(int g=0; g<group_count; g++)
+    {
+      if (group_hi[g] == group_lo[g])
       {
-        sub_updates.put(bs, updates.get(bs));
+        builder.addChildren(group_child[g]);
+        continue;
       }
-      child_node = mergeNode(db, child_node, sub_updates);
+
+      TrieNode child_node = merged_children[g];
       if (child_node != null)
       {
         // The child node might have a different prefix
         // than what we expect, since it might need to structural shorten itself
+        Assert.assertTrue(child_node.getPrefix().size() > p);
 
-        ByteString prefix_for_child_node = child_node.getPrefix().substring(node.getPrefix().size());
-        Assert.assertTrue(""+start, child_node.getPrefix().size() > 0);
-        Assert.assertTrue(""+start, prefix_for_child_node.size() > 0);
+        ByteString prefix_for_child_node = child_node.getPrefix().substring(p);
         builder.addChildren( ChildEntry.newBuilder().setKey(prefix_for_child_node).setHash(child_node.getHash()));
 
         last_seen_child_node = child_node;
       }
-      
     }
 
-    if (node.getPrefix().size() > 0)
+    if (p > 0)
     {
       if (builder.getChildrenCount() == 0)
       {
-        //db.remove(node.getPrefix());
         return null;
       }
       if (builder.getChildrenCount() == 1)
       {
-        //db.remove(node.getPrefix());
-
         if (last_seen_child_node != null)
         {
           return last_seen_child_node;
@@ -314,31 +477,174 @@ public class HashedTrie
       }
     }
 
-    //ok, we should have all the dumb child nodes in place, now it is time to redo the hashes
-    ArrayList<ByteString> hash_list = new ArrayList<>();
+    // Children are already in byte order, which is the order for the hash
+    MessageDigest md = HashUtils.getMessageDigest();
+    md.update(prefix.asReadOnlyByteBuffer());
+    for(ChildEntry ce : builder.getChildrenList())
+    {
+      md.update(ce.getKey().asReadOnlyByteBuffer());
+      md.update(ce.getHash().asReadOnlyByteBuffer());
+    }
+
+    builder.setHash(ByteString.copyFrom(md.digest()));
+
+    TrieNode new_node = builder.build();
 
-    hash_list.add(node.getPrefix());
+    db.save(new_node);
 
-    TreeMap<ByteString, ChildEntry> sortedChildren = new TreeMap<>(new ByteStringComparator());
+    return new_node;
 
-    for(ChildEntry ce : builder.getChildrenList())
+  }
+
+  /**
+   * Merge the updates batch[lo, hi), which all have the same first byte after
+   * the prefix of node, along with start_child, the existing child of node
+   * with that first byte if there is one.
+   * @return the new child node or null if the group ended up empty
+   */
+  private TrieNode mergeChildGroup(TrieDB db, TrieNode node, MergeBatch batch, int lo, int hi, 
+    ChildEntry start_child, int level)
+  {
+    int p = node.getPrefix().size();
+    int first = batch.offset(lo);
+    int last = batch.offset(hi - 1);
+
+    // Since the keys are sorted, the common start of the whole group
+    // is the common start of the first and last
+    int max = keylen - p;
+    int lcp = 1;
+    while((lcp < max) && (batch.keys[first + p + lcp] == batch.keys[last + p + lcp])) lcp++;
+
+    TrieNode child_node = null;
+    if (start_child != null)
     {
-      sortedChildren.put(ce.getKey(), ce);
+      ByteString ck = start_child.getKey();
+      int cmax = Math.min(lcp, ck.size());
+      int clcp = 1;
+      while((clcp < cmax) && (ck.byteAt(clcp) == batch.keys[first + p + clcp])) clcp++;
+      lcp = clcp;
+
+      if (ck.size() == lcp)
+      {
+        // Everything goes under the existing child
+        child_node = db.load(start_child.getHash());
+        Assert.assertNotNull(child_node);
+      }
+      else
+      {
+        // Make a new node to split the existing child and the updates.
+        // It gets hashed and saved if it is still needed after the merge below.
+        child_node = TrieNode.newBuilder()
+          .setPrefix(ByteString.copyFrom(batch.keys, first, p + lcp))
+          .addChildren(ChildEntry.newBuilder().setKey(ck.substring(lcp)).setHash(start_child.getHash()).build())
+          .build();
+      }
     }
-    for(ChildEntry ce : sortedChildren.values())
+    else
     {
-      hash_list.add(ce.getKey());
-      hash_list.add(ce.getHash());
+      child_node = TrieNode.newBuilder()
+        .setPrefix(ByteString.copyFrom(batch.keys, first, p + lcp))
+        .build();
     }
 
-    builder.setHash(HashUtils.hashConcat( hash_list ));
+    return mergeNode(db, child_node, batch, lo, hi, level);
+  }
 
-    TrieNode new_node = builder.build();
+  /**
+   * The children of a node, ordered by first byte.  They are normally saved in
+   * that order already, but nodes written by older versions might not be.
+   */
+  private static ChildEntry[] getChildrenInOrder(TrieNode node)
+  {
+    int n = node.getChildrenCount();
+    ChildEntry[] kids = new ChildEntry[n];
+    for(int i=0; i<n; i++)
+    {
+      ChildEntry ce = node.getChildren(i);
+      int b = ce.getKey().byteAt(0) & 0xff;
+      int j = i;
+      while((j > 0) && ((kids[j-1].getKey().byteAt(0) & 0xff) > b))
+      {
+        kids[j] = kids[j-1];
+        j--;
+      }
+      kids[j] = ce;
+    }
+    return kids;
+  }
 
-    db.save(new_node);
+  /**
+   * The updates for a merge, sorted by key with the keys packed end to end
+   * in one buffer so the merge can work with offsets instead of ByteStrings.
+   */
+  private static class MergeBatch
+  {
+    final int keylen;
+    final int count;
+    final byte[] keys;
+    final ByteString[] values;
 
-    return new_node;
+    public MergeBatch(Map<ByteString, ByteString> updates, int keylen)
+    {
+      this.keylen = keylen;
+      this.count = updates.size();
+
+      ByteString[] sorted = updates.keySet().toArray(new ByteString[count]);
+      Arrays.sort(sorted, new ByteStringComparator());
+
+      keys = new byte[count * keylen];
+      values = new ByteString[count];
+      for(int i=0; i<count; i++)
+      {
+        Assert.assertEquals(keylen, sorted[i].size());
+        sorted[i].copyTo(keys, i * keylen);
+        values[i] = updates.get(sorted[i]);
+      }
+    }
 
+    public int offset(int i)
+    {
+      return i * keylen;
+    }
+
+    public int byteAt(int i, int pos)
+    {
+      return keys[i * keylen + pos] & 0xff;
+    }
+  }
+
+  /**
+   * A child group merge run as a fork join task, writing into its own buffer
+   */
+  private class ChildGroupTask extends RecursiveTask<TrieNode>
+  {
+    final int idx;
+    final TrieDBBuffered task_db;
+    final TrieNode node;
+    final MergeBatch batch;
+    final int lo;
+    final int hi;
+    final ChildEntry start_child;
+    final int level;
+
+    public ChildGroupTask(int idx, TrieDBBuffered task_db, TrieNode node, MergeBatch batch, 
+      int lo, int hi, ChildEntry start_child, int level)
+    {
+      this.idx = idx;
+      this.task_db = task_db;
+      this.node = node;
+      this.batch = batch;
+      this.lo = lo;
+      this.hi = hi;
+      this.start_child = start_child;
+      this.level = level;
+    }
+
+    @Override
+    protected TrieNode compute()
+    {
+      return mergeChildGroup(task_db, node, batch, lo, hi, start_child, level);
+    }
   }
 
   public void printTree(ByteString root)
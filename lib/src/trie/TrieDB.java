@@ -4,6 +4,8 @@ import com.google.protobuf.ByteString;
 import org.junit.Assert;
 import snowblossom.trie.proto.TrieNode;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -12,6 +14,22 @@ public abstract class TrieDB
   public abstract void save(TrieNode node);
   public abstract TrieNode load(ByteString key);
 
+  /**
+   * Load a number of nodes at once.  Implementations that can fetch
+   * many keys in one go from their store should override this.
+   * @return map of key to node, keys not found are left out
+   */
+  public Map<ByteString, TrieNode> loadAll(Collection<ByteString> keys)
+  {
+    HashMap<ByteString, TrieNode> map = new HashMap<>();
+    for(ByteString key : keys)
+    {
+      TrieNode node = load(key);
+      if (node != null) map.put(key, node);
+    }
+    return map;
+  }
+
   public void bulkSave(TreeMap<ByteString, TrieNode> updates)
   {
     for(Map.Entry<ByteString, TrieNode> me : updates.entrySet())
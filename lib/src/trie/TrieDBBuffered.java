@@ -3,6 +3,10 @@ package snowblossom.lib.trie;
 import com.google.protobuf.ByteString;
 import snowblossom.trie.proto.TrieNode;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.TreeMap;
 
 
@@ -29,6 +33,30 @@ public class TrieDBBuffered extends TrieDB
     return db.load(key);
   }
 
+  @Override
+  public Map<ByteString, TrieNode> loadAll(Collection<ByteString> keys)
+  {
+    HashMap<ByteString, TrieNode> nodes = new HashMap<>();
+    ArrayList<ByteString> missing = new ArrayList<>();
+    for(ByteString key : keys)
+    {
+      TrieNode node = changes.get(key);
+      if (node != null) nodes.put(key, node);
+      else missing.add(key);
+    }
+    if (missing.size() > 0)
+    {
+      nodes.putAll(db.loadAll(missing));
+    }
+    return nodes;
+  }
+
+  @Override
+  public void bulkSave(TreeMap<ByteString, TrieNode> updates)
+  {
+    changes.putAll(updates);
+  }
+
   public void commit()
   {
     db.bulkSave(changes);
@@ -0,0 +1,253 @@
+package snowblossom.lib.trie;
+
+import com.google.protobuf.ByteString;
+import snowblossom.lib.db.DB;
+import snowblossom.trie.proto.TrieNode;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps parsed TrieNodes in memory in front of another TrieDB.
+ *
+ * Nodes are saved under their hash, which is over their content, so a node
+ * for a given key never changes.  The only time one needs to be invalidated
+ * is when it is removed from the db entirely, as the TriePruner does.
+ * Writes go through to the inner db right away.  When a DB is given and the
+ * thread has a batch open, nodes only go in the cache once that batch is committed,
+ * so an aborted batch never leaves nodes in the cache that aren't in the db.
+ *
+ * The nodes near the top of the trie are on the path to everything, so they are
+ * kept in their own pinned section and don't get pushed out by a pass over leaves.
+ * Since every new root makes new top nodes, the pinned section is still LRU bounded.
+ */
+public class TrieDBCached extends TrieDB
+{
+  /** Nodes with a prefix this size or smaller go in the pinned section */
+  public static final int PIN_PREFIX_SIZE = 2;
+
+  // rough per entry cost of the map entry, ByteString and TrieNode objects
+  private static final long ENTRY_OVERHEAD = 128L;
+
+  private final TrieDB inner;
+  private final DB db;
+
+  private final NodeLRU pinned;
+  private final NodeLRU general;
+
+  private final AtomicLong hits = new AtomicLong(0L);
+  private final AtomicLong misses = new AtomicLong(0L);
+
+  /**
+   * @param max_bytes approximate memory to use, a quarter of which goes to the pinned top nodes
+   */
+  public TrieDBCached(TrieDB inner, long max_bytes)
+  {
+    this(inner, max_bytes, null);
+  }
+
+  /**
+   * @param db the db under inner, for its batches.  May be null if inner doesn't batch.
+   */
+  public TrieDBCached(TrieDB inner, long max_bytes, DB db)
+  {
+    this.inner = inner;
+    this.db = db;
+
+    pinned = new NodeLRU(max_bytes / 4);
+    general = new NodeLRU(max_bytes - max_bytes / 4);
+  }
+
+  @Override
+  public void save(TrieNode node)
+  {
+    inner.save(node);
+    cacheAfterCommit(Collections.singletonList(node));
+  }
+
+  @Override
+  public void bulkSave(TreeMap<ByteString, TrieNode> updates)
+  {
+    inner.bulkSave(updates);
+    cacheAfterCommit(updates.values());
+  }
+
+  @Override
+  public TrieNode load(ByteString key)
+  {
+    TrieNode node = pinned.get(key);
+    if (node == null) node = general.get(key);
+
+    if (node != null)
+    {
+      hits.incrementAndGet();
+      return node;
+    }
+    misses.incrementAndGet();
+
+    node = inner.load(key);
+    if (node != null)
+    {
+      // It might only be in this thread's batch so far
+      cacheAfterCommit(Collections.singletonList(node));
+    }
+    return node;
+  }
+
+  @Override
+  public Map<ByteString, TrieNode> loadAll(Collection<ByteString> keys)
+  {
+    HashMap<ByteString, TrieNode> nodes = new HashMap<>();
+    ArrayList<ByteString> missing = new ArrayList<>();
+    for(ByteString key : keys)
+    {
+      TrieNode node = pinned.get(key);
+      if (node == null) node = general.get(key);
+      if (node != null) nodes.put(key, node);
+      else missing.add(key);
+    }
+    hits.addAndGet(nodes.size());
+    misses.addAndGet(missing.size());
+
+    if (missing.size() > 0)
+    {
+      Map<ByteString, TrieNode> loaded = inner.loadAll(missing);
+      cacheAfterCommit(loaded.values());
+      nodes.putAll(loaded);
+    }
+    return nodes;
+  }
+
+  /**
+   * Drops these nodes, for when they have been removed from the inner db
+   */
+  public void invalidate(Collection<ByteString> keys)
+  {
+    for(ByteString key : keys)
+    {
+      pinned.remove(key);
+      general.remove(key);
+    }
+  }
+
+  private void cacheAfterCommit(final Collection<TrieNode> nodes)
+  {
+    if (db == null)
+    {
+      for(TrieNode node : nodes) cache(node);
+      return;
+    }
+    db.afterCommit(new Runnable()
+    {
+      public void run()
+      {
+        for(TrieNode node : nodes) cache(node);
+      }
+    });
+  }
+
+  private void cache(TrieNode node)
+  {
+    // A node without a hash isn't addressed by content, so don't keep it
+    if (node.getHash().size() == 0) return;
+
+    if (node.getPrefix().size() <= PIN_PREFIX_SIZE)
+    {
+      pinned.put(node);
+    }
+    else
+    {
+      general.put(node);
+    }
+  }
+
+  public long getHits(){ return hits.get(); }
+  public long getMisses(){ return misses.get(); }
+
+  public double getHitRate()
+  {
+    long h = hits.get();
+    long total = h + misses.get();
+    if (total == 0L) return 0.0;
+    return (double) h / (double) total;
+  }
+
+  public long getResidentBytes()
+  {
+    return pinned.getBytes() + general.getBytes();
+  }
+
+  public int getResidentNodes()
+  {
+    return pinned.getCount() + general.getCount();
+  }
+
+  public String getReportShort()
+  {
+    DecimalFormat df = new DecimalFormat("0.000");
+    return String.format("hit rate %s (%d/%d), %d nodes, %d KB (%d KB pinned)",
+      df.format(getHitRate()), getHits(), getHits() + getMisses(),
+      getResidentNodes(), getResidentBytes() / 1024L, pinned.getBytes() / 1024L);
+  }
+
+  /**
+   * Access ordered map that evicts the least recently used nodes
+   * once the total estimated size goes over max_bytes
+   */
+  private static class NodeLRU
+  {
+    private final long max_bytes;
+    private final LinkedHashMap<ByteString, TrieNode> map;
+    private long bytes;
+
+    public NodeLRU(long max_bytes)
+    {
+      this.max_bytes = max_bytes;
+      this.map = new LinkedHashMap<>(1024, 0.75f, true);
+    }
+
+    public synchronized TrieNode get(ByteString key)
+    {
+      return map.get(key);
+    }
+
+    public synchronized void put(TrieNode node)
+    {
+      if (map.containsKey(node.getHash())) return;
+
+      map.put(node.getHash(), node);
+      bytes += estimateSize(node);
+
+      Iterator<Map.Entry<ByteString, TrieNode>> it = map.entrySet().iterator();
+      while((bytes > max_bytes) && (it.hasNext()))
+      {
+        TrieNode old = it.next().getValue();
+        bytes -= estimateSize(old);
+        it.remove();
+      }
+    }
+
+    public synchronized void remove(ByteString key)
+    {
+      TrieNode old = map.remove(key);
+      if (old != null) bytes -= estimateSize(old);
+    }
+
+    public synchronized long getBytes(){ return bytes; }
+    public synchronized int getCount(){ return map.size(); }
+
+    private static long estimateSize(TrieNode node)
+    {
+      return node.getSerializedSize() + node.getHash().size() + ENTRY_OVERHEAD;
+    }
+  }
+
+}
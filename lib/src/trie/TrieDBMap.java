@@ -3,8 +3,11 @@ package snowblossom.lib.trie;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import snowblossom.lib.db.DBMap;
+import snowblossom.lib.db.ProtoDBMap;
 import snowblossom.trie.proto.TrieNode;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -30,7 +33,7 @@ public class TrieDBMap extends TrieDB
     if (r == null) return null;
 		try
 		{
-		 	return TrieNode.parser().parseFrom(r);
+		 	return ProtoDBMap.parse(TrieNode.parser(), r);
     }
     catch(InvalidProtocolBufferException e)
     {
@@ -39,6 +42,24 @@ public class TrieDBMap extends TrieDB
 
   }
 
+  @Override
+  public Map<ByteString, TrieNode> loadAll(Collection<ByteString> keys)
+  {
+    HashMap<ByteString, TrieNode> nodes = new HashMap<>();
+    for(Map.Entry<ByteString, ByteString> me : db_map.getAll(keys).entrySet())
+    {
+      try
+      {
+        nodes.put(me.getKey(), ProtoDBMap.parse(TrieNode.parser(), me.getValue()));
+      }
+      catch(InvalidProtocolBufferException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+    return nodes;
+  }
+
   @Override
   public void bulkSave(TreeMap<ByteString, TrieNode> updates)
   {
@@ -3,6 +3,8 @@ package lib.test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
+import lib.test.db.JRocksDBTest;
+import lib.test.db.SegmentDBMapTest;
 import lib.test.trie.TrieRocksTest;
 import lib.test.trie.TrieTest;
 
@@ -12,6 +14,10 @@ import lib.test.trie.TrieTest;
   TrieTest.class,
   TrieRocksTest.class,
 
+  // /db
+  JRocksDBTest.class,
+  SegmentDBMapTest.class,
+
   // root
   AddressUtilTest.class,
   BlockchainUtilTest.class,
@@ -19,6 +25,7 @@ import lib.test.trie.TrieTest;
   KeyUtilTest.class,
   PowUtilTest.class,
   PRNGStreamTest.class,
+  RollingBloomFilterTest.class,
   SignatureTest.class,
   SnowFallMerkleTest.class,
   ValidationTest.class
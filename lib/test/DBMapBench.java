@@ -0,0 +1,140 @@
+package lib.test;
+
+import com.google.protobuf.ByteString;
+import duckutil.ConfigMem;
+import snowblossom.lib.Globals;
+import snowblossom.lib.db.DBMap;
+import snowblossom.lib.db.rocksdb.JRocksDB;
+import snowblossom.lib.trie.ByteStringComparator;
+import snowblossom.lib.trie.TrieDBMap;
+import snowblossom.trie.proto.TrieNode;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Measures latency and allocation of DBMap.get and TrieDBMap.load on a
+ * temporary RocksDB, in both the shared and column family layouts.
+ *
+ * To compare against another version of the db code, run the same
+ * bench against that tree and compare the per op numbers.
+ *
+ * Run with: bazel run //lib:DBMapBench -- [keys] [reads]
+ */
+public class DBMapBench
+{
+  public static void main(String args[]) throws Exception
+  {
+    int key_count = 100000;
+    int reads = 1000000;
+    if (args.length > 0) key_count = Integer.parseInt(args[0]);
+    if (args.length > 1) reads = Integer.parseInt(args[1]);
+
+    System.out.println(String.format("%d keys, %d reads per pass", key_count, reads));
+
+    runLayout("shared", false, key_count, reads);
+    runLayout("column families", true, key_count, reads);
+  }
+
+  private static void runLayout(String name, boolean column_families, int key_count, int reads)
+    throws Exception
+  {
+    File dir = Files.createTempDirectory("dbmapbench").toFile();
+
+    TreeMap<String, String> config_map = new TreeMap<>();
+    config_map.put("db_path", dir.getPath());
+    config_map.put("db_column_families", "" + column_families);
+
+    JRocksDB jdb = new JRocksDB(new ConfigMem(config_map));
+    try
+    {
+      DBMap map = jdb.openMap("u");
+      TrieDBMap trie_db = new TrieDBMap(map);
+
+      Random rnd = new Random(1234L);
+      ArrayList<ByteString> keys = new ArrayList<>();
+      TreeMap<ByteString, TrieNode> nodes = new TreeMap<>(new ByteStringComparator());
+      for(int i=0; i<key_count; i++)
+      {
+        byte[] hash = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+        byte[] data = new byte[150];
+        rnd.nextBytes(hash);
+        rnd.nextBytes(data);
+
+        ByteString key = ByteString.copyFrom(hash);
+        TrieNode node = TrieNode.newBuilder()
+          .setHash(key)
+          .setPrefix(key.substring(0, 4))
+          .setIsLeaf(true)
+          .setLeafData(ByteString.copyFrom(data))
+          .build();
+        keys.add(key);
+        nodes.put(key, node);
+        if (nodes.size() >= 10000)
+        {
+          trie_db.bulkSave(nodes);
+          nodes.clear();
+        }
+      }
+      trie_db.bulkSave(nodes);
+
+      // warm up
+      readPass(map, trie_db, keys, reads / 10, false, rnd);
+      readPass(map, trie_db, keys, reads / 10, true, rnd);
+
+      System.out.println(name + " DBMap.get:        " + readPass(map, trie_db, keys, reads, false, rnd));
+      System.out.println(name + " TrieDBMap.load:   " + readPass(map, trie_db, keys, reads, true, rnd));
+    }
+    finally
+    {
+      jdb.close();
+      deleteAll(dir);
+    }
+  }
+
+  private static String readPass(DBMap map, TrieDBMap trie_db, ArrayList<ByteString> keys, int reads, boolean parse, Random rnd)
+  {
+    com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long tid = Thread.currentThread().getId();
+
+    long found = 0L;
+    long a1 = mx.getThreadAllocatedBytes(tid);
+    long t1 = System.nanoTime();
+    for(int i=0; i<reads; i++)
+    {
+      ByteString key = keys.get(rnd.nextInt(keys.size()));
+      if (parse)
+      {
+        if (trie_db.load(key) != null) found++;
+      }
+      else
+      {
+        if (map.get(key) != null) found++;
+      }
+    }
+    long t2 = System.nanoTime();
+    long a2 = mx.getThreadAllocatedBytes(tid);
+
+    if (found != reads) throw new RuntimeException("Missing keys: " + (reads - found));
+
+    DecimalFormat df = new DecimalFormat("0.0");
+    return String.format("%s ns/op, %s bytes/op",
+      df.format((double)(t2 - t1) / reads), df.format((double)(a2 - a1) / reads));
+  }
+
+  private static void deleteAll(File f)
+  {
+    File[] sub = f.listFiles();
+    if (sub != null)
+    {
+      for(File s : sub) deleteAll(s);
+    }
+    f.delete();
+  }
+
+}
@@ -9,6 +9,8 @@ import snowblossom.lib.DigestUtil;
 import snowblossom.lib.Globals;
 
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 public class DigestUtilTest
@@ -117,6 +119,26 @@ public class DigestUtilTest
     Assert.assertEquals(r, result);
   }
 
+  @Test
+  public void testMerkleBranchForFirst()
+  {
+    for(int n=1; n<40; n++)
+    {
+      ArrayList<ChainHash> lst = new ArrayList<>();
+      for(int j=0; j<n; j++)
+      {
+        lst.add(getRandomHash());
+      }
+      List<ChainHash> branch = DigestUtil.getMerkleBranchForFirst(lst);
+
+      Assert.assertEquals(DigestUtil.getMerkleRootForTxList(lst), DigestUtil.getMerkleRootFromBranch(lst.get(0), branch));
+
+      // Change out the first one, branch should still work
+      lst.set(0, getRandomHash());
+      Assert.assertEquals(DigestUtil.getMerkleRootForTxList(lst), DigestUtil.getMerkleRootFromBranch(lst.get(0), branch));
+    }
+  }
+
 
 
 
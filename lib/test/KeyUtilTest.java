@@ -159,8 +159,17 @@ public class KeyUtilTest
 
     logger.info(String.format("Key report %s Pub size: %d, sig %d", name, wkp.getPublicKey().size(), sig.size()));
 
+    Assert.assertFalse(SignatureUtil.isSignatureCached(sig_spec, hash.getBytes(), sig));
     Assert.assertTrue(SignatureUtil.checkSignature(sig_spec, hash.getBytes(), sig));
 
+    // Second time should come from the cache
+    Assert.assertTrue(SignatureUtil.isSignatureCached(sig_spec, hash.getBytes(), sig));
+    Assert.assertTrue(SignatureUtil.checkSignature(sig_spec, hash.getBytes(), sig));
+
+    // But not for different data, and a failed check isn't remembered
+    Assert.assertFalse(SignatureUtil.checkSignature(sig_spec, hash.getBytes().substring(1), sig));
+    Assert.assertFalse(SignatureUtil.isSignatureCached(sig_spec, hash.getBytes().substring(1), sig));
+
 
   }
 
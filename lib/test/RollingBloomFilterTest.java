@@ -0,0 +1,57 @@
+package lib.test;
+
+import com.google.protobuf.ByteString;
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.RollingBloomFilter;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+public class RollingBloomFilterTest
+{
+  private Random rnd = new Random(22L);
+
+  private ByteString getRandom()
+  {
+    byte[] b = new byte[32];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+
+  @Test
+  public void testRecentKept()
+  {
+    RollingBloomFilter filter = new RollingBloomFilter(1000, 0.001);
+    ArrayList<ByteString> added = new ArrayList<>();
+
+    for(int i=0; i<5000; i++)
+    {
+      ByteString k = getRandom();
+      filter.add(k);
+      added.add(k);
+    }
+
+    // The last cap entries are always in there
+    for(int i=4000; i<5000; i++)
+    {
+      Assert.assertTrue(filter.mightContain(added.get(i)));
+    }
+
+    // The oldest are forgotten, other than the odd false positive
+    int found = 0;
+    for(int i=0; i<1000; i++)
+    {
+      if (filter.mightContain(added.get(i))) found++;
+    }
+    Assert.assertTrue(found < 20);
+
+    int false_pos = 0;
+    for(int i=0; i<10000; i++)
+    {
+      if (filter.mightContain(getRandom())) false_pos++;
+    }
+    Assert.assertTrue(false_pos < 100);
+  }
+
+}
@@ -0,0 +1,89 @@
+package lib.test;
+
+import com.google.protobuf.ByteString;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.Globals;
+import snowblossom.lib.KeyUtil;
+import snowblossom.lib.SignatureBatch;
+import snowblossom.lib.SignatureUtil;
+import snowblossom.proto.SigSpec;
+import snowblossom.proto.WalletKeyPair;
+
+import java.text.DecimalFormat;
+import java.util.Random;
+
+/**
+ * Compares verifying a batch of signatures one at a time against
+ * verifying them with SignatureBatch on the fork join pool.
+ *
+ * Run with: bazel run //lib:SignatureBatchBench -- [batch_size] [rounds]
+ */
+public class SignatureBatchBench
+{
+  public static void main(String args[]) throws Exception
+  {
+    Globals.addCryptoProvider();
+
+    int batch_size = 256;
+    int rounds = 5;
+    if (args.length > 0) batch_size = Integer.parseInt(args[0]);
+    if (args.length > 1) rounds = Integer.parseInt(args[1]);
+
+    System.out.println(String.format("Batch size %d, %d rounds, %d processors",
+      batch_size, rounds, Runtime.getRuntime().availableProcessors()));
+
+    runAlgo("ECDSA compressed", KeyUtil.generateWalletStandardECKey(), batch_size, rounds);
+    runAlgo("ECDSA secp384r1", KeyUtil.generateWalletECKey("secp384r1"), batch_size, rounds);
+    runAlgo("RSA 2048", KeyUtil.generateWalletRSAKey(2048), batch_size, rounds);
+    runAlgo("DSA", KeyUtil.generateWalletDSAKey(), batch_size, rounds);
+    runAlgo("DSTU4145", KeyUtil.generateWalletDSTU4145Key(0), batch_size, rounds);
+  }
+
+  private static void runAlgo(String name, WalletKeyPair wkp, int batch_size, int rounds)
+    throws Exception
+  {
+    SigSpec sig_spec = SigSpec.newBuilder()
+      .setSignatureType(wkp.getSignatureType())
+      .setPublicKey(wkp.getPublicKey())
+      .build();
+
+    Random rnd = new Random();
+    // Without the cache, or every round after the warm up would only be cache lookups
+    SignatureBatch batch = new SignatureBatch(false);
+    for(int i=0; i<batch_size; i++)
+    {
+      byte[] b = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+      rnd.nextBytes(b);
+      ChainHash hash = new ChainHash(b);
+      ByteString sig = SignatureUtil.sign(wkp, hash);
+      batch.add(sig_spec, hash.getBytes(), sig);
+    }
+
+    // warm up
+    batch.verifySequential();
+    batch.verify();
+
+    long seq_ns = 0L;
+    long par_ns = 0L;
+    for(int r=0; r<rounds; r++)
+    {
+      long t1 = System.nanoTime();
+      batch.verifySequential();
+      long t2 = System.nanoTime();
+      batch.verify();
+      long t3 = System.nanoTime();
+
+      seq_ns += t2 - t1;
+      par_ns += t3 - t2;
+    }
+
+    DecimalFormat df = new DecimalFormat("0.0");
+    double total = (double) batch_size * rounds;
+    double seq_rate = total / (seq_ns / 1e9);
+    double par_rate = total / (par_ns / 1e9);
+
+    System.out.println(String.format("%s: sequential %s sig/s, parallel %s sig/s, speedup %s",
+      name, df.format(seq_rate), df.format(par_rate), df.format(par_rate / seq_rate)));
+  }
+
+}
@@ -184,6 +184,61 @@ public class ValidationTest
   }
 
 
+  @Test
+  public void testSignatureBatch()
+    throws Exception
+  {
+    WalletKeyPair wkp = KeyUtil.generateWalletStandardECKey();
+    SigSpec sig_spec = SigSpec.newBuilder()
+      .setSignatureType(wkp.getSignatureType())
+      .setPublicKey(wkp.getPublicKey())
+      .build();
+
+    SignatureBatch batch = new SignatureBatch();
+    SignatureBatch uncached_batch = new SignatureBatch(false);
+    ChainHash last_hash = null;
+    ByteString last_sig = null;
+    for(int i=0; i<16; i++)
+    {
+      byte[] b = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+      rnd.nextBytes(b);
+      last_hash = new ChainHash(b);
+      last_sig = SignatureUtil.sign(wkp, last_hash);
+      batch.add(sig_spec, last_hash.getBytes(), last_sig);
+      uncached_batch.add(sig_spec, last_hash.getBytes(), last_sig);
+    }
+
+    // The uncached one leaves nothing in the cache
+    uncached_batch.verify();
+    uncached_batch.verifySequential();
+    Assert.assertFalse(SignatureUtil.isSignatureCached(sig_spec, last_hash.getBytes(), last_sig));
+
+    // Sequential first, while nothing is cached, so it does the real check
+    batch.verifySequential();
+    Assert.assertTrue(SignatureUtil.isSignatureCached(sig_spec, last_hash.getBytes(), last_sig));
+    batch.verify();
+
+    // Signature for some other data
+    byte[] b = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    rnd.nextBytes(b);
+    batch.add(sig_spec, ByteString.copyFrom(b), last_sig);
+    uncached_batch.add(sig_spec, ByteString.copyFrom(b), last_sig);
+
+    try
+    {
+      batch.verify();
+      Assert.fail("Expected bad signature to be found");
+    }
+    catch(ValidationException e){}
+
+    try
+    {
+      uncached_batch.verify();
+      Assert.fail("Expected bad signature to be found");
+    }
+    catch(ValidationException e){}
+  }
+
   @Test
   public void testTxOutCoding()
     throws Exception
@@ -0,0 +1,248 @@
+package lib.test.db;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import duckutil.ConfigMem;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import snowblossom.lib.db.DBCursor;
+import snowblossom.lib.db.DBMap;
+import snowblossom.lib.db.DBMapMutationSet;
+import snowblossom.lib.db.rocksdb.JRocksDB;
+import snowblossom.lib.trie.ByteStringComparator;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class JRocksDBTest
+{
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  private JRocksDB openDB(boolean column_families)
+    throws Exception
+  {
+    TreeMap<String, String> config_map = new TreeMap<>();
+    config_map.put("db_path", testFolder.newFolder().getPath());
+    config_map.put("db_column_families", "" + column_families);
+    return new JRocksDB(new ConfigMem(config_map));
+  }
+
+  private static ByteString str(String s)
+  {
+    return ByteString.copyFrom(s.getBytes());
+  }
+
+  @Test
+  public void testContainsKey() throws Exception
+  {
+    for(boolean cf : new boolean[]{false, true})
+    {
+      JRocksDB jdb = openDB(cf);
+      DBMap map = jdb.openMap("blocksummary");
+      DBMap other = jdb.openMap("special");
+
+      map.put(str("a"), str("1"));
+      Assert.assertTrue(map.containsKey(str("a")));
+      Assert.assertFalse(map.containsKey(str("b")));
+      Assert.assertFalse(other.containsKey(str("a")));
+
+      // Has to see what is in an open batch
+      jdb.beginBatch();
+      map.put(str("b"), str("2"));
+      Assert.assertTrue(map.containsKey(str("b")));
+      jdb.abortBatch();
+      Assert.assertFalse(map.containsKey(str("b")));
+
+      jdb.close();
+    }
+  }
+
+  @Test
+  public void testGetAllInBatch() throws Exception
+  {
+    for(boolean cf : new boolean[]{false, true})
+    {
+      JRocksDB jdb = openDB(cf);
+      DBMap map = jdb.openMap("u");
+
+      map.put(str("a"), str("1"));
+      map.put(str("b"), str("2"));
+
+      // multiGet only sees the db, the batch has to go over it
+      jdb.beginBatch();
+      map.put(str("a"), str("3"));
+      map.remove(str("b"));
+      map.put(str("c"), str("4"));
+
+      Map<ByteString, ByteString> found = map.getAll(ImmutableList.of(str("a"), str("b"), str("c"), str("d")));
+      Assert.assertEquals(2, found.size());
+      Assert.assertEquals(str("3"), found.get(str("a")));
+      Assert.assertEquals(str("4"), found.get(str("c")));
+      jdb.abortBatch();
+
+      found = map.getAll(ImmutableList.of(str("a"), str("b"), str("c")));
+      Assert.assertEquals(2, found.size());
+      Assert.assertEquals(str("1"), found.get(str("a")));
+      Assert.assertEquals(str("2"), found.get(str("b")));
+
+      jdb.close();
+    }
+  }
+
+  @Test
+  public void testBulkLoad() throws Exception
+  {
+    for(boolean cf : new boolean[]{false, true})
+    {
+      JRocksDB jdb = openDB(cf);
+      DBMap map = jdb.openMap("u");
+      DBMap other = jdb.openMap("special");
+      map.put(str("k000"), str("old"));
+
+      TreeMap<ByteString, ByteString> entries = new TreeMap<>(new ByteStringComparator());
+      for(int i=0; i<1000; i++)
+      {
+        entries.put(str(String.format("k%03d", i)), str("v" + i));
+      }
+      jdb.bulkLoad(map, entries);
+
+      Assert.assertEquals(str("v0"), map.get(str("k000")));
+      Assert.assertEquals(str("v999"), map.get(str("k999")));
+      Assert.assertEquals(1000, map.getAll(entries.keySet()).size());
+      Assert.assertNull(other.get(str("k000")));
+
+      jdb.close();
+    }
+  }
+
+  @Test
+  public void testMapCursorResume() throws Exception
+  {
+    for(boolean cf : new boolean[]{false, true})
+    {
+      JRocksDB jdb = openDB(cf);
+      DBMap map = jdb.openMap("u");
+      DBMap other = jdb.openMap("special");
+
+      for(int i=0; i<100; i++)
+      {
+        map.put(str(String.format("k%03d", i)), str("v" + i));
+      }
+      map.put(str("z"), str("zz"));
+      other.put(str("k500"), str("other"));
+
+      ArrayList<ByteString> found = new ArrayList<>();
+      ByteString token = null;
+      while(true)
+      {
+        int page = 0;
+        try(DBCursor<Map.Entry<ByteString, ByteString>> cursor = map.openCursor(str("k"), token))
+        {
+          while(cursor.hasNext() && (page < 7))
+          {
+            found.add(cursor.next().getKey());
+            page++;
+          }
+          token = cursor.getResumeToken();
+          if (!cursor.hasNext()) break;
+        }
+      }
+
+      Assert.assertEquals(100, found.size());
+      for(int i=0; i<100; i++)
+      {
+        Assert.assertEquals(str(String.format("k%03d", i)), found.get(i));
+      }
+
+      jdb.close();
+    }
+  }
+
+  @Test
+  public void testSetCursorResume() throws Exception
+  {
+    for(boolean cf : new boolean[]{false, true})
+    {
+      JRocksDB jdb = openDB(cf);
+      DBMapMutationSet set = jdb.openMutationMapSet("tx_blk_map");
+
+      ByteString key = str("keykeykeykeykeykeykeykeykeykeyke");
+      ByteString key2 = str("keykeykeykeykeykeykeykeykeykeykf");
+      for(int i=0; i<50; i++)
+      {
+        set.add(key, str(String.format("v%03d", i)));
+      }
+      set.add(key2, str("other"));
+
+      ArrayList<ByteString> found = new ArrayList<>();
+      ByteString token = null;
+      boolean more = true;
+      while(more)
+      {
+        try(DBCursor<ByteString> cursor = set.openCursor(key, token))
+        {
+          for(int i=0; (i<8) && cursor.hasNext(); i++)
+          {
+            found.add(cursor.next());
+          }
+          token = cursor.getResumeToken();
+          more = cursor.hasNext();
+        }
+      }
+
+      Assert.assertEquals(50, found.size());
+      for(int i=0; i<50; i++)
+      {
+        Assert.assertEquals(str(String.format("v%03d", i)), found.get(i));
+      }
+
+      jdb.close();
+    }
+  }
+
+  @Test
+  public void testScanCursor() throws Exception
+  {
+    for(boolean cf : new boolean[]{false, true})
+    {
+      JRocksDB jdb = openDB(cf);
+      DBMapMutationSet old_set = jdb.openMutationMapSet("tx_blk_map");
+      DBMapMutationSet compact_set = jdb.openMutationMapSet("tx_blk_map_2");
+
+      ByteString key = str("keykeykeykeykeykeykeykeykeykeyke");
+      ByteString key2 = str("keykeykeykeykeykeykeykeykeykeykf");
+      old_set.add(key, str("a/b"));
+      old_set.add(key2, str("c"));
+      compact_set.add(key, str("zz"));
+
+      ArrayList<Map.Entry<ByteString, ByteString>> found = new ArrayList<>();
+      ByteString token = null;
+      try(DBCursor<Map.Entry<ByteString, ByteString>> cursor = old_set.openScanCursor(key.size(), null))
+      {
+        found.add(cursor.next());
+        token = cursor.getResumeToken();
+      }
+      try(DBCursor<Map.Entry<ByteString, ByteString>> cursor = old_set.openScanCursor(key.size(), token))
+      {
+        while(cursor.hasNext()) found.add(cursor.next());
+      }
+
+      Assert.assertEquals(2, found.size());
+      Assert.assertEquals(key, found.get(0).getKey());
+      Assert.assertEquals(str("a/b"), found.get(0).getValue());
+      Assert.assertEquals(key2, found.get(1).getKey());
+      Assert.assertEquals(str("c"), found.get(1).getValue());
+
+      // The compact set has no separator but reads back the same way
+      Assert.assertEquals(1, compact_set.getSet(key, 10).size());
+      Assert.assertEquals(str("zz"), compact_set.getSet(key, 10).get(0));
+      Assert.assertEquals(0, compact_set.getSet(key2, 10).size());
+
+      jdb.close();
+    }
+  }
+
+
+}
@@ -0,0 +1,73 @@
+package lib.test.db;
+
+import com.google.protobuf.ByteString;
+import duckutil.ConfigMem;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import snowblossom.lib.db.rocksdb.JRocksDB;
+import snowblossom.lib.db.segment.SegmentDBMap;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class SegmentDBMapTest
+{
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  @Test
+  public void testPutGetReopen() throws Exception
+  {
+    TreeMap<String, String> config_map = new TreeMap<>();
+    config_map.put("db_path", testFolder.newFolder().getPath());
+    File seg_dir = testFolder.newFolder();
+
+    ArrayList<ByteString> keys = new ArrayList<>();
+    ArrayList<ByteString> values = new ArrayList<>();
+    Random rnd = new Random(55L);
+
+    JRocksDB jdb = new JRocksDB(new ConfigMem(config_map));
+    // Small segments so this goes over several of them
+    SegmentDBMap map = new SegmentDBMap(seg_dir, jdb.openMap("block_idx"), 10000L);
+
+    for(int i=0; i<50; i++)
+    {
+      byte[] k = new byte[32];
+      byte[] v = new byte[1000 + rnd.nextInt(3000)];
+      rnd.nextBytes(k);
+      rnd.nextBytes(v);
+      keys.add(ByteString.copyFrom(k));
+      values.add(ByteString.copyFrom(v));
+
+      map.put(keys.get(i), values.get(i));
+
+      // readable right away from the segment still being written
+      Assert.assertEquals(values.get(i), map.get(keys.get(i)));
+    }
+    Assert.assertTrue(new File(seg_dir, "seg_000003.dat").exists());
+    Assert.assertNull(map.get(ByteString.copyFrom(new byte[32])));
+    Assert.assertFalse(map.containsKey(ByteString.copyFrom(new byte[32])));
+
+    map.close();
+    jdb.close();
+
+    jdb = new JRocksDB(new ConfigMem(config_map));
+    map = new SegmentDBMap(seg_dir, jdb.openMap("block_idx"), 10000L);
+    for(int i=0; i<keys.size(); i++)
+    {
+      Assert.assertTrue(map.containsKey(keys.get(i)));
+      Assert.assertEquals(values.get(i), map.get(keys.get(i)));
+    }
+
+    // Goes on the end of the last segment
+    ByteString k = ByteString.copyFrom(new byte[32]);
+    map.put(k, values.get(0));
+    Assert.assertEquals(values.get(0), map.get(k));
+
+    map.close();
+    jdb.close();
+  }
+
+}
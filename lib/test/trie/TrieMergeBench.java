@@ -0,0 +1,89 @@
+package lib.test.trie;
+
+import com.google.protobuf.ByteString;
+import snowblossom.lib.trie.HashUtils;
+import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.TrieDBMem;
+
+import java.lang.management.ManagementFactory;
+import java.text.DecimalFormat;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures HashedTrie merges of 1k, 10k and 100k updates against a trie
+ * that already has some entries.  Reports merges per second and bytes allocated
+ * per merge, summed over all threads since the merge may fork.
+ *
+ * Run with: bazel run //lib:TrieMergeBench -- [rounds]
+ */
+public class TrieMergeBench
+{
+  private static final int KEY_LEN = 54;
+
+  public static void main(String args[]) throws Exception
+  {
+    int rounds = 10;
+    if (args.length > 0) rounds = Integer.parseInt(args[0]);
+
+    Random rnd = new Random(1L);
+    HashedTrie trie = new HashedTrie(new TrieDBMem(), KEY_LEN, true);
+
+    ByteString root = trie.mergeBatch(HashUtils.hashOfEmpty(), randomUpdates(rnd, 250000));
+    System.out.println("Base trie loaded");
+
+    int[] sizes = {1000, 10000, 100000};
+    for(int sz : sizes)
+    {
+      Map<ByteString, ByteString> updates = randomUpdates(rnd, sz);
+
+      // warm up
+      for(int i=0; i<3; i++) trie.simulateMerge(root, updates);
+
+      long alloc_start = getAllocatedBytes();
+      long t1 = System.nanoTime();
+      for(int i=0; i<rounds; i++)
+      {
+        trie.simulateMerge(root, updates);
+      }
+      long t2 = System.nanoTime();
+      long alloc = getAllocatedBytes() - alloc_start;
+
+      DecimalFormat df = new DecimalFormat("0.000");
+      double sec = (t2 - t1) / 1e9;
+      System.out.println(String.format("%d updates: %s ops/sec, %d bytes/op, %d bytes/update",
+        sz,
+        df.format(rounds / sec),
+        alloc / rounds,
+        alloc / rounds / sz));
+    }
+  }
+
+  private static Map<ByteString, ByteString> randomUpdates(Random rnd, int count)
+  {
+    HashMap<ByteString, ByteString> updates = new HashMap<>();
+    while(updates.size() < count)
+    {
+      byte[] key = new byte[KEY_LEN];
+      byte[] value = new byte[40];
+      rnd.nextBytes(key);
+      rnd.nextBytes(value);
+      updates.put(ByteString.copyFrom(key), ByteString.copyFrom(value));
+    }
+    return updates;
+  }
+
+  private static long getAllocatedBytes()
+  {
+    com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long[] ids = mx.getAllThreadIds();
+    long sum = 0L;
+    for(long b : mx.getThreadAllocatedBytes(ids))
+    {
+      if (b > 0) sum += b;
+    }
+    return sum;
+  }
+
+}
@@ -2,19 +2,30 @@ package lib.test.trie;
 
 import com.google.common.collect.ImmutableList;
 import com.google.protobuf.ByteString;
+import duckutil.ConfigMem;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import snowblossom.lib.db.DB;
+import snowblossom.lib.db.rocksdb.JRocksDB;
 import snowblossom.lib.trie.HashUtils;
 import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.TrieDBCached;
+import snowblossom.lib.trie.TrieDBMap;
 import snowblossom.lib.trie.TrieDBMem;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
 
 public class TrieTest
 {
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
   private static ByteString emptyRoot = HashUtils.hashOfEmpty();
   private static HashedTrie trie = new HashedTrie(new TrieDBMem(), 8, true);
 
@@ -303,5 +314,117 @@ public class TrieTest
     }
   }
  
+
+  @Test
+  public void testCached() throws Exception {
+
+    // Small enough that things get evicted along the way
+    TrieDBCached cache = new TrieDBCached(new TrieDBMem(), 64L * 1024L);
+    HashedTrie cached_trie = new HashedTrie(cache, 8, true);
+
+    Random rnd = new Random(87L);
+    Map<ByteString, ByteString> update_map = new HashMap<>();
+    for(int i=0; i<10000; i++)
+    {
+      byte[] key_data = new byte[8];
+      rnd.nextBytes(key_data);
+      byte[] data_data = new byte[8];
+      rnd.nextBytes(data_data);
+      update_map.put(ByteString.copyFrom(key_data), ByteString.copyFrom(data_data));
+    }
+
+    ByteString hash = cached_trie.mergeBatch(emptyRoot, update_map);
+    Assert.assertEquals("c2a8b068d8613232723c54d611faf9bc894adbd5b36c089fb3ab0379415978f3", HashUtils.getHexString(hash));
+
+    for(Map.Entry<ByteString, ByteString> me : update_map.entrySet())
+    {
+      Assert.assertEquals(me.getValue(), cached_trie.getLeafData(hash, me.getKey()));
+    }
+
+    Assert.assertTrue(cache.getHits() > 0);
+    Assert.assertTrue(cache.getResidentBytes() <= 64L * 1024L);
+  }
+
+  @Test
+  public void testCachedBatch() throws Exception {
+
+    TreeMap<String, String> config_map = new TreeMap<>();
+    config_map.put("db_path", testFolder.newFolder().getPath());
+    JRocksDB prov = new JRocksDB(new ConfigMem(config_map));
+    DB db = new DB(new ConfigMem(config_map), prov);
+
+    TrieDBCached cache = new TrieDBCached(new TrieDBMap(db.getUtxoNodeMap()), 1048576L, db);
+    HashedTrie cached_trie = new HashedTrie(cache, 8, true);
+
+    Random rnd = new Random(87L);
+    Map<ByteString, ByteString> update_map = new HashMap<>();
+    for(int i=0; i<1000; i++)
+    {
+      byte[] key_data = new byte[8];
+      rnd.nextBytes(key_data);
+      byte[] data_data = new byte[8];
+      rnd.nextBytes(data_data);
+      update_map.put(ByteString.copyFrom(key_data), ByteString.copyFrom(data_data));
+    }
+
+    // Aborted, so none of it can be in the cache after
+    db.beginBatch();
+    ByteString hash = cached_trie.mergeBatch(emptyRoot, update_map);
+    for(Map.Entry<ByteString, ByteString> me : update_map.entrySet())
+    {
+      Assert.assertEquals(me.getValue(), cached_trie.getLeafData(hash, me.getKey()));
+    }
+    db.abortBatch();
+
+    Assert.assertEquals(0, cache.getResidentNodes());
+    Assert.assertNull(cache.load(hash));
+
+    db.beginBatch();
+    Assert.assertEquals(hash, cached_trie.mergeBatch(emptyRoot, update_map));
+    Assert.assertEquals(0, cache.getResidentNodes());
+    db.commitBatch();
+
+    Assert.assertTrue(cache.getResidentNodes() > 0);
+    for(Map.Entry<ByteString, ByteString> me : update_map.entrySet())
+    {
+      Assert.assertEquals(me.getValue(), cached_trie.getLeafData(hash, me.getKey()));
+    }
+
+    db.close();
+  }
+
+  @Test
+  public void testGetBatch() throws Exception {
+
+    Random rnd = new Random(87L);
+    Map<ByteString, ByteString> update_map = new HashMap<>();
+    ArrayList<ByteString> query = new ArrayList<>();
+    for(int i=0; i<10000; i++)
+    {
+      byte[] key_data = new byte[8];
+      rnd.nextBytes(key_data);
+      byte[] data_data = new byte[8];
+      rnd.nextBytes(data_data);
+      update_map.put(ByteString.copyFrom(key_data), ByteString.copyFrom(data_data));
+      if (i % 10 == 0) query.add(ByteString.copyFrom(key_data));
+    }
+    ByteString hash = trie.mergeBatch(emptyRoot, update_map);
+
+    // Some that aren't there
+    for(int i=0; i<100; i++)
+    {
+      byte[] key_data = new byte[8];
+      rnd.nextBytes(key_data);
+      query.add(ByteString.copyFrom(key_data));
+    }
+
+    Map<ByteString, ByteString> found = trie.getLeafDataBatch(hash, query);
+    for(ByteString key : query)
+    {
+      Assert.assertEquals(trie.getLeafData(hash, key), found.get(key));
+    }
+    Assert.assertEquals(1000, found.size());
+  }
+
 }
 
@@ -1,15 +1,32 @@
 package snowblossom.node;
 import snowblossom.lib.db.DB;
+import snowblossom.lib.db.DBCursor;
+import snowblossom.lib.db.DBTooManyResultsException;
 import snowblossom.proto.*;
 import com.google.protobuf.ByteString;
 import com.google.common.collect.TreeMultimap;
 import snowblossom.lib.db.DBMapMutationSet;
 import snowblossom.lib.*;
 import java.nio.ByteBuffer;
-import java.util.List;
-
+import java.util.Map;
+
+/**
+ * The address history index is kept in two formats.
+ * addr_hist_2 values are height, block hash and tx hash (68 bytes).
+ * addr_hist_3 values are height, block hash prefix and tx hash (44 bytes)
+ * with no name or separator in the key.  Both start with the big endian height
+ * so history comes back in height order.
+ *
+ * Until IndexMigrator has copied everything over, blocks are written to both and
+ * reads use addr_hist_2.  The two are told apart by value size.
+ */
 public class AddressHistoryUtil
 {
+  public static final String COMPACT_NAME = "addr_hist_3";
+
+  private static final int VALUE_SIZE = 4 + Globals.BLOCKCHAIN_HASH_LEN * 2;
+  private static final int COMPACT_VALUE_SIZE = 4 + Globals.INDEX_BLOCK_HASH_PREFIX_LEN + Globals.BLOCKCHAIN_HASH_LEN;
+
   public static void saveAddressHistory(Block blk, DB db)
   {
     TreeMultimap<ByteString, ByteString> map = DBMapMutationSet.createMap();
@@ -34,7 +51,21 @@ public class AddressHistoryUtil
         map.put(addr, val);
       }
     }
-    db.getAddressHistoryMap().addAll(map);
+    if (!db.isCompactIndexReady(COMPACT_NAME))
+    {
+      db.getAddressHistoryMap().addAll(map);
+    }
+    db.getAddressHistoryCompactMap().addAll(getCompactMap(map));
+  }
+
+  public static TreeMultimap<ByteString, ByteString> getCompactMap(TreeMultimap<ByteString, ByteString> map)
+  {
+    TreeMultimap<ByteString, ByteString> compact = DBMapMutationSet.createMap();
+    for(Map.Entry<ByteString, ByteString> me : map.entries())
+    {
+      compact.put(me.getKey(), getCompactValue(me.getValue()));
+    }
+    return compact;
   }
 
   public static ByteString getValue(ChainHash blk_id, ChainHash tx_id, int height)
@@ -49,40 +80,110 @@ public class AddressHistoryUtil
     return ByteString.copyFrom(buff);
   }
 
+  /**
+   * Converts an addr_hist_2 value to an addr_hist_3 value
+   */
+  public static ByteString getCompactValue(ByteString val)
+  {
+    int blk_start = 4;
+    int tx_start = 4 + Globals.BLOCKCHAIN_HASH_LEN;
+    return val.substring(0, blk_start + Globals.INDEX_BLOCK_HASH_PREFIX_LEN)
+      .concat(val.substring(tx_start, tx_start + Globals.BLOCKCHAIN_HASH_LEN));
+  }
+
+  /**
+   * Opens a cursor on whichever history index is current.
+   * A resume token from the old index is converted, so a client paging through
+   * while the migration finishes carries on from the same place.
+   */
+  public static DBCursor<ByteString> openHistoryCursor(AddressSpecHash spec_hash, DB db, ByteString resume_token)
+  {
+    if (db.isCompactIndexReady(COMPACT_NAME))
+    {
+      if ((resume_token != null) && (resume_token.size() == VALUE_SIZE))
+      {
+        resume_token = getCompactValue(resume_token);
+      }
+      return db.getAddressHistoryCompactMap().openCursor(spec_hash.getBytes(), resume_token);
+    }
+    return db.getAddressHistoryMap().openCursor(spec_hash.getBytes(), resume_token);
+  }
+
   public static HistoryList getHistory(AddressSpecHash spec_hash, DB db, BlockHeightCache cache)
     throws ValidationException
   {
     if (db.getAddressHistoryMap() == null) throw new ValidationException("no addr history");
 
-    List<ByteString> value_set = db.getAddressHistoryMap().getSet(spec_hash.getBytes(), Globals.ADDRESS_HISTORY_MAX_REPLY);
-
     HistoryList.Builder hist_list = HistoryList.newBuilder();
 
-    for(ByteString val : value_set)
+    int count = 0;
+    try(DBCursor<ByteString> cursor = openHistoryCursor(spec_hash, db, null))
     {
-      ByteBuffer bb = ByteBuffer.wrap(val.toByteArray());
-      int height = bb.getInt();
+      while(cursor.hasNext())
+      {
+        count++;
+        if (count > Globals.ADDRESS_HISTORY_MAX_REPLY) throw new DBTooManyResultsException();
 
-      byte[] b = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+        HistoryEntry e = getEntry(cursor.next(), cache);
+        if (e != null) hist_list.addEntries(e);
+      }
+    }
 
-      bb.get(b);
-      ChainHash blk_hash = new ChainHash(b);
+    return hist_list.build();
+  }
 
-      bb.get(b);
-      ChainHash tx_hash = new ChainHash(b);
+  /**
+   * Reads the next page of history from the cursor.
+   * Entries from blocks no longer in the main chain are left out, but still count towards the page size.
+   */
+  public static HistoryList getHistoryPage(DBCursor<ByteString> cursor, int page_size, BlockHeightCache cache)
+  {
+    HistoryList.Builder hist_list = HistoryList.newBuilder();
 
-      if (blk_hash.equals(cache.getHash(height)))
-      {
-        hist_list.addEntries(HistoryEntry
-          .newBuilder()
-          .setBlockHeight(height)
-          .setTxHash(tx_hash.getBytes())
-          .setBlockHash(blk_hash.getBytes())
-          .build());
-      }
+    for(int i=0; (i<page_size) && cursor.hasNext(); i++)
+    {
+      HistoryEntry e = getEntry(cursor.next(), cache);
+      if (e != null) hist_list.addEntries(e);
     }
+    hist_list.setResumeToken(cursor.getResumeToken());
 
     return hist_list.build();
   }
 
+  /**
+   * @return the entry for a value from either address history map, or null if it isn't in the main chain
+   */
+  private static HistoryEntry getEntry(ByteString val, BlockHeightCache cache)
+  {
+    ByteBuffer bb = ByteBuffer.wrap(val.toByteArray());
+    int height = bb.getInt();
+
+    ChainHash main_hash = cache.getHash(height);
+    if (main_hash == null) return null;
+
+    byte[] b = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+
+    if (val.size() == COMPACT_VALUE_SIZE)
+    {
+      byte[] blk_prefix = new byte[Globals.INDEX_BLOCK_HASH_PREFIX_LEN];
+      bb.get(blk_prefix);
+      if (!main_hash.getBytes().substring(0, blk_prefix.length).equals(ByteString.copyFrom(blk_prefix))) return null;
+    }
+    else
+    {
+      bb.get(b);
+      if (!main_hash.equals(new ChainHash(b))) return null;
+    }
+
+    bb.get(b);
+    ChainHash tx_hash = new ChainHash(b);
+
+    return HistoryEntry
+      .newBuilder()
+      .setBlockHeight(height)
+      .setTxHash(tx_hash.getBytes())
+      .setBlockHash(main_hash.getBytes())
+      .build();
+  }
+
 }
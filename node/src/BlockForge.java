@@ -4,6 +4,8 @@ import com.google.protobuf.ByteString;
 import snowblossom.proto.*;
 import snowblossom.lib.*;
 import snowblossom.lib.trie.HashUtils;
+import snowblossom.lib.trie.HashedTrie;
+import duckutil.TimeRecord;
 
 import java.math.BigInteger;
 import java.security.MessageDigest;
@@ -67,40 +69,117 @@ public class BlockForge
 
     try
     {
+      TemplateBase base = getTemplateBase(head, header_builder.build());
 
-      UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer( node.getUtxoHashedTrie(), 
-        new ChainHash(head.getHeader().getUtxoRootHash()));
-      List<Transaction> regular_transactions = getTransactions(new ChainHash(head.getHeader().getUtxoRootHash()));
-      long fee_sum = 0L;
-      for(Transaction tx : regular_transactions)
-      {
-         fee_sum += Validation.deepTransactionCheck(tx, utxo_buffer, header_builder.build(), params);
-      }
+      // Only the coinbase is specific to this subscriber
+      UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer(base.overlay, base.utxo_root);
 
-      Transaction coinbase = buildCoinbase( header_builder.getBlockHeight(), fee_sum, mine_to);
+      Transaction coinbase = buildCoinbase( header_builder.getBlockHeight(), base.fee_sum, mine_to);
       Validation.deepTransactionCheck(coinbase, utxo_buffer, header_builder.build(), params);
 
       block_builder.addTransactions(coinbase);
-      block_builder.addAllTransactions(regular_transactions);
+      block_builder.addAllTransactions(base.regular_transactions);
 
+      header_builder.setMerkleRootHash( DigestUtil.getMerkleRootFromBranch(new ChainHash(coinbase.getTxHash()), base.merkle_branch).getBytes());
+      header_builder.setUtxoRootHash( utxo_buffer.simulateUpdates().getBytes());
+
+      block_builder.setHeader(header_builder.build());
+      return block_builder.build();
+    }
+    catch(ValidationException e)
+    {
+      throw new RuntimeException(e);
+    }
+
+  }
+
+  private volatile TemplateBase template_base = null;
+
+  /**
+   * Returns the part of the template that is the same for every subscriber,
+   * building it only if the head or the mempool has changed since the last one.
+   */
+  private TemplateBase getTemplateBase(BlockSummary head, BlockHeader header)
+    throws ValidationException
+  {
+    ChainHash prev_block = new ChainHash(header.getPrevBlockHash());
+    long mempool_version = node.getMemPool().getVersion();
+
+    TemplateBase base = template_base;
+    if ((base != null) && (base.matches(prev_block, mempool_version))) return base;
+
+    synchronized(this)
+    {
+      base = template_base;
+      if ((base != null) && (base.matches(prev_block, mempool_version))) return base;
+
+      long t1 = System.nanoTime();
+      ChainHash prev_utxo_root = new ChainHash(head.getHeader().getUtxoRootHash());
+
+      // Getting the snapshot applies any queued block update, so the version
+      // has to come from the snapshot the transactions are selected from
+      MemPool.PrioritySnapshot snap = node.getMemPool().getPrioritySnapshot(prev_utxo_root);
+      mempool_version = snap.version;
+      List<Transaction> regular_transactions = getTransactions(snap);
+
+      // The regular transactions are merged into an in memory overlay of the utxo trie
+      // so each subscriber only has to merge in its own coinbase outputs
+      HashedTrie overlay = node.getUtxoHashedTrie().getMemoryOverlay();
+      UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer(overlay, prev_utxo_root);
+      utxo_buffer.prefetchInputs(regular_transactions);
+
+      long fee_sum = 0L;
+      for(Transaction tx : regular_transactions)
+      {
+         fee_sum += Validation.deepTransactionCheck(tx, utxo_buffer, header, params);
+      }
+      ChainHash utxo_root = utxo_buffer.commit();
 
       LinkedList<ChainHash> tx_list = new LinkedList<ChainHash>();
-      for(Transaction tx : block_builder.getTransactionsList())
+      tx_list.add(ChainHash.ZERO_HASH); // coinbase goes here
+      for(Transaction tx : regular_transactions)
       {
         tx_list.add( new ChainHash(tx.getTxHash()));
       }
 
-      header_builder.setMerkleRootHash( DigestUtil.getMerkleRootForTxList(tx_list).getBytes());
-      header_builder.setUtxoRootHash( utxo_buffer.simulateUpdates().getBytes());
+      base = new TemplateBase(prev_block, mempool_version, regular_transactions, fee_sum,
+        overlay, utxo_root, DigestUtil.getMerkleBranchForFirst(tx_list));
+      template_base = base;
+      TimeRecord.record(t1, "BlockForge.buildTemplateBase");
 
-      block_builder.setHeader(header_builder.build());
-      return block_builder.build();
+      return base;
     }
-    catch(ValidationException e)
+  }
+
+  /**
+   * Everything about a block template except the coinbase
+   */
+  private static class TemplateBase
+  {
+    final ChainHash prev_block;
+    final long mempool_version;
+    final ImmutableList<Transaction> regular_transactions;
+    final long fee_sum;
+    final HashedTrie overlay;
+    final ChainHash utxo_root;
+    final ImmutableList<ChainHash> merkle_branch;
+
+    TemplateBase(ChainHash prev_block, long mempool_version, List<Transaction> regular_transactions, long fee_sum,
+      HashedTrie overlay, ChainHash utxo_root, List<ChainHash> merkle_branch)
     {
-      throw new RuntimeException(e);
+      this.prev_block = prev_block;
+      this.mempool_version = mempool_version;
+      this.regular_transactions = ImmutableList.copyOf(regular_transactions);
+      this.fee_sum = fee_sum;
+      this.overlay = overlay;
+      this.utxo_root = utxo_root;
+      this.merkle_branch = ImmutableList.copyOf(merkle_branch);
     }
 
+    boolean matches(ChainHash prev_block, long mempool_version)
+    {
+      return (this.prev_block.equals(prev_block)) && (this.mempool_version == mempool_version);
+    }
   }
 
   private Transaction buildCoinbase(int height, long fees, SubscribeBlockTemplateRequest mine_to)
@@ -204,9 +283,9 @@ public class BlockForge
 
   }
 
-  private List<Transaction> getTransactions(ChainHash prev_utxo_root)
+  private List<Transaction> getTransactions(MemPool.PrioritySnapshot snap)
   {
-    return node.getMemPool().getTransactionsForBlock(prev_utxo_root, Globals.MAX_BLOCK_SIZE);
+    return node.getMemPool().getTransactionsForBlock(snap, Globals.MAX_BLOCK_SIZE);
   }
 
 
@@ -0,0 +1,382 @@
+package snowblossom.node;
+
+import duckutil.RateReporter;
+import duckutil.TimeRecord;
+import snowblossom.lib.*;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockHeader;
+
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Staged ingestion for blocks that come in from peers.
+ *
+ * The stateless checks (header, pow proofs, transaction basics and signatures)
+ * don't need anything from the database so they run ahead on a worker pool for
+ * however many blocks the peers have sent us.  The part that needs the UTXO trie,
+ * deepBlockValidation and the commit, is done by a single thread in height order.
+ *
+ * Blocks that show up before their parent are parked until the parent is ingested.
+ *
+ * Submitting never blocks the peer's grpc thread.  When the pipeline is full the block
+ * is refused and that peer gets no new requests until there is room again.
+ */
+public class BlockIngestPipeline
+{
+  private static final Logger logger = Logger.getLogger("snowblossom.blockchain");
+
+  private final SnowBlossomNode node;
+  private final int depth;
+
+  private final ThreadPoolExecutor basics_exec;
+  private final PriorityBlockingQueue<PendingBlock> commit_queue;
+  private final Semaphore pending_permits;
+
+  // prev block hash -> blocks waiting on it, more than one if there is a fork
+  private final LRUCache<ChainHash, ArrayList<PendingBlock>> parked;
+  private static final int PARKED_SIBLINGS_MAX = 8;
+
+  // Links whose requests are paused until a permit frees up
+  private final HashSet<PeerLink> paused_links = new HashSet<>();
+
+  private final AtomicInteger basics_depth = new AtomicInteger(0);
+  private final AtomicLong seq = new AtomicLong(0L);
+  private final AtomicLong refused = new AtomicLong(0L);
+
+  private final RateReporter block_rate = new RateReporter();
+
+  public BlockIngestPipeline(SnowBlossomNode node)
+  {
+    this.node = node;
+
+    depth = node.getConfig().getIntWithDefault("ingest_pipeline_depth", 32);
+    int threads = node.getConfig().getIntWithDefault("ingest_pipeline_threads", Runtime.getRuntime().availableProcessors());
+
+    basics_exec = new ThreadPoolExecutor(
+      threads,
+      threads,
+      2, TimeUnit.DAYS,
+      new LinkedBlockingQueue<Runnable>(),
+      new DaemonThreadFactory("ingest_basics"));
+
+    commit_queue = new PriorityBlockingQueue<>();
+    pending_permits = new Semaphore(depth * 4);
+    parked = new LRUCache<>(depth * 4);
+
+    new CommitThread().start();
+  }
+
+  /**
+   * How many blocks a peer should have in flight to us to keep the pipeline fed
+   */
+  public int getDepth()
+  {
+    return depth;
+  }
+
+  /**
+   * Queue a block for ingestion.  Once the block is in, link.blockIngested() is called so
+   * it can ask for more.  On validation failure, the link is closed.
+   * @return false if there are already a great many blocks waiting, in which case
+   * the block is dropped and the link's requests are paused until there is room
+   */
+  public boolean submit(Block blk, PeerLink link)
+  {
+    if (!pending_permits.tryAcquire())
+    {
+      refused.incrementAndGet();
+      synchronized(paused_links)
+      {
+        link.pauseRequests();
+        paused_links.add(link);
+      }
+      // A permit might have come back before the link went in the set
+      if (pending_permits.availablePermits() > 0) resumeLinks();
+      return false;
+    }
+
+    final PendingBlock pb = new PendingBlock(blk, link);
+    basics_depth.incrementAndGet();
+
+    pb.basics = basics_exec.submit(new Callable<Boolean>()
+    {
+      public Boolean call()
+        throws ValidationException
+      {
+        long t1 = System.nanoTime();
+        TimeRecord.record(pb.submit_time, "BlockIngestPipeline.basicsQueueWait");
+        try
+        {
+          Validation.checkBlockBasics(node.getParams(), pb.blk, true, false);
+          return true;
+        }
+        finally
+        {
+          basics_depth.decrementAndGet();
+          TimeRecord.record(t1, "BlockIngestPipeline.basics");
+        }
+      }
+    });
+
+    commit_queue.add(pb);
+    return true;
+  }
+
+  /**
+   * Checks a run of headers from a peer, pow proofs and all, on the same threads
+   * that check blocks.  Returns once all of them are checked.
+   */
+  public void checkHeaders(List<BlockHeader> headers)
+    throws ValidationException, InterruptedException
+  {
+    long t1 = System.nanoTime();
+    ArrayList<Future<Boolean>> checks = new ArrayList<>();
+    for(final BlockHeader header : headers)
+    {
+      checks.add(basics_exec.submit(new Callable<Boolean>()
+      {
+        public Boolean call()
+          throws ValidationException
+        {
+          Validation.checkBlockHeaderBasics(node.getParams(), header, false);
+          return true;
+        }
+      }));
+    }
+
+    for(Future<Boolean> f : checks)
+    {
+      try
+      {
+        f.get();
+      }
+      catch(ExecutionException e)
+      {
+        if (e.getCause() instanceof ValidationException) throw (ValidationException) e.getCause();
+        throw new RuntimeException(e.getCause());
+      }
+    }
+    TimeRecord.record(t1, "BlockIngestPipeline.checkHeaders");
+  }
+
+  public int getBasicsQueueDepth()
+  {
+    return basics_depth.get();
+  }
+
+  public int getCommitQueueDepth()
+  {
+    return commit_queue.size();
+  }
+
+  public int getParkedCount()
+  {
+    synchronized(parked)
+    {
+      int count = 0;
+      for(List<PendingBlock> lst : parked.values())
+      {
+        count += lst.size();
+      }
+      return count;
+    }
+  }
+
+  public void printReport(PrintStream out)
+  {
+    DecimalFormat df = new DecimalFormat("0.00");
+    out.println(String.format("Ingest pipeline: basics queue %d, commit queue %d, parked %d, refused %d",
+      getBasicsQueueDepth(), getCommitQueueDepth(), getParkedCount(), refused.get()));
+    out.println("Ingest blocks/sec: " + block_rate.getReportShort(df));
+  }
+
+  private void commit(PendingBlock pb)
+  {
+    long t_wait = System.nanoTime();
+    try
+    {
+      try
+      {
+        pb.basics.get();
+      }
+      catch(ExecutionException e)
+      {
+        if (e.getCause() instanceof ValidationException) throw (ValidationException) e.getCause();
+        throw new RuntimeException(e.getCause());
+      }
+      TimeRecord.record(t_wait, "BlockIngestPipeline.commitWaitBasics");
+
+      Block blk = pb.blk;
+      ChainHash prev = new ChainHash(blk.getHeader().getPrevBlockHash());
+
+      if ((blk.getHeader().getBlockHeight() > 0) && (!node.getBlockIngestor().hasBlock(prev)))
+      {
+        // Parent isn't in yet, maybe it is still on its way.
+        // Hold on to this until it shows up.  The parked cache is bounded on its own
+        // so parked blocks don't hold a permit.
+        park(prev, pb);
+        releasePermit(pb);
+
+        // The parent might have come in some other way in the meantime
+        if (node.getBlockIngestor().hasBlock(prev)) releaseChildren(prev);
+        return;
+      }
+
+      long t1 = System.nanoTime();
+      boolean ingested = node.getBlockIngestor().ingestBlock(blk, true);
+      TimeRecord.record(t1, "BlockIngestPipeline.commit");
+      releasePermit(pb);
+
+      if (ingested)
+      {
+        block_rate.record(1L);
+        pb.link.blockIngested(blk);
+      }
+
+      // Even if we had it already, anything waiting on it can go now
+      ChainHash hash = new ChainHash(blk.getHeader().getSnowHash());
+      if (ingested || node.getBlockIngestor().hasBlock(hash))
+      {
+        releaseChildren(hash);
+      }
+    }
+    catch(ValidationException e)
+    {
+      releasePermit(pb);
+      logger.log(Level.INFO, String.format("Got a block %s that didn't validate - closing link %s",
+        new ChainHash(pb.blk.getHeader().getSnowHash()), pb.link.getLinkId()), e);
+      pb.link.close();
+    }
+    catch(Throwable t)
+    {
+      releasePermit(pb);
+      logger.log(Level.WARNING, "Error in block ingest pipeline", t);
+    }
+  }
+
+  private void park(ChainHash prev, PendingBlock pb)
+  {
+    ChainHash hash = new ChainHash(pb.blk.getHeader().getSnowHash());
+    synchronized(parked)
+    {
+      ArrayList<PendingBlock> lst = parked.get(prev);
+      if (lst == null)
+      {
+        lst = new ArrayList<>();
+        parked.put(prev, lst);
+      }
+      for(PendingBlock o : lst)
+      {
+        if (hash.equals(new ChainHash(o.blk.getHeader().getSnowHash()))) return;
+      }
+      if (lst.size() >= PARKED_SIBLINGS_MAX) return;
+      lst.add(pb);
+    }
+  }
+
+  private void releaseChildren(ChainHash parent)
+  {
+    ArrayList<PendingBlock> children;
+    synchronized(parked)
+    {
+      children = parked.remove(parent);
+    }
+    if (children != null)
+    {
+      commit_queue.addAll(children);
+    }
+  }
+
+  private void releasePermit(PendingBlock pb)
+  {
+    if (pb.holds_permit)
+    {
+      pb.holds_permit = false;
+      pending_permits.release();
+      resumeLinks();
+    }
+  }
+
+  private void resumeLinks()
+  {
+    ArrayList<PeerLink> resumed;
+    synchronized(paused_links)
+    {
+      if (paused_links.isEmpty()) return;
+      resumed = new ArrayList<>(paused_links);
+      paused_links.clear();
+      for(PeerLink link : resumed)
+      {
+        link.resumeRequests();
+      }
+    }
+    node.getSyncManager().wake();
+  }
+
+  public class PendingBlock implements Comparable<PendingBlock>
+  {
+    final Block blk;
+    final PeerLink link;
+    final long seq_no;
+    final long submit_time;
+    volatile Future<Boolean> basics;
+    boolean holds_permit = true;
+
+    public PendingBlock(Block blk, PeerLink link)
+    {
+      this.blk = blk;
+      this.link = link;
+      this.seq_no = seq.getAndIncrement();
+      this.submit_time = System.nanoTime();
+    }
+
+    public int compareTo(PendingBlock o)
+    {
+      int h = Integer.compare(blk.getHeader().getBlockHeight(), o.blk.getHeader().getBlockHeight());
+      if (h != 0) return h;
+      return Long.compare(seq_no, o.seq_no);
+    }
+  }
+
+  public class CommitThread extends Thread
+  {
+    public CommitThread()
+    {
+      setName("BlockIngestPipeline/CommitThread");
+      setDaemon(true);
+    }
+
+    public void run()
+    {
+      while(true)
+      {
+        try
+        {
+          PendingBlock pb = commit_queue.take();
+          commit(pb);
+        }
+        catch(Throwable t)
+        {
+          logger.log(Level.WARNING, "CommitThread", t);
+        }
+      }
+    }
+  }
+
+}
@@ -15,6 +15,10 @@ import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.math.BigInteger;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 import java.text.DecimalFormat;
 
@@ -31,14 +35,18 @@ public class BlockIngestor implements ChainStateSource
   
   private volatile BlockSummary chainhead;
 
-  private static final ByteString HEAD = ByteString.copyFrom(new String("head").getBytes());
+  static final ByteString HEAD = ByteString.copyFrom(new String("head").getBytes());
 
-  private LRUCache<ChainHash, Long> block_pull_map = new LRUCache<>(2000);
   private LRUCache<ChainHash, Long> tx_cluster_pull_map = new LRUCache<>(2000);
 
   private PrintStream block_log;
   private TimeRecord time_record;
 
+  private final Object ingest_lock = new Object();
+
+  // Hashes of blocks we know we have, so peers gossiping headers don't send us to the db
+  private final Set<ChainHash> known_blocks = ConcurrentHashMap.newKeySet();
+
   private boolean tx_index=false;
   private boolean addr_index=false;
 
@@ -62,6 +70,8 @@ public class BlockIngestor implements ChainStateSource
       logger.info(String.format("Loaded chain tip: %d %s", 
         chainhead.getHeader().getBlockHeight(), 
         new ChainHash(chainhead.getHeader().getSnowHash())));
+
+      loadKnownBlocks(chainhead.getHeader().getBlockHeight());
     }
 
     tx_index = node.getConfig().getBoolean("tx_index");
@@ -72,17 +82,41 @@ public class BlockIngestor implements ChainStateSource
   public boolean ingestBlock(Block blk)
     throws ValidationException
   {
+    return ingestBlock(blk, false);
+  }
+
+  /**
+   * @param basics_checked if true, the caller has already done Validation.checkBlockBasics
+   * on this block (like the BlockIngestPipeline does) so it need not be done again.
+   */
+  public boolean ingestBlock(Block blk, boolean basics_checked)
+    throws ValidationException
+  {
+    if (!basics_checked)
+    {
+      Validation.checkBlockBasics(node.getParams(), blk, true, false);
+    }
+
+    // Everything from here on depends on the UTXO trie and the chain head
+    // so only one block goes through at a time
+    synchronized(ingest_lock)
+    {
+      return ingestBlockSerial(blk);
+    }
+  }
+
+  private boolean ingestBlockSerial(Block blk)
+    throws ValidationException
+  {
 
     if (time_record != null) time_record.reset();
 
     ChainHash blockhash;
     try(TimeRecordAuto tra_blk = TimeRecord.openAuto("BlockIngestor.ingestBlock"))
     {
-      Validation.checkBlockBasics(node.getParams(), blk, true, false);
-
       blockhash = new ChainHash(blk.getHeader().getSnowHash());
 
-      if (db.getBlockSummaryMap().containsKey(blockhash.getBytes() ))
+      if (hasBlock(blockhash))
       {
         return false;
       }
@@ -111,66 +145,39 @@ public class BlockIngestor implements ChainStateSource
 
       BlockSummary summary = BlockchainUtil.getNewSummary(blk.getHeader(), prev_summary, node.getParams(), blk.getTransactionsCount() );
 
-      Validation.deepBlockValidation(node.getParams(), node.getUtxoHashedTrie(), blk, prev_summary);
-
-      if (tx_index)
+      // Everything written for this block, from the utxo trie nodes to the summary
+      // and chain head, goes to the database in one batch
+      db.beginBatch();
+      boolean committed = false;
+      boolean new_head;
+      try
       {
-        try(TimeRecordAuto tra_tx = TimeRecord.openAuto("BlockIngestor.saveTx"))
+        new_head = saveBlock(blk, blockhash, summary, prev_summary);
+
+        try(TimeRecordAuto tra_commit = TimeRecord.openAuto("BlockIngestor.commitBatch"))
         {
-          ByteString block_hash_str = blockhash.getBytes();
-          HashMap<ByteString, Transaction> tx_map = new HashMap<>();
-          for(Transaction tx : blk.getTransactionsList())
-          {
-            tx_map.put(tx.getTxHash(), tx);
-          }
-          db.getTransactionMap().putAll(tx_map);
-
-          TransactionMapUtil.saveTransactionMap(blk, db);
+          db.commitBatch();
         }
+        committed = true;
       }
-      if (addr_index)
+      finally
       {
-        try(TimeRecordAuto tra_tx = TimeRecord.openAuto("BlockIngestor.saveAddrHist"))
-        {
-          AddressHistoryUtil.saveAddressHistory(blk, db);
-        }
+        if (!committed) db.abortBatch();
       }
+      known_blocks.add(blockhash);
 
-
-      try(TimeRecordAuto tra_tx = TimeRecord.openAuto("BlockIngestor.blockSave"))
+      if (node.getPeerMessageCache() != null)
       {
-        db.getBlockMap().put( blockhash.getBytes(), blk);
-
-
-        // THIS IS SUPER IMPORTANT!!!!
-        // the summary being saved in the summary map acts as a signal that
-        // - this block is fully stored
-        //   - we have the utxo saved
-        //   - we have the block itself saved
-        //   - if we are using tx_index, we have the transactions saved
-        // - the previous block summary is also saved, which by induction means
-        //   that we have every block from this one all the way back to block 0
-        // In short, after the summary is written, things can depend on this being
-        // a valid and correct block that goes all the way back to block 0.
-        // It might not be in the main chain, but it can be counted on to be valid chain
-        db.getBlockSummaryMap().put( blockhash.getBytes(), summary);
+        node.getPeerMessageCache().addBlock(blockhash, blk);
       }
-
-      BigInteger summary_work_sum = BlockchainUtil.readInteger(summary.getWorkSum());
-      BigInteger chainhead_work_sum = BigInteger.ZERO;
-      if (chainhead != null)
+      if (node.getTriePruner() != null)
       {
-        chainhead_work_sum = BlockchainUtil.readInteger(chainhead.getWorkSum());
+        node.getTriePruner().addRoot(blk.getHeader().getBlockHeight(), summary.getHeader().getUtxoRootHash());
       }
 
-      if (summary_work_sum.compareTo(chainhead_work_sum) > 0)
+      if (new_head)
       {
         chainhead = summary;
-        db.getBlockSummaryMap().put(HEAD, summary);
-        //System.out.println("UTXO at new root: " + HexUtil.getHexString(summary.getHeader().getUtxoRootHash()));
-        //node.getUtxoHashedTrie().printTree(summary.getHeader().getUtxoRootHash());
-
-        updateHeights(summary);
 
         logger.info(String.format("New chain tip: Height %d %s (tx:%d sz:%d)", blk.getHeader().getBlockHeight(), blockhash, blk.getTransactionsCount(), blk.toByteString().size()));
 
@@ -189,10 +196,17 @@ public class BlockIngestor implements ChainStateSource
         {
           u.tickleBlocks();
         }
-        node.getMemPool().tickleBlocks(new ChainHash(summary.getHeader().getUtxoRootHash()));
+        node.getMemPool().tickleBlocks(blk,
+          new ChainHash(prev_summary.getHeader().getUtxoRootHash()),
+          new ChainHash(summary.getHeader().getUtxoRootHash()));
       }
 
 
+      // Peers that are caught up get it right away, before the tip
+      if ((new_head) && (node.areWeSynced()))
+      {
+        node.getPeerage().sendCompactBlock(blk);
+      }
       node.getPeerage().sendAllTips();
     }
 
@@ -207,6 +221,34 @@ public class BlockIngestor implements ChainStateSource
       }
       time_record.printReport(block_log);
       time_record.reset();
+      if (node.getBlockIngestPipeline() != null)
+      {
+        node.getBlockIngestPipeline().printReport(block_log);
+      }
+      block_log.println(String.format("Signature cache: %d entries, %d hits, %d misses",
+        SignatureUtil.getSignatureCacheSize(),
+        SignatureUtil.getSignatureCacheHits(),
+        SignatureUtil.getSignatureCacheMisses()));
+      if (node.getSyncManager() != null)
+      {
+        block_log.println("Block sync: " + node.getSyncManager().getReportShort());
+      }
+      block_log.println("Tx relay: " + node.getPeerage().getTxRelayReport());
+      block_log.println("Peer send: " + node.getPeerage().getSendReport());
+      if (node.getCompactBlockRelay() != null)
+      {
+        block_log.println("Compact blocks: " + node.getCompactBlockRelay().getReportShort());
+      }
+      if (node.getPeerMessageCache() != null)
+      {
+        block_log.println(String.format("Peer block message cache: %d hits, %d misses",
+          node.getPeerMessageCache().getHits(),
+          node.getPeerMessageCache().getMisses()));
+      }
+      if (node.getUtxoTrieCache() != null)
+      {
+        block_log.println("UTXO trie cache: " + node.getUtxoTrieCache().getReportShort());
+      }
 
 
     }
@@ -215,8 +257,82 @@ public class BlockIngestor implements ChainStateSource
 
   }
 
+  /**
+   * Validates the block against the utxo trie and writes out everything for it.
+   * Called inside a db batch, so none of it is visible to others until the batch commits.
+   * @return true iff this block is the new chain head
+   */
+  private boolean saveBlock(Block blk, ChainHash blockhash, BlockSummary summary, BlockSummary prev_summary)
+    throws ValidationException
+  {
+    Validation.deepBlockValidation(node.getParams(), node.getUtxoHashedTrie(), blk, prev_summary);
+
+    if (tx_index)
+    {
+      try(TimeRecordAuto tra_tx = TimeRecord.openAuto("BlockIngestor.saveTx"))
+      {
+        ByteString block_hash_str = blockhash.getBytes();
+        HashMap<ByteString, Transaction> tx_map = new HashMap<>();
+        for(Transaction tx : blk.getTransactionsList())
+        {
+          tx_map.put(tx.getTxHash(), tx);
+        }
+        db.getTransactionMap().putAll(tx_map);
+
+        TransactionMapUtil.saveTransactionMap(blk, db);
+      }
+    }
+    if (addr_index)
+    {
+      try(TimeRecordAuto tra_tx = TimeRecord.openAuto("BlockIngestor.saveAddrHist"))
+      {
+        AddressHistoryUtil.saveAddressHistory(blk, db);
+      }
+    }
+
+
+    try(TimeRecordAuto tra_tx = TimeRecord.openAuto("BlockIngestor.blockSave"))
+    {
+      db.getBlockMap().put( blockhash.getBytes(), blk);
+
+
+      // THIS IS SUPER IMPORTANT!!!!
+      // the summary being saved in the summary map acts as a signal that
+      // - this block is fully stored
+      //   - we have the utxo saved
+      //   - we have the block itself saved
+      //   - if we are using tx_index, we have the transactions saved
+      // - the previous block summary is also saved, which by induction means
+      //   that we have every block from this one all the way back to block 0
+      // In short, after the summary is written, things can depend on this being
+      // a valid and correct block that goes all the way back to block 0.
+      // It might not be in the main chain, but it can be counted on to be valid chain
+      // (With the db batch, all of the above lands in the db together)
+      db.getBlockSummaryMap().put( blockhash.getBytes(), summary);
+    }
+
+    BigInteger summary_work_sum = BlockchainUtil.readInteger(summary.getWorkSum());
+    BigInteger chainhead_work_sum = BigInteger.ZERO;
+    if (chainhead != null)
+    {
+      chainhead_work_sum = BlockchainUtil.readInteger(chainhead.getWorkSum());
+    }
+
+    if (summary_work_sum.compareTo(chainhead_work_sum) > 0)
+    {
+      db.getBlockSummaryMap().put(HEAD, summary);
+      //System.out.println("UTXO at new root: " + HexUtil.getHexString(summary.getHeader().getUtxoRootHash()));
+      //node.getUtxoHashedTrie().printTree(summary.getHeader().getUtxoRootHash());
+
+      updateHeights(summary);
+      return true;
+    }
+    return false;
+  }
+
   private void updateHeights(BlockSummary summary)
   {
+    final TreeMap<Integer, ChainHash> updates = new TreeMap<>();
     while(true)
     {
       int height = summary.getHeader().getBlockHeight();
@@ -225,15 +341,68 @@ public class BlockIngestor implements ChainStateSource
       if ((found == null) || (!found.equals(hash)))
       {
         db.setBlockHashAtHeight(height, hash);
-        node.getBlockHeightCache().setHash(height, hash);
-        if (height == 0) return;
+        updates.put(height, hash);
+        if (height == 0) break;
         summary = db.getBlockSummaryMap().get(summary.getHeader().getPrevBlockHash());
       }
       else
       {
-        return;
+        break;
+      }
+    }
+
+    // Other threads read the cache, so it can't show heights that might still be aborted
+    db.afterCommit(new Runnable()
+    {
+      public void run()
+      {
+        for(Map.Entry<Integer, ChainHash> me : updates.entrySet())
+        {
+          node.getBlockHeightCache().setHash(me.getKey(), me.getValue());
+        }
       }
+    });
+  }
+
+  /**
+   * Loads the hashes of the main chain.  Side chain blocks from before this
+   * start aren't in the set, but hasBlock() still finds them in the db.
+   */
+  private void loadKnownBlocks(int height)
+  {
+    long t1 = System.nanoTime();
+    for(int h=0; h<=height; h++)
+    {
+      ChainHash hash = db.getBlockHashAtHeight(h);
+      if (hash != null) known_blocks.add(hash);
+    }
+    TimeRecord.record(t1, "BlockIngestor.loadKnownBlocks");
+    logger.info(String.format("Loaded %d known block hashes", known_blocks.size()));
+  }
+
+  /**
+   * @return true iff we have this block saved.
+   * Blocks on the main chain or ingested since start are answered from memory,
+   * anything else goes to the db which can usually rule it out from the bloom filter.
+   */
+  public boolean hasBlock(ChainHash hash)
+  {
+    if (known_blocks.contains(hash)) return true;
+    if (db.getBlockSummaryMap().containsKey(hash.getBytes()))
+    {
+      known_blocks.add(hash);
+      return true;
     }
+    return false;
+  }
+
+  /**
+   * Held while a block is validated and saved.  Anything that needs the
+   * UTXO trie to hold still between blocks can take it.
+   */
+  public Object getIngestLock()
+  {
+    return ingest_lock;
   }
 
   public BlockSummary getHead()
@@ -254,20 +423,6 @@ public class BlockIngestor implements ChainStateSource
     return params;
   }
 
-  public boolean reserveBlock(ChainHash hash)
-  {
-    synchronized(block_pull_map)
-    {
-      long tm = System.currentTimeMillis();
-      if (block_pull_map.containsKey(hash) && (block_pull_map.get(hash) + 15000L > tm))
-      {
-        return false;
-      }
-      block_pull_map.put(hash, tm);
-      return true;
-    }
-  }
-
   public boolean reserveTxCluster(ChainHash hash)
   {
     synchronized(tx_cluster_pull_map)
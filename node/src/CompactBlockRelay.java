@@ -0,0 +1,251 @@
+package snowblossom.node;
+
+import com.google.protobuf.ByteString;
+import snowblossom.lib.*;
+import snowblossom.proto.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends and rebuilds new blocks as CompactBlocks.
+ *
+ * A peer that is caught up has almost every transaction of a new block in its
+ * mempool already, so sending the whole block again mostly wastes bandwidth and
+ * time while the block is new and every peer wants it at once.  A CompactBlock has
+ * the header, the coinbase and 8 byte short ids for the rest.  The receiver fills
+ * in what it can from its mempool and asks the sender for the rest.
+ *
+ * If the rebuilt block doesn't match the merkle root (two transactions with the
+ * same short id, say) the whole block is asked for the old way.
+ */
+public class CompactBlockRelay
+{
+  private static final Logger logger = Logger.getLogger("snowblossom.peering");
+
+  private final SnowBlossomNode node;
+
+  // Blocks waiting on transactions we asked a peer for
+  private final LRUCache<ChainHash, PartialBlock> pending = new LRUCache<>(100);
+
+  private final AtomicLong received = new AtomicLong(0L);
+  private final AtomicLong from_pool = new AtomicLong(0L);
+  private final AtomicLong tx_requested = new AtomicLong(0L);
+  private final AtomicLong fallback = new AtomicLong(0L);
+
+  public CompactBlockRelay(SnowBlossomNode node)
+  {
+    this.node = node;
+  }
+
+  public static long getShortId(ByteString tx_hash)
+  {
+    return tx_hash.asReadOnlyByteBuffer().getLong();
+  }
+
+  public static CompactBlock makeCompact(Block blk)
+  {
+    CompactBlock.Builder cb = CompactBlock.newBuilder();
+    cb.setHeader(blk.getHeader());
+    cb.setCoinbase(blk.getTransactions(0));
+    for(int i=1; i<blk.getTransactionsCount(); i++)
+    {
+      cb.addShortTxIds(getShortId(blk.getTransactions(i).getTxHash()));
+    }
+    return cb.build();
+  }
+
+  /**
+   * Called with a CompactBlock whose parent we have and whose header is checked
+   */
+  public void receive(PeerLink link, CompactBlock cb)
+  {
+    ChainHash hash = new ChainHash(cb.getHeader().getSnowHash());
+    if (node.getBlockIngestor().hasBlock(hash)) return;
+    received.incrementAndGet();
+
+    // So the SyncManager doesn't go asking for the whole block while we work on it
+    node.getSyncManager().expect(link, hash);
+
+    PartialBlock pb = new PartialBlock(cb, node.getMemPool().getShortIdMap());
+
+    RequestBlockTransactions.Builder req = RequestBlockTransactions.newBuilder();
+    req.setBlockHash(hash.getBytes());
+    req.addAllTxIndexes(pb.getMissing());
+
+    if (req.getTxIndexesCount() == 0)
+    {
+      from_pool.incrementAndGet();
+      finish(link, pb);
+      return;
+    }
+
+    tx_requested.addAndGet(req.getTxIndexesCount());
+    synchronized(pending)
+    {
+      pending.put(hash, pb);
+    }
+    link.writeMessage(PeerMessage.newBuilder().setReqBlockTxs(req.build()).build());
+  }
+
+  /**
+   * Called with the transactions we asked a peer for
+   */
+  public void receiveTransactions(PeerLink link, BlockTransactions bt)
+  {
+    ChainHash hash = new ChainHash(bt.getBlockHash());
+    PartialBlock pb;
+    synchronized(pending)
+    {
+      pb = pending.remove(hash);
+    }
+    if (pb == null) return;
+
+    if (bt.getTxIndexesCount() != bt.getTransactionsCount())
+    {
+      requestFull(link, hash);
+      return;
+    }
+    for(int i=0; i<bt.getTxIndexesCount(); i++)
+    {
+      if (!pb.setTransaction(bt.getTxIndexes(i), bt.getTransactions(i))) break;
+    }
+    finish(link, pb);
+  }
+
+  /**
+   * A peer is asking for some transactions of a block we sent it
+   */
+  public void sendTransactions(PeerLink link, RequestBlockTransactions req)
+  {
+    PeerMessage blk_msg = node.getPeerMessageCache().getBlockMessage(new ChainHash(req.getBlockHash()));
+    if (blk_msg == null) return;
+    Block blk = blk_msg.getBlock();
+
+    BlockTransactions.Builder bt = BlockTransactions.newBuilder();
+    bt.setBlockHash(req.getBlockHash());
+    for(int idx : req.getTxIndexesList())
+    {
+      if ((idx < 0) || (idx >= blk.getTransactionsCount())) continue;
+      bt.addTxIndexes(idx);
+      bt.addTransactions(blk.getTransactions(idx));
+    }
+    link.writeMessage(PeerMessage.newBuilder().setBlockTxs(bt.build()).build());
+  }
+
+  private void finish(PeerLink link, PartialBlock pb)
+  {
+    ChainHash hash = new ChainHash(pb.header.getSnowHash());
+    Block b = pb.build();
+    if (b == null)
+    {
+      logger.log(Level.FINE, String.format("Compact block %s didn't rebuild, asking for the whole thing", hash));
+      requestFull(link, hash);
+      return;
+    }
+
+    if (node.getBlockIngestPipeline().submit(b, link))
+    {
+      node.getSyncManager().blockReceived(link, b);
+    }
+    else
+    {
+      node.getSyncManager().blockRefused(b);
+    }
+  }
+
+  private void requestFull(PeerLink link, ChainHash hash)
+  {
+    fallback.incrementAndGet();
+    link.writeMessage( PeerMessage.newBuilder()
+      .setReqBlock(
+        RequestBlock.newBuilder().setBlockHash(hash.getBytes()).build())
+      .build());
+  }
+
+  public String getReportShort()
+  {
+    return String.format("%d received, %d all from mempool, %d tx requested, %d fell back to full block",
+      received.get(), from_pool.get(), tx_requested.get(), fallback.get());
+  }
+
+  /**
+   * A block being put back together from a CompactBlock
+   */
+  public static class PartialBlock
+  {
+    final BlockHeader header;
+    final Transaction[] txs;
+
+    /**
+     * Fills in what it can from the pool, which maps short ids to transactions
+     */
+    public PartialBlock(CompactBlock cb, Map<Long, Transaction> pool)
+    {
+      this.header = cb.getHeader();
+      this.txs = new Transaction[cb.getShortTxIdsCount() + 1];
+      txs[0] = cb.getCoinbase();
+      for(int i=0; i<cb.getShortTxIdsCount(); i++)
+      {
+        txs[i+1] = pool.get(cb.getShortTxIds(i));
+      }
+    }
+
+    /**
+     * @return the block indexes of the transactions still needed
+     */
+    public List<Integer> getMissing()
+    {
+      ArrayList<Integer> missing = new ArrayList<>();
+      for(int i=1; i<txs.length; i++)
+      {
+        if (txs[i] == null) missing.add(i);
+      }
+      return missing;
+    }
+
+    /**
+     * @return false if the index is not one of the non-coinbase transactions
+     */
+    public boolean setTransaction(int idx, Transaction tx)
+    {
+      if ((idx <= 0) || (idx >= txs.length)) return false;
+      txs[idx] = tx;
+      return true;
+    }
+
+    /**
+     * @return the block, or null if a transaction is missing or the
+     * merkle root doesn't match
+     */
+    public Block build()
+    {
+      ArrayList<ChainHash> tx_hashes = new ArrayList<>();
+      for(Transaction tx : txs)
+      {
+        if (tx == null) return null;
+        tx_hashes.add(new ChainHash(tx.getTxHash()));
+      }
+
+      // Anything that doesn't add up would fail the block basics and get the link closed,
+      // but it is more likely a short id collision than the peer doing something wrong
+      if (!DigestUtil.getMerkleRootForTxList(tx_hashes).equals(new ChainHash(header.getMerkleRootHash())))
+      {
+        return null;
+      }
+
+      Block.Builder blk = Block.newBuilder();
+      blk.setHeader(header);
+      for(Transaction tx : txs)
+      {
+        blk.addTransactions(tx);
+      }
+      return blk.build();
+    }
+  }
+
+}
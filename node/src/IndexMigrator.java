@@ -0,0 +1,118 @@
+package snowblossom.node;
+
+import com.google.common.collect.TreeMultimap;
+import com.google.protobuf.ByteString;
+import snowblossom.lib.Globals;
+import snowblossom.lib.db.DB;
+import snowblossom.lib.db.DBCursor;
+import snowblossom.lib.db.DBMapMutationSet;
+
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies the old address history and tx block indexes into their compact
+ * versions while the node runs.
+ *
+ * New blocks are written to both formats until this is done, so it only has to
+ * copy what was there.  It saves its position in the special map as it goes,
+ * so a restart picks up where it left off.  Once an index is all copied it is
+ * marked ready and reads and writes move over to the compact one.
+ * The old index is left in place.
+ */
+public class IndexMigrator extends Thread
+{
+  private static final Logger logger = Logger.getLogger("snowblossom.db");
+
+  private static final int CHUNK_SIZE = 10000;
+  private static final String POSITION_PREFIX = "compact_index_migrate/";
+
+  private final DB db;
+
+  public IndexMigrator(DB db)
+  {
+    setName("IndexMigrator");
+    setDaemon(true);
+    setPriority(Thread.MIN_PRIORITY);
+
+    this.db = db;
+  }
+
+  /**
+   * @return true if there is anything to be migrated
+   */
+  public boolean isNeeded()
+  {
+    if ((db.getAddressHistoryMap() != null) && (!db.isCompactIndexReady(AddressHistoryUtil.COMPACT_NAME))) return true;
+    if ((db.getTransactionBlockMap() != null) && (!db.isCompactIndexReady(TransactionMapUtil.COMPACT_NAME))) return true;
+    return false;
+  }
+
+  public void run()
+  {
+    try
+    {
+      if (db.getAddressHistoryMap() != null)
+      {
+        migrate(AddressHistoryUtil.COMPACT_NAME, db.getAddressHistoryMap(), db.getAddressHistoryCompactMap(),
+          Globals.ADDRESS_SPEC_HASH_LEN, false);
+      }
+      if (db.getTransactionBlockMap() != null)
+      {
+        migrate(TransactionMapUtil.COMPACT_NAME, db.getTransactionBlockMap(), db.getTransactionBlockCompactMap(),
+          Globals.BLOCKCHAIN_HASH_LEN, true);
+      }
+    }
+    catch(Throwable t)
+    {
+      logger.log(Level.WARNING, "Index migration failed, will try again next start", t);
+    }
+  }
+
+  private void migrate(String name, DBMapMutationSet old_map, DBMapMutationSet new_map, int key_len, boolean tx_map)
+  {
+    if (db.isCompactIndexReady(name)) return;
+
+    String position_key = POSITION_PREFIX + name;
+    ByteString position = db.getSpecialMap().get(position_key);
+    if (position != null)
+    {
+      logger.info(String.format("Resuming migration of %s", name));
+    }
+    else
+    {
+      logger.info(String.format("Starting migration of %s", name));
+    }
+
+    long count = 0L;
+    boolean more = true;
+    while(more)
+    {
+      TreeMultimap<ByteString, ByteString> chunk = DBMapMutationSet.createMap();
+      try(DBCursor<Map.Entry<ByteString, ByteString>> cursor = old_map.openScanCursor(key_len, position))
+      {
+        while((chunk.size() < CHUNK_SIZE) && (cursor.hasNext()))
+        {
+          Map.Entry<ByteString, ByteString> me = cursor.next();
+          ByteString compact;
+          if (tx_map) compact = TransactionMapUtil.getCompactValue(me.getValue());
+          else compact = AddressHistoryUtil.getCompactValue(me.getValue());
+          chunk.put(me.getKey(), compact);
+        }
+        more = cursor.hasNext();
+        position = cursor.getResumeToken();
+      }
+
+      new_map.addAll(chunk);
+      if (position != null) db.getSpecialMap().put(position_key, position);
+
+      count += chunk.size();
+      logger.log(Level.FINE, String.format("Migrated %d entries of %s", count, name));
+    }
+
+    db.setCompactIndexReady(name);
+    logger.info(String.format("Migration of %s done, %d entries this run", name, count));
+  }
+
+}
@@ -8,6 +8,7 @@ import com.google.protobuf.ByteString;
 import duckutil.TimeRecord;
 import org.junit.Assert;
 import snowblossom.lib.*;
+import snowblossom.proto.Block;
 import snowblossom.proto.BlockHeader;
 import snowblossom.proto.Transaction;
 import snowblossom.proto.TransactionInner;
@@ -16,9 +17,10 @@ import snowblossom.proto.TransactionOutput;
 import snowblossom.lib.trie.HashedTrie;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import duckutil.PeriodicThread;
 
 
 
@@ -35,24 +37,47 @@ import duckutil.PeriodicThread;
  *    - Note: could be more than a chain of two, ideally we'd support any length chain because that is fun
  *  - Prune out impossible transactions as soon as is reasonable
  *  - If we have never heard of the inputs to a tx, drop it
+ *
+ * Locking:
+ *  - Reads (getTransaction, getTransactionsForAddress, getTxClusterForTransaction and so on)
+ *    don't take the lock.  The maps they read are concurrent maps.
+ *  - Claims on outputs are made with putIfAbsent before the lock is taken, so transactions
+ *    spending different outputs only meet at the lock to publish the finished cluster.
+ *  - Block template selection works off an immutable PrioritySnapshot, which only needs the lock
+ *    to make a new one when the pool has changed.
  */
 public class MemPool
 {
   private static final Logger logger = Logger.getLogger("snowblossom.mempool");
 
-  private Map<ChainHash, TransactionMempoolInfo> known_transactions = new HashMap<>(512, 0.5f);
+  // Only changed while holding the lock
+  private ConcurrentHashMap<ChainHash, TransactionMempoolInfo> known_transactions = new ConcurrentHashMap<>(512, 0.5f, 16);
+
+  // Short id (first 8 bytes of the tx hash) -> tx, for rebuilding compact blocks.
+  // Kept with known_transactions, under the lock.
+  private ConcurrentHashMap<Long, Transaction> short_id_map = new ConcurrentHashMap<>(512, 0.5f, 16);
+
+  // Outpoint (src_tx:idx) -> the mempool tx that spends it.
+  // Claimed before taking the lock, see claimOutputs()
+  private ConcurrentHashMap<String, ChainHash> claimed_outputs = new ConcurrentHashMap<>(512, 0.75f, 64);
 
-  private HashMap<String, ChainHash> claimed_outputs = new HashMap<>();
+  // Source tx -> mempool txs that spend its outputs.  The source may already be confirmed.
+  private HashMultimap<ChainHash, ChainHash> spender_map = HashMultimap.<ChainHash, ChainHash>create();
 
-  // Mapping of addresses to transactions that involve them
-  private HashMultimap<AddressSpecHash, ChainHash> address_tx_map = HashMultimap.<AddressSpecHash, ChainHash>create();
+  // Mapping of addresses to transactions that involve them.  Only changed while holding the lock.
+  private ConcurrentHashMap<AddressSpecHash, Set<ChainHash>> address_tx_map = new ConcurrentHashMap<>();
 
 
-  // In normal operation, the priority map is updated as transactions come in
-  // However, when a new block is learned we need to toss it all and start
-  // fresh.  Since we don't want to require a transaction index for the entire chain
-  // it isn't easy to see which transactions we should exclude because they are in blocks
-  // already.  So we toss the priority map and build a new one from known_transactions.
+  // In normal operation, the priority map is updated as transactions come in.
+  // When a new block that builds on utxo_for_pri_map is learned, the block itself tells
+  // us what changed.  The transactions in it are confirmed and anything claiming an output
+  // the block spent is a double spend, so those get dropped along with everything that
+  // spends from them.  The only other clusters that change are ones that include a confirmed
+  // transaction, which are the ones for the spenders of confirmed transactions, so just those
+  // are rebuilt.
+  //
+  // If the block isn't on top of what we have (reorg, or we missed one) we toss the priority map
+  // and build a new one from known_transactions.
   // Anything from known_transactions that can't be put in the priority map is tossed.
   //
   // In theory, we can just take everything in the priority map (excluding duplicate transactions)
@@ -60,9 +85,21 @@ public class MemPool
   //
   // Easy as eating pancakes.
   // 
-  private ChainHash utxo_for_pri_map = null;
+  private volatile ChainHash utxo_for_pri_map = null;
   private TreeMultimap<Double, TXCluster> priority_map = TreeMultimap.<Double, TXCluster>create();
 
+  // tx -> the cluster built for it that is in the priority map
+  private ConcurrentHashMap<ChainHash, TXCluster> cluster_map = new ConcurrentHashMap<>();
+
+  // Bumped on any change to the priority map
+  private volatile long version = 0L;
+
+  // Bumped when utxo_for_pri_map changes or transactions are dropped, so a cluster
+  // built outside the lock knows it has to be checked again
+  private volatile long pri_map_epoch = 0L;
+
+  private volatile PrioritySnapshot snapshot = null;
+
   private HashedTrie utxo_hashed_trie;
   private ChainStateSource chain_state_source;
 
@@ -74,6 +111,11 @@ public class MemPool
   private final int low_fee_max;
 
   private Object tickle_trigger = new Object();
+  private LinkedBlockingQueue<BlockUpdate> block_updates = new LinkedBlockingQueue<>();
+
+  private final Tickler tickler;
+  private final TicklerBroadcast tickler_broadcast;
+  private volatile boolean shutdown;
 
   public MemPool(HashedTrie utxo_hashed_trie, ChainStateSource chain_state_source)
   {
@@ -86,26 +128,53 @@ public class MemPool
     this.chain_state_source = chain_state_source;
     this.utxo_hashed_trie = utxo_hashed_trie;
 
-    new Tickler().start();
-    new TicklerBroadcast().start();
+    tickler = new Tickler();
+    tickler.start();
+    tickler_broadcast = new TicklerBroadcast();
+    tickler_broadcast.start();
   }
 
-  public synchronized int getMemPoolSize()
+  /**
+   * Stops the background threads, for pools that don't last as long as the process
+   */
+  public void shutdown()
+  {
+    shutdown = true;
+    tickler.interrupt();
+    tickler_broadcast.interrupt();
+  }
+
+  public int getMemPoolSize()
   {
     return known_transactions.size();
   }
 
-  public synchronized TransactionMempoolInfo getRandomPoolTransaction()
+  /**
+   * Changes every time the set of transactions in the priority map changes
+   */
+  public long getVersion()
+  {
+    return version;
+  }
+
+  public TransactionMempoolInfo getRandomPoolTransaction()
   {
-    ArrayList<TransactionMempoolInfo> list = new ArrayList<>();
-    list.addAll(known_transactions.values());
-    if (list.size() == 0) return null;
-    Random rnd = new Random();
+    int size = known_transactions.size();
+    if (size == 0) return null;
 
-    return list.get(rnd.nextInt(list.size()));
+    // Walk to a random spot rather than copying the whole pool
+    int idx = new Random().nextInt(size);
+    TransactionMempoolInfo found = null;
+    for (TransactionMempoolInfo info : known_transactions.values())
+    {
+      found = info;
+      if (idx == 0) break;
+      idx--;
+    }
+    return found;
   }
 
-  public synchronized Transaction getTransaction(ChainHash tx_hash)
+  public Transaction getTransaction(ChainHash tx_hash)
   {
     TransactionMempoolInfo info = known_transactions.get(tx_hash);
     if (info != null)
@@ -115,96 +184,143 @@ public class MemPool
     return null;
   }
 
-  public synchronized Set<ChainHash> getTransactionsForAddress(AddressSpecHash spec_hash)
+  /**
+   * @return a live read only view of the transactions in the pool by short id,
+   * the first 8 bytes of the tx hash.
+   * If two share a short id, only the last one added is in the map.
+   */
+  public Map<Long, Transaction> getShortIdMap()
   {
-    return ImmutableSet.copyOf(address_tx_map.get(spec_hash));
+    return Collections.unmodifiableMap(short_id_map);
   }
 
-  public synchronized List<Transaction> getTxClusterForTransaction(ChainHash tx_id)
+  public Set<ChainHash> getTransactionsForAddress(AddressSpecHash spec_hash)
   {
-    for(TXCluster cluster : priority_map.values())
-    {
-      if (cluster.tx_set.contains(tx_id)) return cluster.tx_list;
-    }
+    Set<ChainHash> s = address_tx_map.get(spec_hash);
+    if (s == null) return ImmutableSet.of();
+    return ImmutableSet.copyOf(s);
+  }
+
+  public List<Transaction> getTxClusterForTransaction(ChainHash tx_id)
+  {
+    TXCluster cluster = cluster_map.get(tx_id);
+    if (cluster != null) return cluster.tx_list;
     return null;
   }
 
-  public synchronized List<Transaction> getTransactionsForBlock(ChainHash last_utxo, int max_size)
+  public List<Transaction> getTransactionsForBlock(ChainHash last_utxo, int max_size)
+  {
+    return getTransactionsForBlock(getPrioritySnapshot(last_utxo), max_size);
+  }
+
+  /**
+   * Selects the block transactions from the given snapshot, so the caller
+   * knows exactly which mempool version they came from
+   */
+  public List<Transaction> getTransactionsForBlock(PrioritySnapshot snap, int max_size)
   {
     List<Transaction> block_list = new ArrayList<Transaction>();
     Set<ChainHash> included_txs = new HashSet<>();
 
-
-    if (!last_utxo.equals(utxo_for_pri_map))
-    {
-      rebuildPriorityMap(last_utxo);
-    }
-
     int size = 0;
     int low_fee_size = 0;
 
-
-    TreeMultimap<Double, TXCluster> priority_map_copy = TreeMultimap.<Double, TXCluster>create();
-    priority_map_copy.putAll(priority_map);
-
-    while (priority_map_copy.size() > 0)
+    for (TXCluster cluster : snap.clusters)
     {
-      Map.Entry<Double, Collection<TXCluster> > last_entry = priority_map_copy.asMap().pollLastEntry();
-
-      double ratio = last_entry.getKey();
       boolean low_fee = false;
-      if (ratio < Globals.LOW_FEE) low_fee=true;
+      if (cluster.ratio < Globals.LOW_FEE) low_fee=true;
 
-      Collection<TXCluster> list = last_entry.getValue();
-      for (TXCluster cluster : list)
+      if (size + cluster.total_size <= max_size)
       {
-        if (size + cluster.total_size <= max_size)
+        if ((!low_fee) || (low_fee_size < low_fee_max))
         {
-          if ((!low_fee) || (low_fee_size < low_fee_max))
-          {
 
-            for (Transaction tx : cluster.tx_list)
+          for (Transaction tx : cluster.tx_list)
+          {
+            ChainHash tx_hash = new ChainHash(tx.getTxHash());
+            if (!included_txs.contains(tx_hash))
             {
-              ChainHash tx_hash = new ChainHash(tx.getTxHash());
-              if (!included_txs.contains(tx_hash))
+              block_list.add(tx);
+              included_txs.add(tx_hash);
+              int sz = tx.toByteString().size();
+              size += sz;
+              if (low_fee)
               {
-                block_list.add(tx);
-                included_txs.add(tx_hash);
-                int sz = tx.toByteString().size();
-                size += sz;
-                if (low_fee)
-                {
-                  low_fee_size += sz;
-                }
+                low_fee_size += sz;
               }
             }
           }
-
         }
+
       }
     }
     return block_list;
 
   }
 
+  /**
+   * Returns an unchanging view of the priority map for the given utxo root.
+   * Only takes the lock if the mempool changed since the last one was made.
+   */
+  public PrioritySnapshot getPrioritySnapshot(ChainHash utxo_root)
+  {
+    PrioritySnapshot snap = snapshot;
+    if ((snap != null) && (snap.version == version) && (snap.utxo_root.equals(utxo_root)) && (block_updates.isEmpty()))
+    {
+      return snap;
+    }
+    return buildPrioritySnapshot(utxo_root);
+  }
+
+  private synchronized PrioritySnapshot buildPrioritySnapshot(ChainHash utxo_root)
+  {
+    processBlockUpdates();
+
+    if (!utxo_root.equals(utxo_for_pri_map))
+    {
+      rebuildPriorityMap(utxo_root);
+    }
+
+    PrioritySnapshot snap = snapshot;
+    if ((snap != null) && (snap.version == version) && (snap.utxo_root.equals(utxo_root)))
+    {
+      return snap;
+    }
+
+    ArrayList<TXCluster> list = new ArrayList<>(priority_map.size());
+    for (Collection<TXCluster> c : priority_map.asMap().descendingMap().values())
+    {
+      list.addAll(c);
+    }
+    snap = new PrioritySnapshot(utxo_root, version, list);
+    snapshot = snap;
+    return snap;
+  }
+
   /**
    * @return true iff this seems to be a new and valid tx
    */
-  public synchronized boolean addTransaction(Transaction tx) throws ValidationException
+  public boolean addTransaction(Transaction tx) throws ValidationException
   {
+    ChainHash tx_hash = new ChainHash(tx.getTxHash());
+    if (known_transactions.containsKey(tx_hash)) return false;
+
+    // The signature checks are the slow part and don't need the mempool,
+    // so do them before taking the lock
     long t1 = System.nanoTime();
     Validation.checkTransactionBasics(tx, false);
     TimeRecord.record(t1, "tx_validation");
-    ChainHash tx_hash = new ChainHash(tx.getTxHash());
-    if (known_transactions.containsKey(tx_hash)) return false;
 
+    t1 = System.nanoTime();
+    TransactionMempoolInfo info = new TransactionMempoolInfo(tx);
+
+    // These limits are checked without the lock, so they can be
+    // overshot by a few transactions under concurrent load
     if (known_transactions.size() >= MEM_POOL_MAX)
     {
       throw new ValidationException("mempool is full");
     }
 
-    TransactionMempoolInfo info = new TransactionMempoolInfo(tx);
-
     TransactionInner inner = info.inner;
     double tx_ratio = (double) inner.getFee() / (double)tx.toByteString().size();
     if (tx_ratio < Globals.LOW_FEE)
@@ -214,71 +330,145 @@ public class MemPool
         throw new ValidationException("mempool is too full for low fee transactions");
       }
     }
-
-
-    TreeSet<String> used_outputs = new TreeSet<>();
     TimeRecord.record(t1, "mempool:p1");
 
     long t3 = System.nanoTime();
-    for (TransactionInput in : inner.getInputsList())
+    List<String> new_claims = claimOutputs(tx_hash, inner);
+    TimeRecord.record(t3, "mempool:input_proc");
+
+    boolean added = false;
+    try
     {
-      String key = HexUtil.getHexString(in.getSrcTxId()) + ":" + in.getSrcTxOutIdx();
-      used_outputs.add(key);
+      long epoch = pri_map_epoch;
+      ChainHash utxo_root = utxo_for_pri_map;
+      TXCluster cluster = null;
+      if (utxo_root != null)
+      {
+        long t2 = System.nanoTime();
+        cluster = buildTXCluster(tx, utxo_root);
+        TimeRecord.record(t2, "mempool:build_cluster");
+      }
 
-      if (claimed_outputs.containsKey(key))
+      added = addTransactionValidated(tx_hash, info, cluster, epoch);
+      TimeRecord.record(t1, "mempool:tx_add");
+      return added;
+    }
+    finally
+    {
+      if (!added)
       {
-        if (!claimed_outputs.get(key).equals(tx_hash))
-        {
-          throw new ValidationException("Discarding as double-spend");
-        }
+        releaseOutputs(tx_hash, new_claims);
       }
     }
-    TimeRecord.record(t3, "mempool:input_proc");
+  }
 
-    if (utxo_for_pri_map != null)
+  /**
+   * Claim the outputs spent by this transaction.
+   * @return the claims that were newly made by this call
+   */
+  private List<String> claimOutputs(ChainHash tx_hash, TransactionInner inner) throws ValidationException
+  {
+    TreeSet<String> used_outputs = new TreeSet<>();
+    for (TransactionInput in : inner.getInputsList())
     {
-      long t2 = System.nanoTime();
-      TXCluster cluster = buildTXCluster(tx);
-      TimeRecord.record(t2, "mempool:build_cluster");
-      if (cluster == null)
+      used_outputs.add(getOutpointKey(in));
+    }
+
+    ArrayList<String> new_claims = new ArrayList<>();
+    for (String key : used_outputs)
+    {
+      ChainHash prev = claimed_outputs.putIfAbsent(key, tx_hash);
+      if (prev == null)
+      {
+        new_claims.add(key);
+      }
+      else if (!prev.equals(tx_hash))
       {
-        throw new ValidationException("Unable to find a tx cluster that makes this work");
+        releaseOutputs(tx_hash, new_claims);
+        throw new ValidationException("Discarding as double-spend");
       }
-      double ratio = (double) cluster.total_fee / (double) cluster.total_size;
+    }
+    return new_claims;
+  }
 
-      //Random rnd = new Random();
-      //ratio = ratio * 1e9 + rnd.nextDouble();
-      long t4 = System.nanoTime();
-      priority_map.put(ratio, cluster);
-      TimeRecord.record(t4, "mempool:primapput");
+  private void releaseOutputs(ChainHash tx_hash, List<String> keys)
+  {
+    for (String key : keys)
+    {
+      claimed_outputs.remove(key, tx_hash);
+    }
+  }
 
+  /**
+   * Publish a transaction whose cluster was built outside the lock.
+   * If blocks came in or transactions were dropped since, the cluster is built again.
+   */
+  private synchronized boolean addTransactionValidated(ChainHash tx_hash, TransactionMempoolInfo info, TXCluster cluster, long epoch)
+    throws ValidationException
+  {
+    long t1 = System.nanoTime();
+    if (known_transactions.containsKey(tx_hash)) return false;
+
+    if ((utxo_for_pri_map != null) && ((cluster == null) || (epoch != pri_map_epoch)))
+    {
+      cluster = buildTXCluster(info.tx, utxo_for_pri_map);
+    }
 
+    if (utxo_for_pri_map != null)
+    {
+      priority_map.put(cluster.ratio, cluster);
+      cluster_map.put(tx_hash, cluster);
     }
-    TimeRecord.record(t1, "mempool:p2");
 
     known_transactions.put(tx_hash, info);
+    short_id_map.put(CompactBlockRelay.getShortId(info.tx.getTxHash()), info.tx);
 
     for (AddressSpecHash spec_hash : info.involved_addresses)
     {
-      address_tx_map.put(spec_hash, tx_hash);
+      addAddressTx(spec_hash, tx_hash);
     }
 
-    // Claim outputs used by inputs
-    for (String key : used_outputs)
+    for (TransactionInput in : info.inner.getInputsList())
     {
-      claimed_outputs.put(key, tx_hash);
+      spender_map.put(new ChainHash(in.getSrcTxId()), tx_hash);
     }
-    TimeRecord.record(t1, "mempool:tx_add");
-    TimeRecord.record(t1, "mempool:p3");
+    version++;
+    TimeRecord.record(t1, "mempool:publish");
 
     return true;
   }
 
+  private void addAddressTx(AddressSpecHash spec_hash, ChainHash tx_hash)
+  {
+    Set<ChainHash> s = address_tx_map.get(spec_hash);
+    if (s == null)
+    {
+      s = ConcurrentHashMap.newKeySet();
+      address_tx_map.put(spec_hash, s);
+    }
+    s.add(tx_hash);
+  }
+
+  private void removeAddressTx(AddressSpecHash spec_hash, ChainHash tx_hash)
+  {
+    Set<ChainHash> s = address_tx_map.get(spec_hash);
+    if (s == null) return;
+
+    s.remove(tx_hash);
+    if (s.isEmpty())
+    {
+      address_tx_map.remove(spec_hash);
+    }
+  }
+
   public synchronized void rebuildPriorityMap(ChainHash new_utxo_root)
   {
     logger.log(Level.FINE, String.format("Mempool.rebuildPriorityMap(%s)", new_utxo_root));
     utxo_for_pri_map = new_utxo_root;
+    pri_map_epoch++;
+    version++;
     priority_map.clear();
+    cluster_map.clear();
 
     LinkedList<ChainHash> remove_list = new LinkedList<>();
 
@@ -288,7 +478,7 @@ public class MemPool
       TXCluster cluster;
       try
       {
-        cluster = buildTXCluster(tx);
+        cluster = buildTXCluster(tx, new_utxo_root);
       }
       catch (ValidationException e)
       {
@@ -298,33 +488,174 @@ public class MemPool
       if (cluster == null)
       {
         remove_list.add(new ChainHash(tx.getTxHash()));
-        TransactionInner inner = TransactionUtil.getInner(tx);
-        for (TransactionInput in : inner.getInputsList())
-        {
-          String key = HexUtil.getHexString(in.getSrcTxId()) + ":" + in.getSrcTxOutIdx();
-          claimed_outputs.remove(key);
-        }
       }
       else
       {
-        double ratio = (double) cluster.total_fee / (double) cluster.total_size;
-        priority_map.put(ratio, cluster);
+        priority_map.put(cluster.ratio, cluster);
+        cluster_map.put(new ChainHash(tx.getTxHash()), cluster);
       }
     }
     logger.log(Level.FINER, String.format("Removing %d transactions from mempool", remove_list.size()));
 
     for (ChainHash h : remove_list)
     {
-      TransactionMempoolInfo info = known_transactions.remove(h);
+      removeTransaction(h);
+    }
+    logger.log(Level.FINER, String.format("Remaining in mempool: %d", known_transactions.size()));
 
-      for (AddressSpecHash spec_hash : info.involved_addresses)
+  }
+
+  /**
+   * Update the mempool for a block that moved the utxo from prev_utxo_root to new_utxo_root.
+   * If the priority map is for prev_utxo_root, this only touches transactions related to the
+   * ones in the block.  Otherwise it falls back to rebuildPriorityMap().
+   */
+  public synchronized void updateForBlock(Block blk, ChainHash prev_utxo_root, ChainHash new_utxo_root)
+  {
+    if (new_utxo_root.equals(utxo_for_pri_map)) return;
+
+    if (!prev_utxo_root.equals(utxo_for_pri_map))
+    {
+      rebuildPriorityMap(new_utxo_root);
+      return;
+    }
+    long t1 = System.nanoTime();
+    logger.log(Level.FINE, String.format("Mempool.updateForBlock(%s)", new_utxo_root));
+
+    HashSet<ChainHash> confirmed = new HashSet<>();
+    HashSet<ChainHash> conflicts = new HashSet<>();
+
+    for (Transaction tx : blk.getTransactionsList())
+    {
+      ChainHash tx_hash = new ChainHash(tx.getTxHash());
+      confirmed.add(tx_hash);
+
+      TransactionInner inner = TransactionUtil.getInner(tx);
+      for (TransactionInput in : inner.getInputsList())
       {
-        address_tx_map.remove(spec_hash, h);
+        ChainHash claimer = claimed_outputs.get(getOutpointKey(in));
+        if ((claimer != null) && (!claimer.equals(tx_hash)))
+        {
+          conflicts.add(claimer);
+        }
       }
+    }
+
+    // Anything spending from a double spend can't confirm either
+    Set<ChainHash> evict = getSpenders(conflicts);
+    evict.addAll(conflicts);
 
+    // Spenders of confirmed transactions have those in their clusters
+    Set<ChainHash> affected = getSpenders(confirmed);
+    affected.removeAll(evict);
+    affected.removeAll(confirmed);
+
+    for (ChainHash h : confirmed)
+    {
+      removeTransaction(h);
     }
-    logger.log(Level.FINER, String.format("Remaining in mempool: %d", known_transactions.size()));
+    for (ChainHash h : evict)
+    {
+      removeTransaction(h);
+    }
+
+    utxo_for_pri_map = new_utxo_root;
+    pri_map_epoch++;
+    version++;
+
+    int dropped = 0;
+    for (ChainHash h : affected)
+    {
+      TransactionMempoolInfo info = known_transactions.get(h);
+      if (info == null) continue;
 
+      TXCluster old_cluster = cluster_map.remove(h);
+      if (old_cluster != null)
+      {
+        priority_map.remove(old_cluster.ratio, old_cluster);
+      }
+
+      TXCluster cluster;
+      try
+      {
+        cluster = buildTXCluster(info.tx, new_utxo_root);
+      }
+      catch (ValidationException e)
+      {
+        cluster = null;
+      }
+
+      if (cluster == null)
+      {
+        removeTransaction(h);
+        dropped++;
+      }
+      else
+      {
+        priority_map.put(cluster.ratio, cluster);
+        cluster_map.put(h, cluster);
+      }
+    }
+
+    logger.log(Level.FINER, String.format("Block had %d transactions, evicted %d conflicting, rebuilt %d clusters (%d dropped).  Remaining in mempool: %d",
+      confirmed.size(), evict.size(), affected.size(), dropped, known_transactions.size()));
+    TimeRecord.record(t1, "mempool:update_for_block");
+  }
+
+  /**
+   * @return all mempool transactions that spend from the given transactions, directly or not
+   */
+  private Set<ChainHash> getSpenders(Collection<ChainHash> sources)
+  {
+    HashSet<ChainHash> found = new HashSet<>();
+    LinkedList<ChainHash> queue = new LinkedList<>();
+    queue.addAll(sources);
+
+    while (queue.size() > 0)
+    {
+      ChainHash h = queue.poll();
+      for (ChainHash spender : spender_map.get(h))
+      {
+        if (known_transactions.containsKey(spender) && found.add(spender))
+        {
+          queue.add(spender);
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Removes a transaction and everything indexed about it.
+   * Does not touch the clusters of other transactions.
+   */
+  private void removeTransaction(ChainHash tx_hash)
+  {
+    TransactionMempoolInfo info = known_transactions.remove(tx_hash);
+    if (info == null) return;
+    short_id_map.remove(CompactBlockRelay.getShortId(info.tx.getTxHash()), info.tx);
+
+    for (AddressSpecHash spec_hash : info.involved_addresses)
+    {
+      removeAddressTx(spec_hash, tx_hash);
+    }
+    for (TransactionInput in : info.inner.getInputsList())
+    {
+      String key = getOutpointKey(in);
+      claimed_outputs.remove(key, tx_hash);
+      spender_map.remove(new ChainHash(in.getSrcTxId()), tx_hash);
+    }
+
+    TXCluster cluster = cluster_map.remove(tx_hash);
+    if (cluster != null)
+    {
+      priority_map.remove(cluster.ratio, cluster);
+    }
+  }
+
+  private static String getOutpointKey(TransactionInput in)
+  {
+    return HexUtil.getHexString(in.getSrcTxId()) + ":" + in.getSrcTxOutIdx();
   }
 
   private static void addInputRequirements(Transaction tx, HashMultimap<ChainHash, ChainHash> depends_on_map, List<TransactionInput> needed_inputs)
@@ -391,7 +722,7 @@ public class MemPool
    * Probably need to actually build the graph and do graph
    * theory things.
    */
-  private TXCluster buildTXCluster(Transaction target_tx) throws ValidationException
+  private TXCluster buildTXCluster(Transaction target_tx, ChainHash utxo_root) throws ValidationException
   {
     HashMap<ChainHash, Transaction> working_map = new HashMap<>();
 
@@ -404,32 +735,50 @@ public class MemPool
     working_map.put(new ChainHash(target_tx.getTxHash()), target_tx);
     long t1;
 
+    // Lookups done here are kept in test_buffer for the simulation below
+    UtxoUpdateBuffer test_buffer = new UtxoUpdateBuffer(utxo_hashed_trie, utxo_root);
 
     while (needed_inputs.size() > 0)
     {
-      TransactionInput in = needed_inputs.pop();
-      ChainHash needed_tx = new ChainHash(in.getSrcTxId());
-      if (!working_map.containsKey(needed_tx))
+      // Look up everything needed this round in one batch
+      LinkedList<TransactionInput> round_inputs = needed_inputs;
+      needed_inputs = new LinkedList<>();
+
+      ArrayList<ByteString> round_keys = new ArrayList<>();
+      for(TransactionInput in : round_inputs)
       {
+        if (!working_map.containsKey(new ChainHash(in.getSrcTxId())))
+        {
+          round_keys.add(UtxoUpdateBuffer.getKey(in));
+        }
+      }
+      t1 = System.nanoTime();
+      test_buffer.prefetch(round_keys);
+      TimeRecord.record(t1, "utxo_lookup");
 
-        ByteString key = UtxoUpdateBuffer.getKey(in);
-        t1 = System.nanoTime();
-        ByteString matching_output = utxo_hashed_trie.getLeafData(utxo_for_pri_map.getBytes(), key);
-        TimeRecord.record(t1, "utxo_lookup");
-        if (matching_output == null)
+      for(TransactionInput in : round_inputs)
+      {
+        ChainHash needed_tx = new ChainHash(in.getSrcTxId());
+        if (!working_map.containsKey(needed_tx))
         {
-          if (known_transactions.containsKey(needed_tx))
+          ByteString key = UtxoUpdateBuffer.getKey(in);
+          ByteString matching_output = test_buffer.getData(key);
+          if (matching_output == null)
           {
-            t1 = System.nanoTime();
-            Transaction found_tx = known_transactions.get(needed_tx).tx;
+            TransactionMempoolInfo found_info = known_transactions.get(needed_tx);
+            if (found_info != null)
+            {
+              t1 = System.nanoTime();
+              Transaction found_tx = found_info.tx;
 
-            working_map.put(needed_tx, found_tx);
-            addInputRequirements(found_tx, depends_on_map, needed_inputs);
-            TimeRecord.record(t1, "input_add");
-          }
-          else
-          {
-            throw new ValidationException(String.format("Unable to find source tx %s", needed_tx.toString()));
+              working_map.put(needed_tx, found_tx);
+              addInputRequirements(found_tx, depends_on_map, needed_inputs);
+              TimeRecord.record(t1, "input_add");
+            }
+            else
+            {
+              throw new ValidationException(String.format("Unable to find source tx %s", needed_tx.toString()));
+            }
           }
         }
       }
@@ -443,7 +792,6 @@ public class MemPool
     TimeRecord.record(t1, "get_order");
 
     t1 = System.nanoTime();
-    UtxoUpdateBuffer test_buffer = new UtxoUpdateBuffer(utxo_hashed_trie, utxo_for_pri_map);
     BlockHeader dummy_header = BlockHeader.newBuilder()
       .setBlockHeight( chain_state_source.getHeight() + 1)
       .setTimestamp(System.currentTimeMillis())
@@ -461,6 +809,24 @@ public class MemPool
   }
 
 
+  /**
+   * The priority map as of one version of the mempool, highest fee ratio first.
+   * Never changes once made, so it can be used without holding the mempool lock.
+   */
+  public class PrioritySnapshot
+  {
+    public final ChainHash utxo_root;
+    public final long version;
+    public final ImmutableList<TXCluster> clusters;
+
+    public PrioritySnapshot(ChainHash utxo_root, long version, List<TXCluster> clusters)
+    {
+      this.utxo_root = utxo_root;
+      this.version = version;
+      this.clusters = ImmutableList.copyOf(clusters);
+    }
+  }
+
   /**
    * A list of transactions which depend on each other.
    * The list should be ordered such that if they are added in the same order
@@ -475,6 +841,7 @@ public class MemPool
     final ImmutableSet<ChainHash> tx_set;
     int total_size;
     long total_fee;
+    final double ratio;
     final String rnd_val;
 
     public TXCluster(List<Transaction> tx_in_list)
@@ -496,6 +863,7 @@ public class MemPool
         s.add(new ChainHash(t.getTxHash()));
       }
       tx_set = ImmutableSet.copyOf(s);
+      ratio = (double) total_fee / (double) total_size;
       rnd_val = "" + new Random().nextDouble();
     }
 
@@ -506,17 +874,48 @@ public class MemPool
     }
   }
 
-  private volatile ChainHash tickle_hash = null;
-
-  public void tickleBlocks(ChainHash utxo_root_hash)
+  /**
+   * Queue up a block that was just added to the main chain.
+   * The Tickler thread applies it, or getTransactionsForBlock() does if it gets there first.
+   */
+  public void tickleBlocks(Block blk, ChainHash prev_utxo_root, ChainHash utxo_root_hash)
   {
-    tickle_hash = utxo_root_hash;
+    block_updates.add(new BlockUpdate(blk, prev_utxo_root, utxo_root_hash));
     synchronized (tickle_trigger)
     {
       tickle_trigger.notifyAll();
     }
   }
 
+  /**
+   * Apply queued blocks in order.  They are only taken off the queue
+   * while holding the mempool lock so they can't get applied out of order.
+   */
+  private synchronized void processBlockUpdates()
+  {
+    while (true)
+    {
+      BlockUpdate u = block_updates.poll();
+      if (u == null) return;
+
+      updateForBlock(u.blk, u.prev_utxo_root, u.utxo_root);
+    }
+  }
+
+  private static class BlockUpdate
+  {
+    final Block blk;
+    final ChainHash prev_utxo_root;
+    final ChainHash utxo_root;
+
+    BlockUpdate(Block blk, ChainHash prev_utxo_root, ChainHash utxo_root)
+    {
+      this.blk = blk;
+      this.prev_utxo_root = prev_utxo_root;
+      this.utxo_root = utxo_root;
+    }
+  }
+
   private Peerage peerage = null;
 
   public void setPeerage(Peerage peerage)
@@ -524,17 +923,35 @@ public class MemPool
     this.peerage = peerage;
   }
 
-  public class TicklerBroadcast extends PeriodicThread
+  public class TicklerBroadcast extends Thread
   {
     public TicklerBroadcast()
     {
-      super(5000);
       setName("MemPool/TicklerBroadcast");
       setDaemon(true);
     }
 
-    @Override
-    public void runPass() throws Exception
+    public void run()
+    {
+      while (!shutdown)
+      {
+        try
+        {
+          Thread.sleep(5000);
+          runPass();
+        }
+        catch (InterruptedException e)
+        {
+          // shutdown(), the loop checks
+        }
+        catch (Throwable t)
+        {
+          logger.log(Level.INFO, "TicklerBroadcast error: " + t);
+        }
+      }
+    }
+
+    private void runPass()
     {
       if (peerage != null)
       {
@@ -557,20 +974,22 @@ public class MemPool
 
     public void run()
     {
-      while (true)
+      while (!shutdown)
       {
         try
         {
           synchronized (tickle_trigger)
           {
-            tickle_trigger.wait();
-          }
-          if (tickle_hash != null)
-          {
-            rebuildPriorityMap(tickle_hash);
-            tickle_hash = null;
+            if (block_updates.isEmpty())
+            {
+              tickle_trigger.wait(5000);
+            }
           }
-          Thread.sleep(5000);
+          processBlockUpdates();
+        }
+        catch (InterruptedException e)
+        {
+          // shutdown(), the loop checks
         }
         catch (Throwable t)
         {
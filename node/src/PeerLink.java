@@ -1,6 +1,12 @@
 package snowblossom.node;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
 import io.grpc.ManagedChannel;
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import snowblossom.proto.*;
 import snowblossom.lib.*;
@@ -8,7 +14,10 @@ import snowblossom.lib.*;
 import java.util.Random;
 import java.util.TreeMap;
 import java.util.List;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -18,13 +27,19 @@ import java.util.logging.Logger;
  * of if we are the client or server.  We don't really care.
  * Messages to the other side go out on the 'sink'.
  * Messages come in on the onNext() method.
+ *
+ * Outgoing messages are queued and sent by a Peerage send thread only while
+ * grpc says the stream is ready, so a slow peer never holds up whoever is writing.
+ * Blocks, headers and the like go ahead of transactions.  If a peer falls far enough
+ * behind, old transaction messages are dropped.  If it still can't keep up, or stops
+ * reading for peer_stall_ms, the link is closed.
  */
-public class PeerLink implements StreamObserver<PeerMessage>
+public class PeerLink implements ClientResponseObserver<PeerMessage, PeerMessage>
 {
   private static final Logger logger = Logger.getLogger("snowblossom.peering");
 
   private SnowBlossomNode node;
-  private StreamObserver<PeerMessage> sink;
+  private volatile StreamObserver<PeerMessage> sink;
   private ManagedChannel channel;
   private volatile boolean closed;
 
@@ -36,6 +51,36 @@ public class PeerLink implements StreamObserver<PeerMessage>
 
   private TreeMap<Integer, ChainHash> peer_block_map = new TreeMap<Integer, ChainHash>();
 
+  // Lowest height of this peer's chain that we might not have, -1 until we know where it joins ours.
+  // Along with the header request state, guarded by peer_block_map.
+  private int sync_start = -1;
+  private int header_req_end = -1;
+  private long header_req_time = 0L;
+  private long locator_req_time = 0L;
+
+  // From the peer's tip, like Globals.PEER_FEATURE_HEADER_RANGE
+  private volatile ImmutableSet<String> features = ImmutableSet.of();
+
+  // Transactions the peer has or has been told of, so they aren't sent to it again
+  private final RollingBloomFilter known_tx = new RollingBloomFilter(50000, 0.001);
+  // Transactions to tell the peer of on the next flushInv()
+  private final LinkedHashSet<ChainHash> inv_queue = new LinkedHashSet<>();
+
+  // Outgoing messages, all guarded by queue_lock
+  private final Object queue_lock = new Object();
+  private final LinkedList<PeerMessage> high_queue = new LinkedList<>();
+  private final LinkedList<PeerMessage> low_queue = new LinkedList<>();
+  // Serialized size of what is in each queue
+  private long high_queue_bytes;
+  private long low_queue_bytes;
+  private boolean draining;
+  private long stall_since;
+
+  private volatile boolean requests_paused;
+
+  private final long high_queue_max;
+  private final long low_queue_max;
+  private final long stall_ms;
 
   public PeerLink(SnowBlossomNode node, StreamObserver<PeerMessage> sink)
   {
@@ -45,6 +90,14 @@ public class PeerLink implements StreamObserver<PeerMessage>
     setLinkId();
     last_received_message_time = System.currentTimeMillis();
 
+    high_queue_max = node.getConfig().getIntWithDefault("peer_queue_high_mb", 64) * 1048576L;
+    low_queue_max = node.getConfig().getIntWithDefault("peer_queue_low_mb", 16) * 1048576L;
+    stall_ms = node.getConfig().getIntWithDefault("peer_stall_ms", 120000);
+
+    if (sink instanceof ServerCallStreamObserver)
+    {
+      ((ServerCallStreamObserver<PeerMessage>) sink).setOnReadyHandler(new OnReady());
+    }
   }
 
   public PeerLink(SnowBlossomNode node, String link_id, PeerInfo info)
@@ -55,6 +108,28 @@ public class PeerLink implements StreamObserver<PeerMessage>
     this.link_id = link_id;
     this.peer_info = info;
     last_received_message_time = System.currentTimeMillis();
+
+    high_queue_max = node.getConfig().getIntWithDefault("peer_queue_high_mb", 64) * 1048576L;
+    low_queue_max = node.getConfig().getIntWithDefault("peer_queue_low_mb", 16) * 1048576L;
+    stall_ms = node.getConfig().getIntWithDefault("peer_stall_ms", 120000);
+  }
+
+  /**
+   * On the client side, grpc hands us the outgoing stream here before the call starts,
+   * which is the only time the ready handler can be set
+   */
+  @Override
+  public void beforeStart(ClientCallStreamObserver<PeerMessage> request_stream)
+  {
+    request_stream.setOnReadyHandler(new OnReady());
+  }
+
+  private class OnReady implements Runnable
+  {
+    public void run()
+    {
+      startDrain();
+    }
   }
 
   private void setLinkId()
@@ -103,10 +178,11 @@ public class PeerLink implements StreamObserver<PeerMessage>
     last_received_message_time = System.currentTimeMillis();
     try
     {
-      msg = PeerMessage.parseFrom(msg.toByteString());
+      // msg is already parsed by the grpc marshaller, no need to do it again
       if (msg.hasTx())
       {
         Transaction tx = msg.getTx();
+        known_tx.add(tx.getTxHash());
         //logger.info("TX: " + new ChainHash(tx.getTxHash()));
         try
         {
@@ -151,6 +227,7 @@ public class PeerLink implements StreamObserver<PeerMessage>
           return;
         }
         node.getPeerage().reportTip();
+        features = ImmutableSet.copyOf(tip.getFeaturesList());
 
         // When we first get a tip from a node we connected to
         // update the peer info showing the success in getting a tip
@@ -167,7 +244,7 @@ public class PeerLink implements StreamObserver<PeerMessage>
         if (header.getSnowHash().size() > 0)
         {
           Validation.checkBlockHeaderBasics(node.getParams(), header, false);
-          considerBlockHeader(header);
+          if (considerBlockHeader(header)) node.getSyncManager().wake();
           node.getPeerage().setHighestHeader(header);
         }
         for(PeerInfo pi : tip.getPeersList())
@@ -182,43 +259,24 @@ public class PeerLink implements StreamObserver<PeerMessage>
       {
         // Other side is asking for a block
         ChainHash hash = new ChainHash(msg.getReqBlock().getBlockHash());
-        Block blk = node.getDB().getBlockMap().get(hash.getBytes());
-        if (blk != null)
+        PeerMessage blk_msg = node.getPeerMessageCache().getBlockMessage(hash);
+        if (blk_msg != null)
         {
-          writeMessage( PeerMessage.newBuilder().setBlock(blk).build() );
+          writeMessage( blk_msg );
         }
       }
       else if (msg.hasBlock())
       {
-        // Getting a block, we probably asked for it.  See if we can eat it.
+        // Getting a block, we probably asked for it.  Hand it to the pipeline
+        // which will let us know when it is in via blockIngested()
         Block blk = msg.getBlock();
-        try
+        if (node.getBlockIngestPipeline().submit(blk, this))
         {
-          if (node.getBlockIngestor().ingestBlock(blk))
-          { // we could eat it, think about getting more blocks
-            int next = blk.getHeader().getBlockHeight()+1;
-            synchronized(peer_block_map)
-            {
-              if (peer_block_map.containsKey(next))
-              {
-                ChainHash target = peer_block_map.get(next);
-
-                if (node.getBlockIngestor().reserveBlock(target))
-                {
-                  writeMessage( PeerMessage.newBuilder()
-                    .setReqBlock(
-                      RequestBlock.newBuilder().setBlockHash(target.getBytes()).build())
-                    .build());
-                }
-              }
-            }
-          }
+          node.getSyncManager().blockReceived(this, blk);
         }
-        catch(ValidationException ve)
+        else
         {
-          logger.info("Got a block %s that didn't validate - closing link");
-          close();
-          throw(ve);
+          node.getSyncManager().blockRefused(blk);
         }
       }
       else if (msg.hasReqHeader())
@@ -229,7 +287,11 @@ public class PeerLink implements StreamObserver<PeerMessage>
         if (hash != null)
         {
           BlockSummary summary = node.getDB().getBlockSummaryMap().get(hash.getBytes());
-          writeMessage( PeerMessage.newBuilder().setHeader(summary.getHeader()).build() );
+          // Not there for heights below a UTXO snapshot
+          if (summary != null)
+          {
+            writeMessage( PeerMessage.newBuilder().setHeader(summary.getHeader()).build() );
+          }
         }
       }
       else if (msg.hasHeader())
@@ -237,7 +299,85 @@ public class PeerLink implements StreamObserver<PeerMessage>
         // We got a header, probably one we asked for
         BlockHeader header = msg.getHeader();
         Validation.checkBlockHeaderBasics(node.getParams(), header, false);
+        if (considerBlockHeader(header)) node.getSyncManager().wake();
+      }
+      else if (msg.hasReqHeaderRange())
+      {
+        sendHeaderRange(msg.getReqHeaderRange());
+      }
+      else if (msg.hasHeaderList())
+      {
+        // A run of headers, probably ones we asked for
+        List<BlockHeader> headers = msg.getHeaderList().getHeadersList();
+        if (headers.size() > Globals.HEADER_RANGE_MAX)
+        {
+          throw new ValidationException(String.format("Header list of %d is too long", headers.size()));
+        }
+        node.getBlockIngestPipeline().checkHeaders(headers);
+
+        boolean wake = false;
+        for(BlockHeader header : headers)
+        {
+          wake |= considerBlockHeader(header);
+        }
+        if (wake) node.getSyncManager().wake();
+      }
+      else if (msg.hasCompactBlock())
+      {
+        // A new block, rebuild it from our mempool if we can
+        CompactBlock cb = msg.getCompactBlock();
+        BlockHeader header = cb.getHeader();
+        Validation.checkBlockHeaderBasics(node.getParams(), header, false);
         considerBlockHeader(header);
+
+        if ((header.getBlockHeight() == 0) || (node.getBlockIngestor().hasBlock(new ChainHash(header.getPrevBlockHash()))))
+        {
+          node.getCompactBlockRelay().receive(this, cb);
+        }
+        else
+        {
+          // Can't do anything with it yet, the sync will get there
+          node.getSyncManager().wake();
+        }
+      }
+      else if (msg.hasReqBlockTxs())
+      {
+        node.getCompactBlockRelay().sendTransactions(this, msg.getReqBlockTxs());
+      }
+      else if (msg.hasBlockTxs())
+      {
+        node.getCompactBlockRelay().receiveTransactions(this, msg.getBlockTxs());
+      }
+      else if (msg.hasTxInv())
+      {
+        // Peer has new transactions, ask for the ones we don't have
+        TransactionInv.Builder req = TransactionInv.newBuilder();
+        for(ByteString tx_hash : msg.getTxInv().getTxHashesList())
+        {
+          if (req.getTxHashesCount() >= Globals.TX_INV_MAX) break;
+          known_tx.add(tx_hash);
+          ChainHash tx_id = new ChainHash(tx_hash);
+          if (node.getMemPool().getTransaction(tx_id) != null) continue;
+          if (node.getPeerage().reserveTxRequest(tx_id, this))
+          {
+            req.addTxHashes(tx_hash);
+          }
+        }
+        if (req.getTxHashesCount() > 0)
+        {
+          writeMessage(PeerMessage.newBuilder().setReqTxs(req.build()).build());
+        }
+      }
+      else if (msg.hasReqTxs())
+      {
+        int count = 0;
+        for(ByteString tx_hash : msg.getReqTxs().getTxHashesList())
+        {
+          if (count >= Globals.TX_INV_MAX) break;
+          count++;
+          Transaction tx = node.getMemPool().getTransaction(new ChainHash(tx_hash));
+          if (tx != null) sendTransaction(tx);
+        }
       }
       else if (msg.hasReqCluster())
       {
@@ -265,36 +405,126 @@ public class PeerLink implements StreamObserver<PeerMessage>
 
     for(Transaction tx : tx_list)
     {
-      writeMessage( PeerMessage.newBuilder()
-        .setTx(tx).build());
+      sendTransaction(tx);
+    }
+  }
+
+  private void sendTransaction(Transaction tx)
+  {
+    known_tx.add(tx.getTxHash());
+    PeerMessage msg = PeerMessage.newBuilder().setTx(tx).build();
+    node.getPeerage().recordTxRelayBytes(msg.getSerializedSize());
+    writeMessage(msg);
+  }
+
+  /**
+   * Lets the peer know of a new transaction, unless it already knows.
+   * Peers that take inventories get told on the next flushInv(),
+   * others get the transaction right away.
+   */
+  public void announceTransaction(Transaction tx)
+  {
+    if (known_tx.mightContain(tx.getTxHash())) return;
+
+    if (hasFeature(Globals.PEER_FEATURE_TX_INV))
+    {
+      synchronized(inv_queue)
+      {
+        inv_queue.add(new ChainHash(tx.getTxHash()));
+      }
+    }
+    else
+    {
+      sendTransaction(tx);
+    }
+  }
+
+  /**
+   * Sends what has built up for announceTransaction() in as few messages as it can
+   */
+  public void flushInv()
+  {
+    ArrayList<ChainHash> lst;
+    synchronized(inv_queue)
+    {
+      if (inv_queue.size() == 0) return;
+      lst = new ArrayList<>(inv_queue);
+      inv_queue.clear();
     }
+
+    TransactionInv.Builder inv = TransactionInv.newBuilder();
+    for(ChainHash tx_id : lst)
+    {
+      if (known_tx.mightContain(tx_id.getBytes())) continue;
+      known_tx.add(tx_id.getBytes());
+      inv.addTxHashes(tx_id.getBytes());
+      if (inv.getTxHashesCount() >= Globals.TX_INV_MAX)
+      {
+        writeInv(inv.build());
+        inv = TransactionInv.newBuilder();
+      }
+    }
+    if (inv.getTxHashesCount() > 0) writeInv(inv.build());
+  }
+
+  private void writeInv(TransactionInv inv)
+  {
+    PeerMessage msg = PeerMessage.newBuilder().setTxInv(inv).build();
+    node.getPeerage().recordTxRelayBytes(msg.getSerializedSize());
+    writeMessage(msg);
   }
 
   /**
    * The basic plan is, keep asking about previous blocks
-   * until we get to one we have heard of.  Then we start requesting the blocks.
+   * until we get to one we have heard of.  Then the SyncManager takes it from there,
+   * asking for the blocks and for the headers after.
+   * Peers that can do header ranges get sent a locator of our chain instead,
+   * so they can answer with where their chain leaves ours all at once.
+   *
+   * @return true iff there might be blocks for the SyncManager to get now
    */
-  private void considerBlockHeader(BlockHeader header)
+  private boolean considerBlockHeader(BlockHeader header)
   {
+    int height = header.getBlockHeight();
+    ChainHash prev = new ChainHash(header.getPrevBlockHash());
+    boolean extends_known;
 
     synchronized(peer_block_map)
     {
-      peer_block_map.put(header.getBlockHeight(), new ChainHash(header.getSnowHash()));
+      extends_known = prev.equals(peer_block_map.get(height - 1));
+      peer_block_map.put(height, new ChainHash(header.getSnowHash()));
     }
 
     // if we don't have this block
-    if (node.getDB().getBlockSummaryMap().get(header.getSnowHash())==null)
+    if (!node.getBlockIngestor().hasBlock(new ChainHash(header.getSnowHash())))
     {
-      int height = header.getBlockHeight();
-      if ((height == 0) || (node.getDB().getBlockSummaryMap().get(header.getPrevBlockHash())!=null))
+      if ((height == 0) || (node.getBlockIngestor().hasBlock(prev)))
       { // but we have the prev block - get this block 
-        if (node.getBlockIngestor().reserveBlock(new ChainHash(header.getSnowHash())))
+        synchronized(peer_block_map)
         {
-          writeMessage( PeerMessage.newBuilder()
-            .setReqBlock(
-              RequestBlock.newBuilder().setBlockHash(header.getSnowHash()).build())
-            .build());
+          if ((sync_start < 0) || (height < sync_start)) sync_start = height;
+        }
+        return true;
+      }
+      else if (extends_known)
+      { // follows on from headers we already have from this peer
+        return true;
+      }
+      else if (hasFeature(Globals.PEER_FEATURE_HEADER_RANGE))
+      { //still in the woods, find out where the peer's chain leaves ours
+        synchronized(peer_block_map)
+        {
+          long now = System.currentTimeMillis();
+          if (locator_req_time + 15000L > now) return false;
+          locator_req_time = now;
         }
+        writeMessage( PeerMessage.newBuilder()
+          .setReqHeaderRange(
+            RequestBlockHeaderRange.newBuilder()
+              .addAllLocator(getLocator())
+              .setCount(Globals.HEADER_RANGE_MAX)
+              .build())
+          .build());
       }
       else
       { //get more headers, still in the woods
@@ -310,12 +540,11 @@ public class PeerLink implements StreamObserver<PeerMessage>
         
         if (next >= 0)
         {
-          ChainHash prev = new ChainHash(header.getPrevBlockHash());
           synchronized(peer_block_map)
           {
             if (peer_block_map.containsKey(next))
             {
-              if (peer_block_map.get(next).equals(prev)) return;
+              if (peer_block_map.get(next).equals(prev)) return false;
             }
           }
 
@@ -327,19 +556,202 @@ public class PeerLink implements StreamObserver<PeerMessage>
       }
 
     }
+    return false;
+
+  }
+
+  /**
+   * Hashes of our main chain, the last few blocks and then further and
+   * further apart back to block 0
+   */
+  private List<ByteString> getLocator()
+  {
+    LinkedList<ByteString> locator = new LinkedList<>();
+    int step = 1;
+    for(int h = node.getBlockIngestor().getHeight(); h >= 0; h -= step)
+    {
+      ChainHash hash = node.getBlockHeightCache().getHash(h);
+      if (hash != null) locator.add(hash.getBytes());
+      if (locator.size() >= 10) step *= 2;
+    }
+    ChainHash genesis = node.getBlockHeightCache().getHash(0);
+    if ((genesis != null) && (!locator.contains(genesis.getBytes()))) locator.add(genesis.getBytes());
+    return locator;
+  }
+
+  private void sendHeaderRange(RequestBlockHeaderRange req)
+    throws ValidationException
+  {
+    // Each locator hash is a db read, so don't let a peer ask for any number of them
+    if (req.getLocatorCount() > Globals.LOCATOR_MAX)
+    {
+      throw new ValidationException(String.format("Locator of %d is too long", req.getLocatorCount()));
+    }
+
+    int start = req.getStartHeight();
+    if (req.getLocatorCount() > 0)
+    {
+      start = 0;
+      for(ByteString hash : req.getLocatorList())
+      {
+        BlockSummary summary = node.getDB().getBlockSummaryMap().get(hash);
+        if (summary == null) continue;
+        int h = summary.getHeader().getBlockHeight();
+        if (new ChainHash(hash).equals(node.getBlockHeightCache().getHash(h)))
+        {
+          start = h + 1;
+          break;
+        }
+      }
+    }
+
+    int count = Globals.HEADER_RANGE_MAX;
+    if (req.getCount() > 0) count = Math.min(count, req.getCount());
+    int end = Math.min(start + count, node.getBlockIngestor().getHeight() + 1);
+
+    BlockHeaderList.Builder lst = BlockHeaderList.newBuilder();
+    for(int h = start; h < end; h++)
+    {
+      ChainHash hash = node.getBlockHeightCache().getHash(h);
+      if (hash == null) break;
+      BlockSummary summary = node.getDB().getBlockSummaryMap().get(hash.getBytes());
+      // Not there for heights below a UTXO snapshot
+      if (summary == null) break;
+      lst.addHeaders(summary.getHeader());
+    }
+
+    writeMessage( PeerMessage.newBuilder().setHeaderList(lst.build()).build());
+  }
+
+  /**
+   * Called by the BlockIngestPipeline when a block we sent it has gone in.
+   */
+  protected void blockIngested(Block blk)
+  {
+    node.getSyncManager().blockIngested(blk);
+  }
+
+  /**
+   * The ingest pipeline is full, so don't ask this peer for blocks until it says so
+   */
+  protected void pauseRequests()
+  {
+    requests_paused = true;
+  }
+
+  protected void resumeRequests()
+  {
+    requests_paused = false;
+  }
+
+  public boolean isRequestPaused()
+  {
+    return requests_paused;
+  }
+
+  /**
+   * @return the blocks this peer has that we don't, in height order, starting
+   * from where its chain joins ours and stopping at the first header we don't have
+   */
+  protected TreeMap<Integer, ChainHash> getWantedBlocks(int max)
+  {
+    TreeMap<Integer, ChainHash> wanted = new TreeMap<>();
+    synchronized(peer_block_map)
+    {
+      if (sync_start < 0) return wanted;
+
+      for(int h = sync_start; wanted.size() < max; h++)
+      {
+        ChainHash hash = peer_block_map.get(h);
+        if (hash == null) break;
+        if (node.getBlockIngestor().hasBlock(hash))
+        {
+          // Nothing wanted below this, no need to look there again
+          if (wanted.size() == 0) sync_start = h + 1;
+        }
+        else
+        {
+          wanted.put(h, hash);
+        }
+      }
+    }
+    return wanted;
+  }
+
+  /**
+   * If the peer has told us of blocks past the headers we have from it,
+   * ask for the next run of headers.  Doesn't get more than 'lookahead' ahead
+   * of the blocks, since those headers would just wait around.
+   */
+  protected void requestHeaders(int lookahead)
+  {
+    int start;
+    int end;
+    synchronized(peer_block_map)
+    {
+      if ((sync_start < 0) || (peer_block_map.size() == 0)) return;
+
+      int tip = peer_block_map.lastKey();
+      start = sync_start;
+      while(peer_block_map.containsKey(start)) start++;
+
+      if (start >= tip) return;
+      if (start - sync_start > lookahead) return;
+
+      long now = System.currentTimeMillis();
+      // Already asked, give it time to come in
+      if ((header_req_end > start) && (header_req_time + 15000L > now)) return;
+
+      end = Math.min(tip, start + Globals.BLOCK_CHUNK_HEADER_DOWNLOAD_SIZE);
+      header_req_end = end;
+      header_req_time = now;
+    }
 
+    if (hasFeature(Globals.PEER_FEATURE_HEADER_RANGE))
+    {
+      for(int h = start; h < end; h += Globals.HEADER_RANGE_MAX)
+      {
+        writeMessage( PeerMessage.newBuilder()
+          .setReqHeaderRange(
+            RequestBlockHeaderRange.newBuilder()
+              .setStartHeight(h)
+              .setCount(Math.min(Globals.HEADER_RANGE_MAX, end - h))
+              .build())
+          .build());
+      }
+    }
+    else
+    {
+      for(int h = start; h < end; h++)
+      {
+        writeMessage( PeerMessage.newBuilder()
+          .setReqHeader(
+            RequestBlockHeader.newBuilder().setBlockHeight(h).build())
+          .build());
+      }
+    }
   }
 
   public void close()
   {
     if (closed) return;
     closed=true;
+    synchronized(queue_lock)
+    {
+      high_queue.clear();
+      low_queue.clear();
+      high_queue_bytes = 0L;
+      low_queue_bytes = 0L;
+    }
     try
     {
 
       if (sink != null)
       {
-        sink.onCompleted();
+        synchronized(sink)
+        {
+          sink.onCompleted();
+        }
       }
 
       if (channel != null)
@@ -361,18 +773,178 @@ public class PeerLink implements StreamObserver<PeerMessage>
       logger.info(getLinkId() + " - No message in a long time, assuming dead link");
       close();
     }
+    boolean stalled;
+    synchronized(queue_lock)
+    {
+      stalled = (stall_since > 0L) && (stall_since + stall_ms < System.currentTimeMillis());
+    }
+    if (stalled)
+    {
+      logger.info(getLinkId() + " - Not reading what we send, closing");
+      node.getPeerage().recordSendClose();
+      close();
+    }
     return !closed;
   }
   
+  /**
+   * Queues the message to go out.  Never blocks on the peer.
+   * The queues are limited by serialized bytes, so a peer that doesn't read
+   * can't hold more than that much of our memory.
+   */
   public void writeMessage(PeerMessage msg)
   {
-    if (!closed)
+    if (closed) return;
+
+    // Memoized by the message, so the send doesn't pay for it again
+    long size = msg.getSerializedSize();
+    boolean overflow = false;
+    synchronized(queue_lock)
+    {
+      if (isLowPriority(msg))
+      {
+        while((low_queue_bytes + size > low_queue_max) && (!low_queue.isEmpty()))
+        {
+          // Transactions can be found again, drop the oldest
+          low_queue_bytes -= low_queue.poll().getSerializedSize();
+          node.getPeerage().recordSendDrop();
+        }
+        low_queue.add(msg);
+        low_queue_bytes += size;
+      }
+      else
+      {
+        // One message on its own always goes, however big
+        if ((high_queue_bytes + size > high_queue_max) && (!high_queue.isEmpty())) overflow = true;
+        else
+        {
+          high_queue.add(msg);
+          high_queue_bytes += size;
+        }
+      }
+    }
+
+    if (overflow)
+    {
+      logger.info(getLinkId() + " - Fell too far behind on sending, closing");
+      node.getPeerage().recordSendClose();
+      close();
+      return;
+    }
+    startDrain();
+  }
+
+  private static boolean isLowPriority(PeerMessage msg)
+  {
+    return msg.hasTx() || msg.hasTxInv() || msg.hasReqTxs() || msg.hasReqCluster();
+  }
+
+  public int getQueuedCount()
+  {
+    synchronized(queue_lock)
+    {
+      return high_queue.size() + low_queue.size();
+    }
+  }
+
+  public long getQueuedBytes()
+  {
+    synchronized(queue_lock)
+    {
+      return high_queue_bytes + low_queue_bytes;
+    }
+  }
+
+  private boolean isSinkReady()
+  {
+    StreamObserver<PeerMessage> s = sink;
+    if (s == null) return false;
+    if (s instanceof CallStreamObserver)
+    {
+      return ((CallStreamObserver<PeerMessage>) s).isReady();
+    }
+    return true;
+  }
+
+  private void startDrain()
+  {
+    synchronized(queue_lock)
+    {
+      if (draining) return;
+      if (high_queue.isEmpty() && low_queue.isEmpty()) return;
+      draining = true;
+    }
+    node.getPeerage().getSendExec().execute(new Runnable()
     {
-      synchronized(sink)
+      public void run()
       {
-        sink.onNext(msg);
+        drain();
+      }
+    });
+  }
+
+  /**
+   * Sends until the queues are empty or grpc has all it wants to buffer.
+   * In that case the ready handler starts it again once the peer has read some.
+   */
+  private void drain()
+  {
+    try
+    {
+      while(true)
+      {
+        PeerMessage msg;
+        synchronized(queue_lock)
+        {
+          if (closed) return;
+          if (!isSinkReady())
+          {
+            draining = false;
+            if (stall_since == 0L) stall_since = System.currentTimeMillis();
+            break;
+          }
+          stall_since = 0L;
+          msg = high_queue.poll();
+          if (msg != null)
+          {
+            high_queue_bytes -= msg.getSerializedSize();
+          }
+          else
+          {
+            msg = low_queue.poll();
+            if (msg == null)
+            {
+              draining = false;
+              return;
+            }
+            low_queue_bytes -= msg.getSerializedSize();
+          }
+        }
+        synchronized(sink)
+        {
+          sink.onNext(msg);
+        }
       }
     }
+    catch(Throwable t)
+    {
+      synchronized(queue_lock)
+      {
+        draining = false;
+      }
+      logger.log(Level.FINE, getLinkId() + " - send error", t);
+      close();
+      return;
+    }
+
+    // It might have become ready between the check and draining being cleared,
+    // in which case the ready handler found it still draining and did nothing
+    if (isSinkReady()) startDrain();
+  }
+
+  public boolean hasFeature(String feature)
+  {
+    return features.contains(feature);
   }
 
   public String getLinkId()
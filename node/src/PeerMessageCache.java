@@ -0,0 +1,91 @@
+package snowblossom.node;
+
+import duckutil.TimeRecord;
+import snowblossom.lib.ChainHash;
+import snowblossom.proto.Block;
+import snowblossom.proto.PeerMessage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recent blocks, kept as PeerMessages ready to go out.
+ *
+ * When peers sync from us they all ask for the same blocks in about the same order,
+ * and new blocks get asked for by everyone at once.  Without this each of those
+ * requests loads and parses the block again.  The message also remembers its
+ * serialized size, so that only gets worked out once.
+ */
+public class PeerMessageCache
+{
+  private final SnowBlossomNode node;
+  private final long max_bytes;
+
+  private final LinkedHashMap<ChainHash, PeerMessage> block_map = new LinkedHashMap<>(256, 0.75f, true);
+  private long bytes;
+
+  private final AtomicLong hits = new AtomicLong(0L);
+  private final AtomicLong misses = new AtomicLong(0L);
+
+  public PeerMessageCache(SnowBlossomNode node, long max_bytes)
+  {
+    this.node = node;
+    this.max_bytes = max_bytes;
+  }
+
+  /**
+   * @return a message with the block, or null if we don't have it
+   */
+  public PeerMessage getBlockMessage(ChainHash hash)
+  {
+    synchronized(block_map)
+    {
+      PeerMessage msg = block_map.get(hash);
+      if (msg != null)
+      {
+        hits.incrementAndGet();
+        return msg;
+      }
+    }
+    misses.incrementAndGet();
+
+    long t1 = System.nanoTime();
+    Block blk = node.getDB().getBlockMap().get(hash.getBytes());
+    TimeRecord.record(t1, "PeerMessageCache.loadBlock");
+    if (blk == null) return null;
+
+    return addBlock(hash, blk);
+  }
+
+  /**
+   * Called with each new block, since all the peers are about to ask for it
+   */
+  public PeerMessage addBlock(ChainHash hash, Block blk)
+  {
+    PeerMessage msg = PeerMessage.newBuilder().setBlock(blk).build();
+    long sz = msg.getSerializedSize();
+
+    synchronized(block_map)
+    {
+      if (block_map.containsKey(hash)) return block_map.get(hash);
+
+      block_map.put(hash, msg);
+      bytes += sz;
+
+      Iterator<Map.Entry<ChainHash, PeerMessage>> it = block_map.entrySet().iterator();
+      while((bytes > max_bytes) && (it.hasNext()))
+      {
+        PeerMessage old = it.next().getValue();
+        bytes -= old.getSerializedSize();
+        it.remove();
+      }
+    }
+    return msg;
+  }
+
+  public long getHits(){ return hits.get(); }
+  public long getMisses(){ return misses.get(); }
+
+}
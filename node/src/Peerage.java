@@ -2,15 +2,22 @@ package snowblossom.node;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
 import snowblossom.proto.*;
 import snowblossom.lib.*;
 import duckutil.AtomicFileOutputStream;
 import duckutil.NetUtil;
+import duckutil.PeriodicThread;
 import java.io.PrintStream;
 
 import java.net.InetAddress;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,6 +46,15 @@ public class Peerage
   private ImmutableList<PeerInfo> self_peer_info;
 
   private volatile BlockHeader highest_seen_header;
+
+  public static final long TX_REQUEST_TIMEOUT = 10000L;
+
+  private final LRUCache<ChainHash, TxRequest> tx_request_map = new LRUCache<>(20000);
+  private final ThreadPoolExecutor send_exec;
+  private final AtomicLong send_drops = new AtomicLong(0L);
+  private final AtomicLong send_closes = new AtomicLong(0L);
+  private final AtomicLong tx_relay_count = new AtomicLong(0L);
+  private final AtomicLong tx_relay_bytes = new AtomicLong(0L);
   private long last_random_close = System.currentTimeMillis();
   
   public Peerage(SnowBlossomNode node)
@@ -46,6 +62,14 @@ public class Peerage
     this.node = node;
 
     links = new HashMap<>();
+
+    int send_threads = node.getConfig().getIntWithDefault("peer_send_threads", 4);
+    send_exec = new ThreadPoolExecutor(
+      send_threads,
+      send_threads,
+      2, TimeUnit.DAYS,
+      new LinkedBlockingQueue<Runnable>(),
+      new DaemonThreadFactory("peer_send"));
     peer_rumor_list = new HashMap<String,PeerInfo>();
 
     ByteString peer_data = node.getDB().getSpecialMap().get("peerlist");
@@ -89,6 +113,7 @@ public class Peerage
   {
     logger.info("Starting peerage");
     new PeerageMaintThread().start();
+    new InvFlushThread().start();
   }
 
   public void register(PeerLink link)
@@ -108,6 +133,9 @@ public class Peerage
 
     tip.setNetworkName(node.getParams().getNetworkName());
     tip.setVersion(Globals.VERSION);
+    tip.addFeatures(Globals.PEER_FEATURE_HEADER_RANGE);
+    tip.addFeatures(Globals.PEER_FEATURE_COMPACT_BLOCK);
+    tip.addFeatures(Globals.PEER_FEATURE_TX_INV);
 
     if (summary != null)
     {
@@ -197,7 +225,7 @@ public class Peerage
     return map;
   }
 
-  private ImmutableList<PeerLink> getLinkList()
+  public ImmutableList<PeerLink> getLinkList()
   {
     synchronized(links)
     {
@@ -235,13 +263,38 @@ public class Peerage
     }
   }
 
+  /**
+   * Sends a new block as a CompactBlock to the peers that take them.
+   * The others find out from the tip and ask for it.
+   */
+  public void sendCompactBlock(Block blk)
+  {
+    PeerMessage msg = PeerMessage.newBuilder().setCompactBlock(CompactBlockRelay.makeCompact(blk)).build();
+    for(PeerLink link : getLinkList())
+    {
+      if (!link.hasFeature(Globals.PEER_FEATURE_COMPACT_BLOCK)) continue;
+      try
+      {
+        link.writeMessage(msg);
+      }
+      catch(Throwable e)
+      {
+        link.close();
+      }
+    }
+  }
+
+  /**
+   * Called with each transaction that makes it into the mempool
+   */
   public void broadcastTransaction(Transaction tx)
   {
+    tx_relay_count.incrementAndGet();
     for(PeerLink link : getLinkList())
     {
       try
       {
-        link.writeMessage(PeerMessage.newBuilder().setTx(tx).build());
+        link.announceTransaction(tx);
       }
       catch(Throwable e)
       {
@@ -250,6 +303,126 @@ public class Peerage
     }
   }
 
+  /**
+   * Called for each transaction a peer tells us of that we don't have.
+   * @return true if this peer should be asked for it now.  If someone else has been
+   * asked lately, this peer is remembered and asked if that doesn't come through.
+   */
+  public boolean reserveTxRequest(ChainHash tx_id, PeerLink link)
+  {
+    synchronized(tx_request_map)
+    {
+      long tm = System.currentTimeMillis();
+      TxRequest r = tx_request_map.get(tx_id);
+      if ((r != null) && (r.time + TX_REQUEST_TIMEOUT > tm))
+      {
+        if ((r.link != link) && (!r.announcers.contains(link))) r.announcers.add(link);
+        return false;
+      }
+      if (r == null)
+      {
+        r = new TxRequest();
+        tx_request_map.put(tx_id, r);
+      }
+      r.link = link;
+      r.time = tm;
+      return true;
+    }
+  }
+
+  /**
+   * Once a transaction we asked for is overdue, asks the next peer that told us of it.
+   * The peers won't tell us of it again, since they know we know of it.
+   */
+  private void retryTxRequests()
+  {
+    HashMap<PeerLink, ArrayList<ByteString>> to_ask = new HashMap<>();
+    synchronized(tx_request_map)
+    {
+      long tm = System.currentTimeMillis();
+      Iterator<Map.Entry<ChainHash, TxRequest>> it = tx_request_map.entrySet().iterator();
+      while(it.hasNext())
+      {
+        Map.Entry<ChainHash, TxRequest> me = it.next();
+        TxRequest r = me.getValue();
+        if (r.time + TX_REQUEST_TIMEOUT > tm) continue;
+
+        if ((node.getMemPool().getTransaction(me.getKey()) != null) || (r.announcers.isEmpty()))
+        {
+          // Either got it or no one left to ask.  If someone new tells us of it, they get asked.
+          it.remove();
+          continue;
+        }
+
+        r.link = r.announcers.poll();
+        r.time = tm;
+        if (!to_ask.containsKey(r.link)) to_ask.put(r.link, new ArrayList<ByteString>());
+        to_ask.get(r.link).add(me.getKey().getBytes());
+      }
+    }
+
+    for(Map.Entry<PeerLink, ArrayList<ByteString>> me : to_ask.entrySet())
+    {
+      for(List<ByteString> part : Lists.partition(me.getValue(), Globals.TX_INV_MAX))
+      {
+        me.getKey().writeMessage(PeerMessage.newBuilder()
+          .setReqTxs(TransactionInv.newBuilder().addAllTxHashes(part).build())
+          .build());
+      }
+    }
+  }
+
+  private static class TxRequest
+  {
+    PeerLink link;
+    long time;
+    // Others that told us of it, in order
+    final LinkedList<PeerLink> announcers = new LinkedList<>();
+  }
+
+  public void recordTxRelayBytes(long bytes)
+  {
+    tx_relay_bytes.addAndGet(bytes);
+  }
+
+  /** Runs the PeerLink senders */
+  public Executor getSendExec()
+  {
+    return send_exec;
+  }
+
+  public void recordSendDrop()
+  {
+    send_drops.incrementAndGet();
+  }
+
+  public void recordSendClose()
+  {
+    send_closes.incrementAndGet();
+  }
+
+  public String getSendReport()
+  {
+    int queued = 0;
+    long queued_bytes = 0L;
+    for(PeerLink link : getLinkList())
+    {
+      queued += link.getQueuedCount();
+      queued_bytes += link.getQueuedBytes();
+    }
+    return String.format("%d messages (%d KB) queued, %d dropped, %d links closed for falling behind",
+      queued, queued_bytes / 1024L, send_drops.get(), send_closes.get());
+  }
+
+  public String getTxRelayReport()
+  {
+    long count = tx_relay_count.get();
+    long bytes = tx_relay_bytes.get();
+    long per_tx = 0L;
+    if (count > 0) per_tx = bytes / count;
+    return String.format("%d transactions, %d bytes sent, %d bytes per transaction", count, bytes, per_tx);
+  }
+
   public void connectPeer(String host, int port)
   {
     new PeerClient(node, PeerInfo.newBuilder().setHost(host).setPort(port).build());
@@ -336,6 +509,37 @@ public class Peerage
 
   }
 
+  /**
+   * Sends the transaction announcements that have built up on each link,
+   * so a burst of transactions goes out as one message per peer
+   */
+  public class InvFlushThread extends PeriodicThread
+  {
+    public InvFlushThread()
+    {
+      super(node.getConfig().getIntWithDefault("tx_inv_interval_ms", 500));
+      setName("Peerage/InvFlushThread");
+      setDaemon(true);
+    }
+
+    @Override
+    public void runPass()
+    {
+      for(PeerLink link : getLinkList())
+      {
+        try
+        {
+          link.flushInv();
+        }
+        catch(Throwable e)
+        {
+          link.close();
+        }
+      }
+      retryTxRequests();
+    }
+  }
+
   public class PeerageMaintThread extends Thread
   {
     public PeerageMaintThread()
@@ -6,6 +6,8 @@ import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import snowblossom.lib.db.DB;
 import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.TrieDB;
+import snowblossom.lib.trie.TrieDBCached;
 import snowblossom.lib.trie.TrieDBMap;
 import snowblossom.lib.db.lobstack.LobstackDB;
 import snowblossom.lib.db.rocksdb.JRocksDB;
@@ -44,11 +46,17 @@ public class SnowBlossomNode
   private DB db;
   private NetworkParams params;
   private BlockIngestor ingestor;
+  private BlockIngestPipeline ingest_pipeline;
+  private SyncManager sync_manager;
+  private CompactBlockRelay compact_block_relay;
   private BlockForge forge;
   private MemPool mem_pool;
   private HashedTrie utxo_hashed_trie;
+  private TrieDBCached utxo_trie_cache;
   private Peerage peerage;
   private BlockHeightCache block_height_cache;
+  private PeerMessageCache peer_message_cache;
+  private TriePruner trie_pruner;
 
   private volatile boolean terminate;
 
@@ -85,6 +93,9 @@ public class SnowBlossomNode
     throws Exception
   {
     ingestor = new BlockIngestor(this);
+    ingest_pipeline = new BlockIngestPipeline(this);
+    sync_manager = new SyncManager(this);
+    compact_block_relay = new CompactBlockRelay(this);
     forge = new BlockForge(this);
     mem_pool = new MemPool(utxo_hashed_trie, ingestor);
 
@@ -92,13 +103,25 @@ public class SnowBlossomNode
     mem_pool.setPeerage(peerage);
 
     block_height_cache = new BlockHeightCache(this);
+    peer_message_cache = new PeerMessageCache(this, config.getIntWithDefault("peer_message_cache_mb", 64) * 1048576L);
+
+    if (config.getBoolean("trie_prune"))
+    {
+      trie_pruner = new TriePruner(this);
+    }
 
   }
 
   private void startWidgets()
   {
     peerage.start();
+    sync_manager.start();
     new TimeWatcher().start();
+
+    IndexMigrator migrator = new IndexMigrator(db);
+    if (migrator.isNeeded()) migrator.start();
+
+    if (trie_pruner != null) trie_pruner.start();
   }
 
   private void startServices()
@@ -127,8 +150,15 @@ public class SnowBlossomNode
 
   private void loadDB()
     throws Exception
+  {
+    db = openDB(config);
+  }
+
+  public static DB openDB(Config config)
+    throws Exception
   {
     String db_type = config.get("db_type");
+    DB db;
     
     if(db_type.equals("rocksdb"))
     {
@@ -145,6 +175,7 @@ public class SnowBlossomNode
     }
 
     db.open();
+    return db;
 
   }
   private void loadUtxoDB()
@@ -155,7 +186,16 @@ public class SnowBlossomNode
     //File utxo_db_file = new File(utxo_db_path);
     //utxo_db_file.mkdirs();
 
-    utxo_hashed_trie = new HashedTrie(new TrieDBMap(db.getUtxoNodeMap()),Globals.UTXO_KEY_LEN ,true);
+    TrieDB utxo_trie_db = new TrieDBMap(db.getUtxoNodeMap());
+
+    int utxo_cache_mb = config.getIntWithDefault("utxo_cache_mb", 128);
+    if (utxo_cache_mb > 0)
+    {
+      utxo_trie_cache = new TrieDBCached(utxo_trie_db, utxo_cache_mb * 1048576L, db);
+      utxo_trie_db = utxo_trie_cache;
+    }
+
+    utxo_hashed_trie = new HashedTrie(utxo_trie_db, Globals.UTXO_KEY_LEN ,true);
   }
 
   public boolean areWeSynced()
@@ -190,10 +230,18 @@ public class SnowBlossomNode
   public DB getDB(){return db;}
   public NetworkParams getParams(){return params;}
   public BlockIngestor getBlockIngestor(){ return ingestor; }
+  public BlockIngestPipeline getBlockIngestPipeline(){ return ingest_pipeline; }
+  public SyncManager getSyncManager(){ return sync_manager; }
+  public CompactBlockRelay getCompactBlockRelay(){ return compact_block_relay; }
   public BlockForge getBlockForge() {return forge;}
   public HashedTrie getUtxoHashedTrie(){return utxo_hashed_trie;}
+  /** may be null if utxo_cache_mb is zero */
+  public TrieDBCached getUtxoTrieCache(){return utxo_trie_cache;}
   public MemPool getMemPool(){return mem_pool;}
   public Peerage getPeerage(){return peerage;}
   public SnowUserService getUserService() {return user_service;}
   public BlockHeightCache getBlockHeightCache() {return block_height_cache; }
+  public PeerMessageCache getPeerMessageCache() {return peer_message_cache; }
+  /** null unless trie_prune is set */
+  public TriePruner getTriePruner() {return trie_pruner; }
 }
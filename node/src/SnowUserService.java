@@ -1,9 +1,11 @@
 package snowblossom.node;
 
 import com.google.protobuf.ByteString;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import snowblossom.proto.*;
 import snowblossom.lib.*;
+import snowblossom.lib.db.DBCursor;
 import snowblossom.trie.proto.TrieNode;
 
 import java.util.LinkedList;
@@ -268,7 +270,7 @@ public class SnowUserService extends UserServiceGrpc.UserServiceImplBase
     if (block_hash != null)
     {
       BlockSummary sum = node.getDB().getBlockSummaryMap().get(block_hash.getBytes());
-      answer = sum.getHeader();
+      if (sum != null) answer = sum.getHeader();
     }
     responseObserver.onNext(answer);
     responseObserver.onCompleted();
@@ -363,6 +365,108 @@ public class SnowUserService extends UserServiceGrpc.UserServiceImplBase
  
   }
 
+  /**
+   * Sends the history a page at a time, only as fast as the client reads it,
+   * so only a page or so is ever held in memory no matter how busy the address is.
+   * Each page has the token to resume after it.
+   */
+  @Override
+  public void getAddressHistoryStream(RequestAddressHistory req, StreamObserver<HistoryList> observer)
+  {
+    AddressSpecHash spec_hash = new AddressSpecHash(req.getAddressSpecHash());
+    if (node.getDB().getAddressHistoryMap() == null)
+    {
+      observer.onNext(HistoryList.newBuilder().setNotEnabled(true).build());
+      observer.onCompleted();
+      return;
+    }
+
+    int page_size = req.getPageSize();
+    if (page_size <= 0) page_size = Globals.ADDRESS_HISTORY_PAGE_SIZE;
+    page_size = Math.min(page_size, Globals.ADDRESS_HISTORY_MAX_PAGE_SIZE);
+
+    DBCursor<ByteString> cursor;
+    try
+    {
+      cursor = AddressHistoryUtil.openHistoryCursor(spec_hash, node.getDB(), req.getResumeToken());
+    }
+    catch(Throwable e)
+    {
+      String addr = AddressUtil.getAddressString(node.getParams().getAddressPrefix(), spec_hash);
+      logger.info("Exception "+addr+" " + e.toString());
+      observer.onError(e);
+      return;
+    }
+
+    new HistoryStream(spec_hash, cursor, page_size, (ServerCallStreamObserver<HistoryList>) observer).start();
+  }
+
+  /**
+   * Sends pages from the cursor whenever grpc is ready for more.
+   * The cursor stays open between pages and is closed at the end or on cancel.
+   */
+  private class HistoryStream implements Runnable
+  {
+    private final AddressSpecHash spec_hash;
+    private final DBCursor<ByteString> cursor;
+    private final int page_size;
+    private final ServerCallStreamObserver<HistoryList> observer;
+    private boolean done;
+
+    public HistoryStream(AddressSpecHash spec_hash, DBCursor<ByteString> cursor, int page_size,
+      ServerCallStreamObserver<HistoryList> observer)
+    {
+      this.spec_hash = spec_hash;
+      this.cursor = cursor;
+      this.page_size = page_size;
+      this.observer = observer;
+    }
+
+    public void start()
+    {
+      observer.setOnCancelHandler(new Runnable()
+      {
+        public void run()
+        {
+          finish();
+        }
+      });
+      observer.setOnReadyHandler(this);
+      run();
+    }
+
+    public synchronized void run()
+    {
+      if (done) return;
+      try
+      {
+        while(observer.isReady())
+        {
+          if (!cursor.hasNext())
+          {
+            finish();
+            observer.onCompleted();
+            return;
+          }
+          observer.onNext(AddressHistoryUtil.getHistoryPage(cursor, page_size, node.getBlockHeightCache()));
+        }
+      }
+      catch(Throwable e)
+      {
+        String addr = AddressUtil.getAddressString(node.getParams().getAddressPrefix(), spec_hash);
+        logger.info("Exception "+addr+" " + e.toString());
+        finish();
+        observer.onError(e);
+      }
+    }
+
+    private synchronized void finish()
+    {
+      if (done) return;
+      done = true;
+      cursor.close();
+    }
+  }
 
   class BlockSubscriberInfo
   {
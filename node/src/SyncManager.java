@@ -0,0 +1,248 @@
+package snowblossom.node;
+
+import duckutil.PeriodicThread;
+import snowblossom.lib.ChainHash;
+import snowblossom.proto.Block;
+import snowblossom.proto.PeerMessage;
+import snowblossom.proto.RequestBlock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides which blocks to ask which peers for.
+ *
+ * Each PeerLink finds out the headers of its peer's chain, back to where it joins ours.
+ * From those, this asks for the lowest blocks we don't have yet, spread over every
+ * peer that has them, with up to sync_peer_window requests out to any one peer
+ * and up to sync_lookahead blocks requested but not yet in.  A request that hasn't
+ * come back in sync_timeout_ms goes to another peer.  Blocks can come back in any order,
+ * the BlockIngestPipeline commits them in height order.
+ *
+ * So a sync runs as fast as all the peers can send, rather than one block per round trip.
+ */
+public class SyncManager extends PeriodicThread
+{
+  private static final Logger logger = Logger.getLogger("snowblossom.peering");
+
+  private final SnowBlossomNode node;
+  private final int window;
+  private final int lookahead;
+  private final long timeout;
+
+  // Blocks asked for that are not in yet
+  private final HashMap<ChainHash, Request> requests = new HashMap<>();
+
+  private final AtomicLong requested = new AtomicLong(0L);
+  private final AtomicLong timed_out = new AtomicLong(0L);
+
+  public SyncManager(SnowBlossomNode node)
+  {
+    super(1000L);
+    setName("SyncManager");
+    setDaemon(true);
+
+    this.node = node;
+    window = node.getConfig().getIntWithDefault("sync_peer_window", 16);
+    // Past what the pipeline can hold, out of order blocks would just be dropped
+    lookahead = node.getConfig().getIntWithDefault("sync_lookahead", node.getBlockIngestPipeline().getDepth() * 4);
+    timeout = node.getConfig().getIntWithDefault("sync_timeout_ms", 15000);
+  }
+
+  @Override
+  public void runPass()
+  {
+    schedule();
+  }
+
+  /**
+   * Called when a peer has told us of blocks we might want
+   */
+  public void wake()
+  {
+    schedule();
+  }
+
+  /**
+   * Something else is getting this block from this peer, so don't ask for it.
+   * If it doesn't come in, it gets asked for after the timeout like any other.
+   */
+  public void expect(PeerLink link, ChainHash hash)
+  {
+    synchronized(requests)
+    {
+      if (!requests.containsKey(hash))
+      {
+        requests.put(hash, new Request(hash, link, System.currentTimeMillis()));
+      }
+    }
+  }
+
+  public void blockReceived(PeerLink link, Block blk)
+  {
+    ChainHash hash = new ChainHash(blk.getHeader().getSnowHash());
+    synchronized(requests)
+    {
+      Request r = requests.get(hash);
+      if ((r != null) && (!r.received))
+      {
+        // Off the peer's window, but still counts against the lookahead
+        // and still times out if it somehow never gets in
+        r.received = true;
+        r.time = System.currentTimeMillis();
+      }
+    }
+  }
+
+  /**
+   * The pipeline had no room for it, so it has to be asked for again
+   */
+  public void blockRefused(Block blk)
+  {
+    synchronized(requests)
+    {
+      requests.remove(new ChainHash(blk.getHeader().getSnowHash()));
+    }
+  }
+
+  public void blockIngested(Block blk)
+  {
+    synchronized(requests)
+    {
+      requests.remove(new ChainHash(blk.getHeader().getSnowHash()));
+    }
+    schedule();
+  }
+
+  private void schedule()
+  {
+    LinkedList<PeerLink> links = new LinkedList<>();
+    for(PeerLink link : node.getPeerage().getLinkList())
+    {
+      if (link.isOpen()) links.add(link);
+    }
+    // So the same peer doesn't always get the first pick
+    Collections.shuffle(links);
+
+    // height -> hash -> peers that have it
+    TreeMap<Integer, Map<ChainHash, List<PeerLink>>> wanted = new TreeMap<>();
+    for(PeerLink link : links)
+    {
+      link.requestHeaders(lookahead);
+      for(Map.Entry<Integer, ChainHash> me : link.getWantedBlocks(lookahead).entrySet())
+      {
+        if (!wanted.containsKey(me.getKey())) wanted.put(me.getKey(), new LinkedHashMap<ChainHash, List<PeerLink>>());
+        Map<ChainHash, List<PeerLink>> m = wanted.get(me.getKey());
+        if (!m.containsKey(me.getValue())) m.put(me.getValue(), new ArrayList<PeerLink>());
+        m.get(me.getValue()).add(link);
+      }
+    }
+
+    ArrayList<Request> to_send = new ArrayList<>();
+    synchronized(requests)
+    {
+      long now = System.currentTimeMillis();
+      HashMap<PeerLink, Integer> load = new HashMap<>();
+
+      Iterator<Request> it = requests.values().iterator();
+      while(it.hasNext())
+      {
+        Request r = it.next();
+        if ((r.time + timeout < now) || ((!r.received) && (!r.link.isOpen())))
+        {
+          it.remove();
+          if (!r.received)
+          {
+            timed_out.incrementAndGet();
+            logger.log(Level.FINE, String.format("Request for %s from %s timed out, asking elsewhere", r.hash, r.link.getLinkId()));
+          }
+        }
+        else if (!r.received)
+        {
+          load.put(r.link, getLoad(load, r.link) + 1);
+        }
+      }
+
+      for(Map<ChainHash, List<PeerLink>> m : wanted.values())
+      {
+        for(Map.Entry<ChainHash, List<PeerLink>> me : m.entrySet())
+        {
+          if (requests.size() >= lookahead) break;
+
+          ChainHash hash = me.getKey();
+          if (requests.containsKey(hash)) continue;
+
+          PeerLink best = null;
+          for(PeerLink link : me.getValue())
+          {
+            if (link.isRequestPaused()) continue;
+            int l = getLoad(load, link);
+            if ((l < window) && ((best == null) || (l < getLoad(load, best))))
+            {
+              best = link;
+            }
+          }
+          if (best == null) continue;
+
+          Request r = new Request(hash, best, now);
+          requests.put(hash, r);
+          load.put(best, getLoad(load, best) + 1);
+          to_send.add(r);
+        }
+      }
+    }
+
+    // Outside the lock, so a slow peer doesn't hold up the others
+    for(Request r : to_send)
+    {
+      requested.incrementAndGet();
+      r.link.writeMessage( PeerMessage.newBuilder()
+        .setReqBlock(
+          RequestBlock.newBuilder().setBlockHash(r.hash.getBytes()).build())
+        .build());
+    }
+  }
+
+  private static int getLoad(Map<PeerLink, Integer> load, PeerLink link)
+  {
+    Integer l = load.get(link);
+    if (l == null) return 0;
+    return l;
+  }
+
+  public String getReportShort()
+  {
+    int outstanding;
+    synchronized(requests)
+    {
+      outstanding = requests.size();
+    }
+    return String.format("%d outstanding, %d requested, %d timed out", outstanding, requested.get(), timed_out.get());
+  }
+
+  private static class Request
+  {
+    final ChainHash hash;
+    final PeerLink link;
+    long time;
+    boolean received;
+
+    Request(ChainHash hash, PeerLink link, long time)
+    {
+      this.hash = hash;
+      this.link = link;
+      this.time = time;
+    }
+  }
+
+}
@@ -1,6 +1,8 @@
 package snowblossom.node;
 
 import snowblossom.lib.db.DB;
+import snowblossom.lib.db.DBCursor;
+import snowblossom.lib.db.DBMapMutationSet;
 import snowblossom.proto.*;
 import snowblossom.lib.Globals;
 import snowblossom.lib.ChainHash;
@@ -10,22 +12,46 @@ import com.google.common.collect.TreeMultimap;
 import com.google.protobuf.ByteString;
 import java.nio.ByteBuffer;
 
+/**
+ * The tx to block index is kept in two formats, like the address history.
+ * tx_blk_map values are height and block hash, tx_blk_map_2 values are height
+ * and block hash prefix with no name or separator in the key.
+ */
 public class TransactionMapUtil
 {
+  public static final String COMPACT_NAME = "tx_blk_map_2";
+
+  private static final int COMPACT_VALUE_SIZE = 4 + Globals.INDEX_BLOCK_HASH_PREFIX_LEN;
+
   public static void saveTransactionMap(Block blk, DB db)
   {
     TreeMultimap<ByteString, ByteString> tx_block_map = TreeMultimap.create(new ByteStringComparator(), new ByteStringComparator());
+    TreeMultimap<ByteString, ByteString> compact_map = TreeMultimap.create(new ByteStringComparator(), new ByteStringComparator());
     ByteString value = getValue(blk);
+    ByteString compact_value = getCompactValue(value);
 
     for(Transaction tx : blk.getTransactionsList())
     {
       tx_block_map.put(tx.getTxHash(),value);
+      compact_map.put(tx.getTxHash(), compact_value);
     }
 
-    db.getTransactionBlockMap().addAll(tx_block_map);
+    if (!db.isCompactIndexReady(COMPACT_NAME))
+    {
+      db.getTransactionBlockMap().addAll(tx_block_map);
+    }
+    db.getTransactionBlockCompactMap().addAll(compact_map);
     
   }
 
+  /**
+   * Converts a tx_blk_map value to a tx_blk_map_2 value
+   */
+  public static ByteString getCompactValue(ByteString val)
+  {
+    return val.substring(0, COMPACT_VALUE_SIZE);
+  }
+
   public static ByteString getValue(Block blk)
   {
     byte[] buff = new byte[4 + Globals.BLOCKCHAIN_HASH_LEN];
@@ -43,24 +69,29 @@ public class TransactionMapUtil
     TransactionStatus.Builder status = TransactionStatus.newBuilder();
 
     status.setUnknown(true);
-    for(ByteString val : db.getTransactionBlockMap().getSet(tx_id.getBytes(), 10000))
+
+    DBMapMutationSet map = db.getTransactionBlockMap();
+    if (db.isCompactIndexReady(COMPACT_NAME)) map = db.getTransactionBlockCompactMap();
+
+    try(DBCursor<ByteString> cursor = map.openCursor(tx_id.getBytes(), null))
     {
-      ByteBuffer bb = ByteBuffer.wrap(val.toByteArray());
-      int height = bb.getInt();
-
-      byte[] b = new byte[Globals.BLOCKCHAIN_HASH_LEN];
-
-      bb.get(b);
-      ChainHash blk_hash = new ChainHash(b);
-			
-			if (blk_hash.equals(cache.getHash(height)))
-			{
-        status.setConfirmed(true);
-        status.setHeightConfirmed(height);
-        int curr_height = head_summary.getHeader().getBlockHeight();
-        int depth = 1 + curr_height - height;
-        status.setConfirmations(depth);
-			}
+      while(cursor.hasNext())
+      {
+        ByteString val = cursor.next();
+        int height = ByteBuffer.wrap(val.substring(0, 4).toByteArray()).getInt();
+
+        // Either format has the block hash or at least the start of it next
+        ChainHash main_hash = cache.getHash(height);
+        ByteString blk_part = val.substring(4);
+        if ((main_hash != null) && (main_hash.getBytes().startsWith(blk_part)))
+        {
+          status.setConfirmed(true);
+          status.setHeightConfirmed(height);
+          int curr_height = head_summary.getHeader().getBlockHeight();
+          int depth = 1 + curr_height - height;
+          status.setConfirmations(depth);
+        }
+      }
     }
     return status.build();
     
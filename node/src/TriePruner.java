@@ -0,0 +1,347 @@
+package snowblossom.node;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.TreeMultimap;
+import com.google.protobuf.ByteString;
+import duckutil.PeriodicThread;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.db.DB;
+import snowblossom.lib.db.DBCursor;
+import snowblossom.lib.db.DBMap;
+import snowblossom.lib.trie.ByteStringComparator;
+import snowblossom.lib.trie.HashUtils;
+import snowblossom.lib.trie.TrieDB;
+import snowblossom.lib.trie.TrieDBCached;
+import snowblossom.lib.trie.TrieDBMap;
+import snowblossom.proto.BlockSummary;
+import snowblossom.trie.proto.ChildEntry;
+import snowblossom.trie.proto.TrieNode;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Removes UTXO trie nodes that no kept root can reach anymore.
+ *
+ * Every block makes a new trie root and the old nodes are never removed,
+ * so without this the u map holds every UTXO state there has ever been.
+ * Kept roots are the main chain for the last trie_prune_keep_blocks blocks,
+ * every trie_prune_checkpoint blocks before that, and every block ingested
+ * since start in that window, so side chains that might still win stay usable.
+ * (Side chain blocks from before a restart aren't known, so their roots may go.)
+ *
+ * Each pass is a mark and sweep in the background.  The mark walks down from the
+ * kept roots without holding anything up.  The sweep goes over the map in chunks.
+ * For each chunk it takes the ingest lock, marks from any roots that came in since,
+ * and only then removes the nodes still unmarked.  So a node that a new block
+ * points to again is never removed out from under it.  Removed nodes are dropped
+ * from the node cache too, once the removal is committed, so a block can't build
+ * on a pruned root from what is left in the cache.
+ *
+ * Old roots outside of what is kept can't be looked up anymore after a pass.
+ */
+public class TriePruner extends PeriodicThread
+{
+  private static final Logger logger = Logger.getLogger("snowblossom.db");
+
+  private static final int LOAD_CHUNK = 1000;
+  private static final int SWEEP_CHUNK = 10000;
+
+  private final SnowBlossomNode node;
+  private final DB db;
+  private final DBMap node_map;
+  private final TrieDB trie_db;
+  private final TrieDBCached cache;
+  private final Object ingest_lock;
+
+  private final int keep_blocks;
+  private final int checkpoint;
+
+  // Only touched by the pruner thread
+  private HashSet<ByteString> marked;
+
+  // Roots ingested while a pass is running, null when not running
+  private ArrayList<ByteString> pending_roots;
+  // Roots of every block ingested since start, by height, within the keep window
+  private final TreeMultimap<Integer, ByteString> recent_roots = TreeMultimap.create(Ordering.natural(), new ByteStringComparator());
+
+  public TriePruner(SnowBlossomNode node)
+  {
+    this(node, node.getDB(), node.getUtxoTrieCache(), node.getBlockIngestor().getIngestLock(),
+      node.getConfig().getIntWithDefault("trie_prune_interval_min", 60),
+      node.getConfig().getIntWithDefault("trie_prune_keep_blocks", 1000),
+      node.getConfig().getIntWithDefault("trie_prune_checkpoint", 10000));
+  }
+
+  /**
+   * For running against a db without a node, see pruneFrom()
+   * @param cache may be null
+   */
+  public TriePruner(DB db, TrieDBCached cache, Object ingest_lock)
+  {
+    this(null, db, cache, ingest_lock, 60, 1000, 10000);
+  }
+
+  private TriePruner(SnowBlossomNode node, DB db, TrieDBCached cache, Object ingest_lock,
+    int interval_min, int keep_blocks, int checkpoint)
+  {
+    super(interval_min * 60000L);
+    setName("TriePruner");
+    setDaemon(true);
+    setPriority(Thread.MIN_PRIORITY);
+
+    if (keep_blocks < 0) throw new RuntimeException("trie_prune_keep_blocks can't be negative");
+    if (checkpoint <= 0) throw new RuntimeException("trie_prune_checkpoint must be greater than zero");
+
+    this.node = node;
+    this.db = db;
+    this.node_map = db.getUtxoNodeMap();
+    // Straight to the db, a walk over everything would just churn the node cache
+    this.trie_db = new TrieDBMap(node_map);
+    this.cache = cache;
+    this.ingest_lock = ingest_lock;
+
+    this.keep_blocks = keep_blocks;
+    this.checkpoint = checkpoint;
+  }
+
+  /**
+   * Called by the BlockIngestor for every block it saves, on the main chain or not
+   */
+  public void addRoot(int height, ByteString utxo_root)
+  {
+    synchronized(this)
+    {
+      if (pending_roots != null) pending_roots.add(utxo_root);
+
+      recent_roots.put(height, utxo_root);
+      while(recent_roots.keySet().first() < height - keep_blocks)
+      {
+        recent_roots.removeAll(recent_roots.keySet().first());
+      }
+    }
+  }
+
+  private List<ByteString> takePendingRoots()
+  {
+    synchronized(this)
+    {
+      ArrayList<ByteString> lst = pending_roots;
+      pending_roots = new ArrayList<>();
+      return lst;
+    }
+  }
+
+  @Override
+  public void runPass() throws Exception
+  {
+    BlockSummary head = node.getBlockIngestor().getHead();
+    if (head == null) return;
+    if (head.getHeader().getBlockHeight() <= keep_blocks) return;
+
+    startPass();
+    try
+    {
+      // Only after the pass is started, so no new root falls between the two
+      prune(getKeptRoots());
+    }
+    finally
+    {
+      endPass();
+    }
+  }
+
+  /**
+   * Runs one pass keeping only what these roots, and any added while it runs, can reach
+   */
+  public void pruneFrom(List<ByteString> roots)
+  {
+    startPass();
+    try
+    {
+      prune(roots);
+    }
+    finally
+    {
+      endPass();
+    }
+  }
+
+  private void startPass()
+  {
+    marked = new HashSet<>();
+    // From here on, new roots get remembered
+    synchronized(this)
+    {
+      pending_roots = new ArrayList<>();
+    }
+  }
+
+  private void endPass()
+  {
+    synchronized(this)
+    {
+      pending_roots = null;
+    }
+    marked = null;
+  }
+
+  private void prune(List<ByteString> roots)
+  {
+    long t_start = System.nanoTime();
+
+    mark(roots);
+    long t_mark = System.nanoTime();
+    logger.info(String.format("Trie prune: marked %d nodes from %d roots", marked.size(), roots.size()));
+
+    long removed = 0L;
+    long removed_bytes = 0L;
+    long scanned = 0L;
+    long pause_total = 0L;
+    long pause_max = 0L;
+
+    ByteString token = null;
+    boolean more = true;
+    while(more)
+    {
+      ArrayList<ByteString> candidates = new ArrayList<>();
+      ArrayList<Integer> sizes = new ArrayList<>();
+      try(DBCursor<Map.Entry<ByteString, ByteString>> cursor = node_map.openCursor(ByteString.EMPTY, token))
+      {
+        for(int i=0; (i<SWEEP_CHUNK) && cursor.hasNext(); i++)
+        {
+          Map.Entry<ByteString, ByteString> me = cursor.next();
+          scanned++;
+          if (!marked.contains(me.getKey()))
+          {
+            candidates.add(me.getKey());
+            sizes.add(me.getKey().size() + me.getValue().size());
+          }
+        }
+        more = cursor.hasNext();
+        token = cursor.getResumeToken();
+      }
+
+      if (candidates.size() == 0) continue;
+
+      long t1 = System.nanoTime();
+      synchronized(ingest_lock)
+      {
+        // Anything new since the last chunk has to be marked before removing
+        mark(takePendingRoots());
+
+        db.beginBatch();
+        boolean committed = false;
+        try
+        {
+          final ArrayList<ByteString> swept = new ArrayList<>();
+          for(int i=0; i<candidates.size(); i++)
+          {
+            ByteString key = candidates.get(i);
+            if (!marked.contains(key))
+            {
+              node_map.remove(key);
+              swept.add(key);
+              removed++;
+              removed_bytes += sizes.get(i);
+            }
+          }
+          if (cache != null)
+          {
+            // Still inside the ingest lock, so nothing can use them in between
+            db.afterCommit(new Runnable()
+            {
+              public void run()
+              {
+                cache.invalidate(swept);
+              }
+            });
+          }
+          db.commitBatch();
+          committed = true;
+        }
+        finally
+        {
+          if (!committed) db.abortBatch();
+        }
+      }
+      long pause = System.nanoTime() - t1;
+      pause_total += pause;
+      pause_max = Math.max(pause_max, pause);
+    }
+
+    long t_end = System.nanoTime();
+    DecimalFormat df = new DecimalFormat("0.0");
+    logger.info(String.format("Trie prune: scanned %d nodes, removed %d (%d MB). Mark %s s, total %s s, ingest paused %s ms total, %s ms max",
+      scanned, removed, removed_bytes / 1048576L,
+      df.format((t_mark - t_start) / 1e9), df.format((t_end - t_start) / 1e9),
+      df.format(pause_total / 1e6), df.format(pause_max / 1e6)));
+  }
+
+  private ArrayList<ByteString> getKeptRoots()
+  {
+    ArrayList<ByteString> roots = new ArrayList<>();
+    roots.add(HashUtils.hashOfEmpty());
+
+    int height = node.getBlockIngestor().getHead().getHeader().getBlockHeight();
+    int keep_start = Math.max(0, height - keep_blocks);
+
+    for(int h=0; h<=height; h++)
+    {
+      if ((h < keep_start) && (h % checkpoint != 0)) continue;
+
+      ChainHash hash = db.getBlockHashAtHeight(h);
+      if (hash == null) continue;
+      BlockSummary summary = db.getBlockSummaryMap().get(hash.getBytes());
+      if (summary == null) continue;
+      roots.add(summary.getHeader().getUtxoRootHash());
+    }
+
+    synchronized(this)
+    {
+      roots.addAll(recent_roots.values());
+    }
+    return roots;
+  }
+
+  /**
+   * Marks everything reachable from these roots.  A marked node always has its
+   * whole subtree marked by the end of this, so subtrees already marked are skipped.
+   */
+  private void mark(List<ByteString> roots)
+  {
+    ArrayList<ByteString> level = new ArrayList<>();
+    for(ByteString r : roots)
+    {
+      if (marked.add(r)) level.add(r);
+    }
+
+    while(level.size() > 0)
+    {
+      ArrayList<ByteString> next = new ArrayList<>();
+      for(List<ByteString> part : Lists.partition(level, LOAD_CHUNK))
+      {
+        Map<ByteString, TrieNode> nodes = trie_db.loadAll(part);
+        if (nodes.size() != part.size())
+        {
+          logger.log(Level.WARNING, String.format("Trie prune: %d nodes missing while marking", part.size() - nodes.size()));
+        }
+        for(TrieNode n : nodes.values())
+        {
+          for(ChildEntry ce : n.getChildrenList())
+          {
+            if (marked.add(ce.getHash())) next.add(ce.getHash());
+          }
+        }
+      }
+      level = next;
+    }
+  }
+
+}
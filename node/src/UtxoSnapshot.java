@@ -0,0 +1,497 @@
+package snowblossom.node;
+
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import duckutil.Config;
+import duckutil.ConfigFile;
+import snowblossom.lib.*;
+import snowblossom.lib.db.DB;
+import snowblossom.lib.trie.ByteStringComparator;
+import snowblossom.lib.trie.HashUtils;
+import snowblossom.lib.trie.TrieDB;
+import snowblossom.lib.trie.TrieDBMap;
+import snowblossom.proto.BlockHeader;
+import snowblossom.proto.BlockSummary;
+import snowblossom.proto.UtxoSnapshotChunk;
+import snowblossom.trie.proto.ChildEntry;
+import snowblossom.trie.proto.TrieNode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Writes and reads UTXO snapshots, so a new node can start from a recent block
+ * instead of replaying every block from 0.
+ *
+ * A snapshot has every trie node reachable from the utxo root of one main chain block,
+ * the summaries of the blocks just before it and the main chain hashes up to it.
+ * The import checks every node hash (in parallel, a chunk per thread), that the whole
+ * trie is there from the root in the header and that the header has its proof of work.
+ * The chain head is written last, so a node only ever sees a complete import.
+ * Trie nodes go in through DB.bulkLoad(), which with RocksDB builds sst files and ingests them.
+ *
+ * What it can't check is that the head really is on the chain everyone else has.
+ * That is up to whoever gives the expected block hash on import.
+ * Blocks below the snapshot are not there, so this node can't serve them to peers.
+ */
+public class UtxoSnapshot
+{
+  private static final Logger logger = Logger.getLogger("snowblossom.node");
+
+  private static final int SUMMARY_COUNT = 1000;
+  private static final int HASH_CHUNK = 10000;
+  private static final int NODE_CHUNK = 10000;
+  private static final int LOAD_CHUNK = 1000;
+  // Trie nodes are bulk loaded this many at a time, so rocks gets a few big files instead of many small ones
+  private static final int BULK_LOAD_NODES = 250000;
+  // No chunk we write comes near these, so anything over is a bad file
+  private static final int MAX_CHUNK_BYTES = 64 * 1048576;
+  private static final int MAX_CHUNK_INFLATED_BYTES = 256 * 1048576;
+
+  public static void main(String args[]) throws Exception
+  {
+    Globals.addCryptoProvider();
+
+    if ((args.length < 3)
+      || ((!args[1].equals("export")) && (!args[1].equals("import")))
+      || ((args[1].equals("import")) && (args.length < 4)))
+    {
+      logger.log(Level.SEVERE, "Incorrect syntax. Syntax: UtxoSnapshot <config_file> export <file> [height]");
+      logger.log(Level.SEVERE, "                          UtxoSnapshot <config_file> import <file> <block_hash>");
+      System.exit(-1);
+    }
+
+    ConfigFile config = new ConfigFile(args[0]);
+    LogSetup.setup(config);
+
+    UtxoSnapshot snap = new UtxoSnapshot(config);
+    File file = new File(args[2]);
+
+    if (args[1].equals("export"))
+    {
+      int height = snap.getHeadHeight();
+      if (args.length > 3) height = Integer.parseInt(args[3]);
+      snap.exportSnapshot(file, height);
+    }
+    else
+    {
+      snap.importSnapshot(file, new ChainHash(args[3]));
+    }
+
+    snap.db.close();
+  }
+
+  private final Config config;
+  private final NetworkParams params;
+  private final DB db;
+  private final TrieDB trie_db;
+
+  // Checked trie nodes waiting to be bulk loaded
+  private TreeMap<ByteString, ByteString> pending_nodes = new TreeMap<>(new ByteStringComparator());
+
+  public UtxoSnapshot(Config config)
+    throws Exception
+  {
+    this.config = config;
+    config.require("db_type");
+
+    params = NetworkParams.loadFromConfig(config);
+    db = SnowBlossomNode.openDB(config);
+    trie_db = new TrieDBMap(db.getUtxoNodeMap());
+  }
+
+  private int getHeadHeight()
+  {
+    BlockSummary head = db.getBlockSummaryMap().get(BlockIngestor.HEAD);
+    if (head == null) throw new RuntimeException("No chain head in db");
+    return head.getHeader().getBlockHeight();
+  }
+
+  public void exportSnapshot(File file, int height)
+    throws Exception
+  {
+    ChainHash head_hash = db.getBlockHashAtHeight(height);
+    if (head_hash == null) throw new RuntimeException("No main chain block at height " + height);
+    BlockSummary head = db.getBlockSummaryMap().get(head_hash.getBytes());
+    if (head == null) throw new RuntimeException("No summary for " + head_hash);
+
+    logger.info(String.format("Writing snapshot of %d %s to %s", height, head_hash, file));
+    long t1 = System.nanoTime();
+
+    try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1048576)))
+    {
+      UtxoSnapshotChunk.Builder first = UtxoSnapshotChunk.newBuilder();
+      first.setHead(head);
+      for(int h=Math.max(0, height - SUMMARY_COUNT + 1); h<=height; h++)
+      {
+        BlockSummary summary = db.getBlockSummaryMap().get(db.getBlockHashAtHeight(h).getBytes());
+        // Might be exporting from an imported snapshot
+        if (summary != null) first.addSummaries(summary);
+      }
+      writeChunk(out, first.build());
+
+      for(int start=0; start<=height; start+=HASH_CHUNK)
+      {
+        UtxoSnapshotChunk.Builder chunk = UtxoSnapshotChunk.newBuilder();
+        chunk.setStartHeight(start);
+        for(int h=start; (h<=height) && (h<start + HASH_CHUNK); h++)
+        {
+          chunk.addBlockHashes(db.getBlockHashAtHeight(h).getBytes());
+        }
+        writeChunk(out, chunk.build());
+      }
+
+      long node_count = 0L;
+      HashSet<ByteString> seen = new HashSet<>();
+      ArrayList<ByteString> level = new ArrayList<>();
+      level.add(head.getHeader().getUtxoRootHash());
+      seen.add(head.getHeader().getUtxoRootHash());
+
+      UtxoSnapshotChunk.Builder chunk = UtxoSnapshotChunk.newBuilder();
+      while(level.size() > 0)
+      {
+        ArrayList<ByteString> next = new ArrayList<>();
+        for(List<ByteString> part : Lists.partition(level, LOAD_CHUNK))
+        {
+          Map<ByteString, TrieNode> nodes = trie_db.loadAll(part);
+          if (nodes.size() != part.size())
+          {
+            throw new RuntimeException(String.format("Missing %d trie nodes under %s", part.size() - nodes.size(), head_hash));
+          }
+          for(TrieNode n : nodes.values())
+          {
+            chunk.addNodes(n);
+            node_count++;
+            if (chunk.getNodesCount() >= NODE_CHUNK)
+            {
+              writeChunk(out, chunk.build());
+              chunk = UtxoSnapshotChunk.newBuilder();
+            }
+            for(ChildEntry ce : n.getChildrenList())
+            {
+              if (seen.add(ce.getHash())) next.add(ce.getHash());
+            }
+          }
+        }
+        level = next;
+      }
+      if (chunk.getNodesCount() > 0) writeChunk(out, chunk.build());
+
+      logger.info(String.format("Wrote %d trie nodes, %d bytes in %d seconds",
+        node_count, out.size(), (System.nanoTime() - t1) / 1000000000L));
+    }
+  }
+
+  public void importSnapshot(File file, ChainHash expected)
+    throws Exception
+  {
+    if (expected == null) throw new IllegalArgumentException("Snapshot import needs the expected block hash");
+    if (db.getBlockSummaryMap().get(BlockIngestor.HEAD) != null)
+    {
+      throw new RuntimeException("Snapshot import needs an empty db");
+    }
+
+    long t1 = System.nanoTime();
+    int threads = config.getIntWithDefault("snapshot_threads", Runtime.getRuntime().availableProcessors());
+    ThreadPoolExecutor exec = new ThreadPoolExecutor(
+      threads,
+      threads,
+      2, TimeUnit.DAYS,
+      new LinkedBlockingQueue<Runnable>(),
+      new DaemonThreadFactory("snapshot_check"));
+
+    BlockSummary head;
+    ChainHash head_hash;
+    long node_count = 0L;
+
+    try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1048576)))
+    {
+      UtxoSnapshotChunk first = new ChunkCheck(readRaw(in)).call();
+      head = first.getHead();
+      head_hash = new ChainHash(head.getHeader().getSnowHash());
+      logger.info(String.format("Snapshot is of %d %s", head.getHeader().getBlockHeight(), head_hash));
+
+      if (!expected.equals(head_hash))
+      {
+        throw new ValidationException(String.format("Snapshot is of %s, expected %s", head_hash, expected));
+      }
+      checkSummaries(head, first.getSummariesList());
+
+      // Reading goes along on this thread while the chunks are checked in parallel.
+      // They get written in order, with only so many waiting.
+      LinkedList<Future<UtxoSnapshotChunk>> in_flight = new LinkedList<>();
+      while(true)
+      {
+        byte[] raw = readRaw(in);
+        if (raw != null) in_flight.add(exec.submit(new ChunkCheck(raw)));
+
+        while((in_flight.size() > 0) && ((raw == null) || (in_flight.size() >= threads * 2)))
+        {
+          node_count += saveChunk(head, in_flight.poll().get());
+          if (pending_nodes.size() >= BULK_LOAD_NODES) loadPendingNodes();
+        }
+        if (raw == null) break;
+      }
+      loadPendingNodes();
+
+      ChainHash found = db.getBlockHashAtHeight(head.getHeader().getBlockHeight());
+      if ((found == null) || (!found.equals(head_hash)))
+      {
+        throw new ValidationException("Snapshot main chain hashes don't end at the head");
+      }
+
+      saveChunk(head, first);
+    }
+    finally
+    {
+      exec.shutdown();
+    }
+
+    logger.info(String.format("Imported %d trie nodes, checking the trie is all there", node_count));
+    checkTrie(head.getHeader().getUtxoRootHash());
+
+    // This is what makes the node use it, so it goes last
+    db.getBlockSummaryMap().put(BlockIngestor.HEAD, head);
+
+    logger.info(String.format("Snapshot imported in %d seconds. Node will start from %d %s",
+      (System.nanoTime() - t1) / 1000000000L, head.getHeader().getBlockHeight(), head_hash));
+  }
+
+  /**
+   * The summaries have to run in order, one after the other, up to the head,
+   * and each has to be what the one before it and its header make it.
+   * Only the first one is taken as it is, unless it is the genesis block.
+   */
+  private void checkSummaries(BlockSummary head, List<BlockSummary> summaries)
+    throws ValidationException
+  {
+    if (summaries.size() == 0) throw new ValidationException("Snapshot has no summaries");
+    BlockSummary last = summaries.get(summaries.size() - 1);
+    if (!last.equals(head)) throw new ValidationException("Snapshot summaries don't end at the head");
+
+    BlockSummary first = summaries.get(0);
+    if (first.getHeader().getBlockHeight() == 0)
+    {
+      BlockSummary genesis_prev = BlockSummary.newBuilder()
+        .setHeader(BlockHeader.newBuilder().setUtxoRootHash( HashUtils.hashOfEmpty() ).build())
+        .build();
+      if (!BlockchainUtil.getNewSummary(first.getHeader(), genesis_prev, params, first.getTotalTransactions()).equals(first))
+      {
+        throw new ValidationException("Snapshot genesis summary doesn't match its header");
+      }
+    }
+
+    for(int i=1; i<summaries.size(); i++)
+    {
+      checkSummary(summaries.get(i-1), summaries.get(i));
+    }
+  }
+
+  private void checkSummary(BlockSummary prev_summary, BlockSummary summary)
+    throws ValidationException
+  {
+    BlockHeader prev = prev_summary.getHeader();
+    BlockHeader header = summary.getHeader();
+    if ((header.getBlockHeight() != prev.getBlockHeight() + 1)
+      || (!header.getPrevBlockHash().equals(prev.getSnowHash())))
+    {
+      throw new ValidationException(String.format("Snapshot summary at %d doesn't follow the one before", header.getBlockHeight()));
+    }
+
+    long tx_count = summary.getTotalTransactions() - prev_summary.getTotalTransactions();
+    if (tx_count < 1)
+    {
+      throw new ValidationException(String.format("Snapshot summary at %d has a bad transaction count", header.getBlockHeight()));
+    }
+    BlockSummary expected = BlockchainUtil.getNewSummary(header, prev_summary, params, tx_count);
+    if (!expected.equals(summary))
+    {
+      throw new ValidationException(String.format("Snapshot summary at %d doesn't match its header and the one before", header.getBlockHeight()));
+    }
+  }
+
+  /**
+   * @return number of trie nodes saved
+   */
+  private int saveChunk(BlockSummary head, UtxoSnapshotChunk chunk)
+    throws ValidationException
+  {
+    int head_height = head.getHeader().getBlockHeight();
+
+    db.beginBatch();
+    boolean committed = false;
+    try
+    {
+      for(BlockSummary summary : chunk.getSummariesList())
+      {
+        db.getBlockSummaryMap().put(summary.getHeader().getSnowHash(), summary);
+      }
+
+      for(int i=0; i<chunk.getBlockHashesCount(); i++)
+      {
+        int height = chunk.getStartHeight() + i;
+        if (height > head_height) throw new ValidationException("Snapshot has main chain hashes past the head");
+        db.setBlockHashAtHeight(height, new ChainHash(chunk.getBlockHashes(i)));
+      }
+
+      db.commitBatch();
+      committed = true;
+    }
+    finally
+    {
+      if (!committed) db.abortBatch();
+    }
+
+    for(TrieNode n : chunk.getNodesList())
+    {
+      pending_nodes.put(n.getHash(), n.toByteString());
+    }
+    return chunk.getNodesCount();
+  }
+
+  private void loadPendingNodes()
+  {
+    if (pending_nodes.size() == 0) return;
+    db.bulkLoad(db.getUtxoNodeMap(), pending_nodes);
+    pending_nodes = new TreeMap<>(new ByteStringComparator());
+  }
+
+  /**
+   * Every node has been checked against its hash, so if everything
+   * under the root is there, it is the trie the header says it is
+   */
+  private void checkTrie(ByteString root)
+    throws ValidationException
+  {
+    HashSet<ByteString> seen = new HashSet<>();
+    ArrayList<ByteString> level = new ArrayList<>();
+    level.add(root);
+    seen.add(root);
+
+    while(level.size() > 0)
+    {
+      ArrayList<ByteString> next = new ArrayList<>();
+      for(List<ByteString> part : Lists.partition(level, LOAD_CHUNK))
+      {
+        Map<ByteString, TrieNode> nodes = trie_db.loadAll(part);
+        if (nodes.size() != part.size())
+        {
+          throw new ValidationException(String.format("Snapshot is missing %d trie nodes", part.size() - nodes.size()));
+        }
+        for(TrieNode n : nodes.values())
+        {
+          for(ChildEntry ce : n.getChildrenList())
+          {
+            if (seen.add(ce.getHash())) next.add(ce.getHash());
+          }
+        }
+      }
+      level = next;
+    }
+    logger.info(String.format("All %d trie nodes are there", seen.size()));
+  }
+
+  /**
+   * Inflates and parses a chunk and checks everything in it that can be checked on its own
+   */
+  public class ChunkCheck implements Callable<UtxoSnapshotChunk>
+  {
+    private final byte[] raw;
+
+    public ChunkCheck(byte[] raw)
+    {
+      this.raw = raw;
+    }
+
+    public UtxoSnapshotChunk call()
+      throws Exception
+    {
+      CodedInputStream c_in = CodedInputStream.newInstance(new InflaterInputStream(new ByteArrayInputStream(raw)));
+      c_in.setSizeLimit(MAX_CHUNK_INFLATED_BYTES);
+      UtxoSnapshotChunk chunk = UtxoSnapshotChunk.parseFrom(c_in);
+
+      if (chunk.hasHead())
+      {
+        Validation.checkBlockHeaderBasics(params, chunk.getHead().getHeader(), false);
+      }
+      for(BlockSummary summary : chunk.getSummariesList())
+      {
+        Validation.checkBlockHeaderBasics(params, summary.getHeader(), false);
+      }
+      for(ByteString hash : chunk.getBlockHashesList())
+      {
+        Validation.validateChainHash(hash, "block_hash");
+      }
+      for(TrieNode n : chunk.getNodesList())
+      {
+        if (!HashUtils.validateNodeHash(n))
+        {
+          throw new ValidationException("Snapshot trie node with bad hash: " + HashUtils.getHexString(n.getHash()));
+        }
+      }
+      return chunk;
+    }
+  }
+
+  private static void writeChunk(DataOutputStream out, UtxoSnapshotChunk chunk)
+    throws IOException
+  {
+    ByteArrayOutputStream b_out = new ByteArrayOutputStream();
+    DeflaterOutputStream d_out = new DeflaterOutputStream(b_out);
+    chunk.writeTo(d_out);
+    d_out.finish();
+
+    out.writeInt(b_out.size());
+    b_out.writeTo(out);
+  }
+
+  /**
+   * @return the next deflated chunk or null at the end of the file
+   */
+  private static byte[] readRaw(DataInputStream in)
+    throws IOException
+  {
+    int len;
+    try
+    {
+      len = in.readInt();
+    }
+    catch(EOFException e)
+    {
+      return null;
+    }
+    if ((len < 0) || (len > MAX_CHUNK_BYTES))
+    {
+      throw new IOException(String.format("Snapshot chunk of %d bytes, more than the limit of %d", len, MAX_CHUNK_BYTES));
+    }
+    byte[] raw = new byte[len];
+    in.readFully(raw);
+    return raw;
+  }
+
+}
@@ -8,7 +8,9 @@ import org.junit.runners.Suite.SuiteClasses;
 @SuiteClasses({
   MemPoolTest.class,
   BlockIngestorTest.class,
-  BlockForgeTest.class
+  BlockForgeTest.class,
+  TriePrunerTest.class,
+  CompactBlockRelayTest.class
 })
 public class AllTests
 {}
@@ -0,0 +1,136 @@
+package node.test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import snowblossom.lib.*;
+import snowblossom.lib.trie.HashedTrie;
+import snowblossom.node.ChainStateSource;
+import snowblossom.node.CompactBlockRelay;
+import snowblossom.node.MemPool;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockHeader;
+import snowblossom.proto.CompactBlock;
+import snowblossom.proto.Transaction;
+import snowblossom.proto.TransactionInput;
+import snowblossom.proto.TransactionOutput;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class CompactBlockRelayTest
+{
+  @BeforeClass
+  public static void loadProvider()
+  {
+    Globals.addCryptoProvider();
+  }
+
+  @Test
+  public void testRebuildFromPool() throws Exception
+  {
+    HashedTrie utxo_trie = MemPoolTest.newMemoryTrie();
+    KeyPair keys = KeyUtil.generateECCompressedKey();
+    UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer(utxo_trie, UtxoUpdateBuffer.EMPTY);
+
+    ArrayList<Transaction> tx_list = new ArrayList<>();
+    for(int i=0; i<4; i++)
+    {
+      TransactionInput in = MemPoolTest.addUtxoToUseAtInput(utxo_buffer, keys, 100000L);
+      TransactionOutput out = TransactionOutput.newBuilder()
+        .setRecipientSpecHash(in.getSpecHash())
+        .setValue(100000L)
+        .build();
+      tx_list.add(TransactionUtil.createTransaction(ImmutableList.of(in), ImmutableList.of(out), keys));
+    }
+    ChainHash utxo_root = utxo_buffer.commit();
+
+    MemPool mem_pool = new MemPool(utxo_trie, new TestChainState());
+    mem_pool.rebuildPriorityMap(utxo_root);
+
+    // The last one stays out of the pool
+    for(int i=0; i<3; i++)
+    {
+      Assert.assertTrue(mem_pool.addTransaction(tx_list.get(i)));
+    }
+    Assert.assertEquals(3, mem_pool.getShortIdMap().size());
+
+    Transaction coinbase = makeCoinbase();
+
+    // Everything is in the pool
+    Block blk = makeBlock(coinbase, tx_list.subList(0, 3));
+    CompactBlockRelay.PartialBlock pb = new CompactBlockRelay.PartialBlock(
+      CompactBlockRelay.makeCompact(blk), mem_pool.getShortIdMap());
+    Assert.assertEquals(0, pb.getMissing().size());
+    Assert.assertEquals(blk, pb.build());
+
+    // One is missing until the peer sends it
+    Block blk_missing = makeBlock(coinbase, ImmutableList.of(tx_list.get(0), tx_list.get(3), tx_list.get(1)));
+    pb = new CompactBlockRelay.PartialBlock(CompactBlockRelay.makeCompact(blk_missing), mem_pool.getShortIdMap());
+    Assert.assertEquals(ImmutableList.of(2), pb.getMissing());
+    Assert.assertNull(pb.build());
+    Assert.assertFalse(pb.setTransaction(0, tx_list.get(3)));
+    Assert.assertFalse(pb.setTransaction(4, tx_list.get(3)));
+    Assert.assertTrue(pb.setTransaction(2, tx_list.get(3)));
+    Assert.assertEquals(blk_missing, pb.build());
+
+    // A short id that points at the wrong tx, like a collision would
+    CompactBlock cb = CompactBlockRelay.makeCompact(blk);
+    Map<Long, Transaction> collide_map = new HashMap<>(mem_pool.getShortIdMap());
+    collide_map.put(cb.getShortTxIds(1), tx_list.get(3));
+    pb = new CompactBlockRelay.PartialBlock(cb, collide_map);
+    Assert.assertEquals(0, pb.getMissing().size());
+    Assert.assertNull(pb.build());
+
+    mem_pool.shutdown();
+  }
+
+  private static Transaction makeCoinbase()
+  {
+    // Only the hash matters for putting the block back together
+    byte[] hash = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    new Random().nextBytes(hash);
+    return Transaction.newBuilder().setTxHash(ByteString.copyFrom(hash)).build();
+  }
+
+  private static Block makeBlock(Transaction coinbase, List<Transaction> txs)
+  {
+    ArrayList<ChainHash> tx_hashes = new ArrayList<>();
+    tx_hashes.add(new ChainHash(coinbase.getTxHash()));
+    for(Transaction tx : txs)
+    {
+      tx_hashes.add(new ChainHash(tx.getTxHash()));
+    }
+
+    byte[] snow_hash = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    new Random().nextBytes(snow_hash);
+
+    BlockHeader header = BlockHeader.newBuilder()
+      .setBlockHeight(101)
+      .setSnowHash(ByteString.copyFrom(snow_hash))
+      .setMerkleRootHash(DigestUtil.getMerkleRootForTxList(tx_hashes).getBytes())
+      .build();
+
+    return Block.newBuilder()
+      .setHeader(header)
+      .addTransactions(coinbase)
+      .addAllTransactions(txs)
+      .build();
+  }
+
+  public static class TestChainState implements ChainStateSource
+  {
+    @Override
+    public int getHeight() {return 100; }
+
+    @Override
+    public NetworkParams getParams() {return new NetworkParamsRegtest(); }
+  }
+
+}
@@ -0,0 +1,164 @@
+package node.test;
+
+import com.google.common.collect.ImmutableList;
+import snowblossom.lib.*;
+import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.TrieDBMem;
+import snowblossom.node.ChainStateSource;
+import snowblossom.node.MemPool;
+import snowblossom.proto.AddressSpec;
+import snowblossom.proto.Transaction;
+import snowblossom.proto.TransactionInput;
+import snowblossom.proto.TransactionOutput;
+
+import java.security.KeyPair;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures mempool transaction admission with several threads submitting at once.
+ * Each thread count gets its own freshly signed transactions so the signature
+ * cache doesn't make the later runs look better.
+ * A reader thread pulls block templates the whole time, like BlockForge does.
+ *
+ * Run with: bazel run //node:MemPoolBench -- [tx_per_run]
+ */
+public class MemPoolBench
+{
+  private static final int[] THREAD_COUNTS = {1, 4, 16};
+
+  public static void main(String args[]) throws Exception
+  {
+    Globals.addCryptoProvider();
+
+    int tx_count = 4000;
+    if (args.length > 0) tx_count = Integer.parseInt(args[0]);
+
+    System.out.println(String.format("%d transactions per run, %d processors",
+      tx_count, Runtime.getRuntime().availableProcessors()));
+
+    KeyPair keys = KeyUtil.generateECCompressedKey();
+    AddressSpec claim = AddressUtil.getSimpleSpecForKey(keys.getPublic(), SignatureUtil.SIG_TYPE_ECDSA_COMPRESSED);
+    AddressSpecHash addr = AddressUtil.getHashForSpec(claim);
+
+    HashedTrie utxo_trie = new HashedTrie(new TrieDBMem(), Globals.UTXO_KEY_LEN, true);
+    UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer(utxo_trie, UtxoUpdateBuffer.EMPTY);
+
+    ArrayList<List<Transaction>> runs = new ArrayList<>();
+    Random rnd = new Random();
+    for(int r=0; r<THREAD_COUNTS.length; r++)
+    {
+      ArrayList<Transaction> tx_list = new ArrayList<>();
+      for(int i=0; i<tx_count; i++)
+      {
+        byte[] tx_id_buff = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+        rnd.nextBytes(tx_id_buff);
+        ChainHash src_tx = new ChainHash(tx_id_buff);
+
+        TransactionOutput src_out = TransactionOutput.newBuilder()
+          .setRecipientSpecHash(addr.getBytes())
+          .setValue(100000L)
+          .build();
+        utxo_buffer.addOutput(ImmutableList.of(src_out.toByteString()), src_out, src_tx, 0);
+
+        TransactionInput in = TransactionInput.newBuilder()
+          .setSpecHash(addr.getBytes())
+          .setSrcTxId(src_tx.getBytes())
+          .setSrcTxOutIdx(0)
+          .build();
+
+        // Leave some fee so these all count as normal priority
+        TransactionOutput out = TransactionOutput.newBuilder()
+          .setRecipientSpecHash(addr.getBytes())
+          .setValue(90000L)
+          .build();
+
+        tx_list.add(TransactionUtil.createTransaction(ImmutableList.of(in), ImmutableList.of(out), keys));
+      }
+      runs.add(tx_list);
+    }
+    ChainHash utxo_root = utxo_buffer.commit();
+
+    MemPool.MEM_POOL_MAX = Math.max(MemPool.MEM_POOL_MAX, tx_count * 2);
+    MemPool.MEM_POOL_MAX_LOW = Math.max(MemPool.MEM_POOL_MAX_LOW, tx_count * 2);
+
+    for(int r=0; r<THREAD_COUNTS.length; r++)
+    {
+      runAdmission(THREAD_COUNTS[r], runs.get(r), utxo_trie, utxo_root);
+    }
+  }
+
+  private static void runAdmission(int threads, final List<Transaction> tx_list, HashedTrie utxo_trie, final ChainHash utxo_root)
+    throws Exception
+  {
+    final MemPool mem_pool = new MemPool(utxo_trie, new BenchChainState());
+    mem_pool.rebuildPriorityMap(utxo_root);
+
+    final AtomicInteger next = new AtomicInteger(0);
+    final AtomicInteger failed = new AtomicInteger(0);
+    final AtomicInteger templates = new AtomicInteger(0);
+
+    ArrayList<Thread> workers = new ArrayList<>();
+    for(int i=0; i<threads; i++)
+    {
+      workers.add(new Thread()
+      {
+        public void run()
+        {
+          while(true)
+          {
+            int idx = next.getAndIncrement();
+            if (idx >= tx_list.size()) return;
+            try
+            {
+              if (!mem_pool.addTransaction(tx_list.get(idx))) failed.incrementAndGet();
+            }
+            catch(ValidationException e)
+            {
+              failed.incrementAndGet();
+            }
+          }
+        }
+      });
+    }
+
+    Thread reader = new Thread()
+    {
+      public void run()
+      {
+        while(next.get() < tx_list.size())
+        {
+          mem_pool.getTransactionsForBlock(utxo_root, Globals.MAX_BLOCK_SIZE);
+          templates.incrementAndGet();
+        }
+      }
+    };
+
+    long t1 = System.nanoTime();
+    reader.start();
+    for(Thread t : workers) t.start();
+    for(Thread t : workers) t.join();
+    long t2 = System.nanoTime();
+    reader.join();
+
+    DecimalFormat df = new DecimalFormat("0.0");
+    double sec = (t2 - t1) / 1e9;
+    System.out.println(String.format("%2d threads: %s tx/s (%d failed, %d templates read, pool size %d)",
+      threads, df.format(tx_list.size() / sec), failed.get(), templates.get(), mem_pool.getMemPoolSize()));
+
+    mem_pool.shutdown();
+  }
+
+  public static class BenchChainState implements ChainStateSource
+  {
+    @Override
+    public int getHeight() {return 100; }
+
+    @Override
+    public NetworkParams getParams() {return new NetworkParamsRegtest(); }
+  }
+
+}
@@ -6,18 +6,28 @@ import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import snowblossom.proto.AddressSpec;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockHeader;
 import snowblossom.proto.Transaction;
 import snowblossom.proto.TransactionInput;
 import snowblossom.proto.TransactionOutput;
 import snowblossom.lib.trie.HashedTrie;
 import snowblossom.lib.trie.TrieDBMem;
+import snowblossom.node.CompactBlockRelay;
 import snowblossom.node.MemPool;
 import snowblossom.node.ChainStateSource;
 import snowblossom.lib.*;
 
 import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MemPoolTest
 {
@@ -278,6 +288,141 @@ public class MemPoolTest
     Assert.assertEquals(3, mem_pool.getTransactionsForBlock(utxo_root, 1048576).size());
   }
 
+  @Test
+  public void testUpdateForBlock() throws Exception
+  {
+    HashedTrie utxo_trie = newMemoryTrie();
+    KeyPair keys = KeyUtil.generateECCompressedKey();
+
+    UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer(utxo_trie, UtxoUpdateBuffer.EMPTY);
+
+    TransactionInput in_a = addUtxoToUseAtInput(utxo_buffer, keys, 100000L);
+    TransactionInput in_b = addUtxoToUseAtInput(utxo_buffer, keys, 100000L);
+
+    ChainHash utxo_root = utxo_buffer.commit();
+
+    TransactionOutput out = TransactionOutput.newBuilder()
+      .setRecipientSpecHash(in_a.getSpecHash())
+      .setValue(100000L)
+      .build();
+
+    TransactionOutput out_half = TransactionOutput.newBuilder()
+      .setRecipientSpecHash(in_a.getSpecHash())
+      .setValue(50000L)
+      .build();
+
+    Transaction tx_a = TransactionUtil.createTransaction(ImmutableList.of(in_a), ImmutableList.of(out), keys);
+
+    TransactionInput in_c = TransactionInput.newBuilder()
+      .setSpecHash(in_a.getSpecHash())
+      .setSrcTxId(tx_a.getTxHash())
+      .setSrcTxOutIdx(0)
+      .build();
+    Transaction tx_c = TransactionUtil.createTransaction(ImmutableList.of(in_c), ImmutableList.of(out), keys);
+
+    Transaction tx_b = TransactionUtil.createTransaction(ImmutableList.of(in_b), ImmutableList.of(out), keys);
+
+    TransactionInput in_d = TransactionInput.newBuilder()
+      .setSpecHash(in_a.getSpecHash())
+      .setSrcTxId(tx_b.getTxHash())
+      .setSrcTxOutIdx(0)
+      .build();
+    Transaction tx_d = TransactionUtil.createTransaction(ImmutableList.of(in_d), ImmutableList.of(out), keys);
+
+    // Spends the same output as tx_b
+    Transaction tx_b2 = TransactionUtil.createTransaction(ImmutableList.of(in_b), ImmutableList.of(out_half, out_half), keys);
+
+    DummyChainState chain_state = new DummyChainState(100);
+    MemPool mem_pool = new MemPool(utxo_trie, chain_state);
+    mem_pool.rebuildPriorityMap(utxo_root);
+
+    mem_pool.addTransaction(tx_a);
+    mem_pool.addTransaction(tx_b);
+    mem_pool.addTransaction(tx_c);
+    mem_pool.addTransaction(tx_d);
+
+    Assert.assertEquals(4, mem_pool.getTransactionsForBlock(utxo_root, 1048576).size());
+    Assert.assertEquals(2, mem_pool.getTxClusterForTransaction(new ChainHash(tx_c.getTxHash())).size());
+
+    // Block confirms tx_a and double spends tx_b
+    UtxoUpdateBuffer block_buffer = new UtxoUpdateBuffer(utxo_trie, utxo_root);
+    BlockHeader header = BlockHeader.newBuilder()
+      .setBlockHeight(101)
+      .setTimestamp(System.currentTimeMillis())
+      .build();
+    Validation.deepTransactionCheck(tx_a, block_buffer, header, chain_state.getParams());
+    Validation.deepTransactionCheck(tx_b2, block_buffer, header, chain_state.getParams());
+    ChainHash block_utxo_root = block_buffer.commit();
+
+    Block blk = Block.newBuilder()
+      .addTransactions(tx_a)
+      .addTransactions(tx_b2)
+      .build();
+
+    mem_pool.updateForBlock(blk, utxo_root, block_utxo_root);
+
+    // Only tx_c is left, on its own now that tx_a is in
+    Assert.assertEquals(1, mem_pool.getMemPoolSize());
+    Assert.assertNull(mem_pool.getTransaction(new ChainHash(tx_b.getTxHash())));
+    Assert.assertNull(mem_pool.getTransaction(new ChainHash(tx_d.getTxHash())));
+    Assert.assertEquals(1, mem_pool.getTxClusterForTransaction(new ChainHash(tx_c.getTxHash())).size());
+
+    List<Transaction> block_list = mem_pool.getTransactionsForBlock(block_utxo_root, 1048576);
+    Assert.assertEquals(1, block_list.size());
+    Assert.assertEquals(tx_c, block_list.get(0));
+
+    // The short id index follows the removals
+    Assert.assertEquals(1, mem_pool.getShortIdMap().size());
+    Assert.assertEquals(tx_c, mem_pool.getShortIdMap().get(CompactBlockRelay.getShortId(tx_c.getTxHash())));
+
+    // Same result as starting over
+    mem_pool.rebuildPriorityMap(block_utxo_root);
+    Assert.assertEquals(1, mem_pool.getTransactionsForBlock(block_utxo_root, 1048576).size());
+  }
+
+  @Test
+  public void testSnapshotVersionAfterBlock() throws Exception
+  {
+    HashedTrie utxo_trie = newMemoryTrie();
+    KeyPair keys = KeyUtil.generateECCompressedKey();
+
+    UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer(utxo_trie, UtxoUpdateBuffer.EMPTY);
+    TransactionInput in_a = addUtxoToUseAtInput(utxo_buffer, keys, 100000L);
+    ChainHash utxo_root = utxo_buffer.commit();
+
+    TransactionOutput out = TransactionOutput.newBuilder()
+      .setRecipientSpecHash(in_a.getSpecHash())
+      .setValue(100000L)
+      .build();
+    Transaction tx_a = TransactionUtil.createTransaction(ImmutableList.of(in_a), ImmutableList.of(out), keys);
+
+    DummyChainState chain_state = new DummyChainState(100);
+    MemPool mem_pool = new MemPool(utxo_trie, chain_state);
+    mem_pool.rebuildPriorityMap(utxo_root);
+    mem_pool.addTransaction(tx_a);
+
+    UtxoUpdateBuffer block_buffer = new UtxoUpdateBuffer(utxo_trie, utxo_root);
+    BlockHeader header = BlockHeader.newBuilder()
+      .setBlockHeight(101)
+      .setTimestamp(System.currentTimeMillis())
+      .build();
+    Validation.deepTransactionCheck(tx_a, block_buffer, header, chain_state.getParams());
+    ChainHash block_utxo_root = block_buffer.commit();
+    Block blk = Block.newBuilder().addTransactions(tx_a).build();
+
+    // The queued update is applied by getting the snapshot, and the
+    // snapshot carries the version after it, not the one before
+    long version_before = mem_pool.getVersion();
+    mem_pool.tickleBlocks(blk, utxo_root, block_utxo_root);
+    MemPool.PrioritySnapshot snap = mem_pool.getPrioritySnapshot(block_utxo_root);
+
+    Assert.assertNotEquals(version_before, snap.version);
+    Assert.assertEquals(mem_pool.getVersion(), snap.version);
+    Assert.assertEquals(0, mem_pool.getTransactionsForBlock(snap, 1048576).size());
+
+    mem_pool.shutdown();
+  }
+
   @Test
   public void testStormChain() throws Exception
   {
@@ -363,6 +508,139 @@ public class MemPoolTest
 
   }
 
+  @Test
+  public void testConcurrentAdmission() throws Exception
+  {
+    HashedTrie utxo_trie = newMemoryTrie();
+    KeyPair keys = KeyUtil.generateECCompressedKey();
+
+    UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer(utxo_trie, UtxoUpdateBuffer.EMPTY);
+
+    // Each input gets two spends, so exactly one of each pair can get in
+    int pairs = 200;
+    final ArrayList<Transaction> tx_list = new ArrayList<>();
+    ArrayList<ChainHash[]> pair_list = new ArrayList<>();
+    for(int i=0; i<pairs; i++)
+    {
+      TransactionInput in = addUtxoToUseAtInput(utxo_buffer, keys, 100000L);
+
+      TransactionOutput out = TransactionOutput.newBuilder()
+        .setRecipientSpecHash(in.getSpecHash())
+        .setValue(100000L)
+        .build();
+      TransactionOutput out_half = TransactionOutput.newBuilder()
+        .setRecipientSpecHash(in.getSpecHash())
+        .setValue(50000L)
+        .build();
+
+      Transaction tx_a = TransactionUtil.createTransaction(ImmutableList.of(in), ImmutableList.of(out), keys);
+      Transaction tx_b = TransactionUtil.createTransaction(ImmutableList.of(in), ImmutableList.of(out_half, out_half), keys);
+      tx_list.add(tx_a);
+      tx_list.add(tx_b);
+      pair_list.add(new ChainHash[]{ new ChainHash(tx_a.getTxHash()), new ChainHash(tx_b.getTxHash()) });
+    }
+    Collections.shuffle(tx_list, new Random(1L));
+
+    final ChainHash utxo_root = utxo_buffer.commit();
+
+    final MemPool mem_pool = new MemPool(utxo_trie, new DummyChainState(100));
+    mem_pool.rebuildPriorityMap(utxo_root);
+
+    final AtomicInteger next = new AtomicInteger(0);
+    final AtomicInteger accepted = new AtomicInteger(0);
+    final AtomicBoolean reader_error = new AtomicBoolean(false);
+    final CountDownLatch start_latch = new CountDownLatch(1);
+
+    ArrayList<Thread> workers = new ArrayList<>();
+    for(int i=0; i<16; i++)
+    {
+      workers.add(new Thread()
+      {
+        public void run()
+        {
+          try
+          {
+            start_latch.await();
+          }
+          catch(InterruptedException e)
+          {
+            return;
+          }
+          while(true)
+          {
+            int idx = next.getAndIncrement();
+            if (idx >= tx_list.size()) return;
+            try
+            {
+              if (mem_pool.addTransaction(tx_list.get(idx))) accepted.incrementAndGet();
+            }
+            catch(ValidationException e)
+            {
+              // the other half of the pair got in first
+            }
+          }
+        }
+      });
+    }
+
+    Thread reader = new Thread()
+    {
+      public void run()
+      {
+        try
+        {
+          while(next.get() < tx_list.size())
+          {
+            mem_pool.getTransactionsForBlock(utxo_root, Globals.MAX_BLOCK_SIZE);
+            mem_pool.getMemPoolSize();
+          }
+        }
+        catch(Throwable t)
+        {
+          t.printStackTrace();
+          reader_error.set(true);
+        }
+      }
+    };
+
+    reader.start();
+    for(Thread t : workers) t.start();
+    start_latch.countDown();
+    for(Thread t : workers) t.join();
+    reader.join();
+
+    Assert.assertFalse(reader_error.get());
+    Assert.assertEquals(pairs, accepted.get());
+    Assert.assertEquals(pairs, mem_pool.getMemPoolSize());
+
+    HashSet<ChainHash> in_pool = new HashSet<>();
+    for(ChainHash[] pair : pair_list)
+    {
+      Transaction a = mem_pool.getTransaction(pair[0]);
+      Transaction b = mem_pool.getTransaction(pair[1]);
+      Assert.assertTrue("exactly one of each pair", (a == null) != (b == null));
+      in_pool.add(a != null ? pair[0] : pair[1]);
+    }
+
+    List<Transaction> block_list = mem_pool.getTransactionsForBlock(utxo_root, Globals.MAX_BLOCK_SIZE);
+    Assert.assertEquals(pairs, block_list.size());
+
+    HashSet<ChainHash> in_block = new HashSet<>();
+    HashSet<String> spent = new HashSet<>();
+    for(Transaction tx : block_list)
+    {
+      Assert.assertTrue(in_block.add(new ChainHash(tx.getTxHash())));
+      for(TransactionInput in : TransactionUtil.getInner(tx).getInputsList())
+      {
+        String key = new ChainHash(in.getSrcTxId()) + ":" + in.getSrcTxOutIdx();
+        Assert.assertTrue("double spend in block: " + key, spent.add(key));
+      }
+    }
+    Assert.assertEquals(in_pool, in_block);
+
+    mem_pool.shutdown();
+  }
+
   public class InputInfo
   {
     TransactionInput in;
@@ -0,0 +1,132 @@
+package node.test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import duckutil.ConfigMem;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import snowblossom.lib.db.DB;
+import snowblossom.lib.db.DBCursor;
+import snowblossom.lib.db.rocksdb.JRocksDB;
+import snowblossom.lib.trie.HashUtils;
+import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.TrieDBCached;
+import snowblossom.lib.trie.TrieDBMap;
+import snowblossom.node.TriePruner;
+import snowblossom.trie.proto.ChildEntry;
+import snowblossom.trie.proto.TrieNode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class TriePrunerTest
+{
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  @Test
+  public void testPruneKeepsRoots() throws Exception
+  {
+    TreeMap<String, String> config_map = new TreeMap<>();
+    config_map.put("db_path", testFolder.newFolder().getPath());
+    DB db = new DB(new ConfigMem(config_map), new JRocksDB(new ConfigMem(config_map)));
+
+    TrieDBCached cache = new TrieDBCached(new TrieDBMap(db.getUtxoNodeMap()), 16L * 1048576L, db);
+    HashedTrie trie = new HashedTrie(cache, 8, true);
+
+    Random rnd = new Random(1L);
+    ByteString root = HashUtils.hashOfEmpty();
+    ArrayList<ByteString> roots = new ArrayList<>();
+    ArrayList<Map<ByteString, ByteString>> contents = new ArrayList<>();
+    HashMap<ByteString, ByteString> current = new HashMap<>();
+
+    for(int r=0; r<5; r++)
+    {
+      HashMap<ByteString, ByteString> update_map = new HashMap<>();
+      // Take some out, so leaves of the older roots become unreachable
+      int n = 0;
+      for(ByteString key : current.keySet())
+      {
+        if (n % 4 == 0) update_map.put(key, null);
+        n++;
+      }
+      for(int i=0; i<500; i++)
+      {
+        byte[] key_data = new byte[8];
+        rnd.nextBytes(key_data);
+        byte[] data_data = new byte[8];
+        rnd.nextBytes(data_data);
+        update_map.put(ByteString.copyFrom(key_data), ByteString.copyFrom(data_data));
+      }
+
+      root = trie.mergeBatch(root, update_map);
+      for(Map.Entry<ByteString, ByteString> me : update_map.entrySet())
+      {
+        if (me.getValue() == null) current.remove(me.getKey());
+        else current.put(me.getKey(), me.getValue());
+      }
+      roots.add(root);
+      contents.add(new HashMap<>(current));
+    }
+
+    // Keep the first and last, so everything only the ones between reach goes
+    TriePruner pruner = new TriePruner(db, cache, new Object());
+    pruner.pruneFrom(ImmutableList.of(roots.get(0), roots.get(4)));
+
+    HashedTrie db_trie = new HashedTrie(new TrieDBMap(db.getUtxoNodeMap()), 8, true);
+    for(int r : new int[]{0, 4})
+    {
+      for(Map.Entry<ByteString, ByteString> me : contents.get(r).entrySet())
+      {
+        Assert.assertEquals(me.getValue(), db_trie.getLeafData(roots.get(r), me.getKey()));
+        Assert.assertEquals(me.getValue(), trie.getLeafData(roots.get(r), me.getKey()));
+      }
+    }
+
+    // The others are gone from the db and the cache
+    TrieDBMap db_nodes = new TrieDBMap(db.getUtxoNodeMap());
+    for(int r=1; r<4; r++)
+    {
+      Assert.assertNull(db_nodes.load(roots.get(r)));
+      Assert.assertNull(cache.load(roots.get(r)));
+    }
+
+    // And nothing is left that the kept roots can't reach
+    HashSet<ByteString> reachable = new HashSet<>();
+    LinkedList<ByteString> todo = new LinkedList<>();
+    todo.add(roots.get(0));
+    todo.add(roots.get(4));
+    while(todo.size() > 0)
+    {
+      ByteString hash = todo.poll();
+      if (!reachable.add(hash)) continue;
+      TrieNode node = db_nodes.load(hash);
+      Assert.assertNotNull(node);
+      for(ChildEntry ce : node.getChildrenList())
+      {
+        todo.add(ce.getHash());
+      }
+    }
+
+    int stored = 0;
+    try(DBCursor<Map.Entry<ByteString, ByteString>> cursor = db.getUtxoNodeMap().openCursor(ByteString.EMPTY, null))
+    {
+      while(cursor.hasNext())
+      {
+        Assert.assertTrue(reachable.contains(cursor.next().getKey()));
+        stored++;
+      }
+    }
+    Assert.assertEquals(reachable.size(), stored);
+
+    db.close();
+  }
+
+}